@@ -0,0 +1,44 @@
+package io.onemfive.clearnet.server;
+
+import org.eclipse.jetty.server.LocalConnector;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.HandlerWrapper;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * Outermost application handler of each server answering 503 with
+ * Retry-After while the sensor is not accepting new requests (paused or
+ * draining for shutdown), letting requests already held run to
+ * completion underneath. During a restart new requests wait here until
+ * the handlers are back, up to the drain timeout, instead of being
+ * refused. Marks warm-up requests arriving in-process.
+ *
+ * @author objectorange
+ */
+public class AdmissionGateHandler extends HandlerWrapper {
+
+    private final ClearnetServerSensor sensor;
+
+    public AdmissionGateHandler(ClearnetServerSensor sensor) {
+        this.sensor = sensor;
+    }
+
+    @Override
+    public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException {
+        if(!sensor.awaitRestart() || !sensor.isAccepting()) {
+            response.setHeader("Retry-After", "1");
+            response.setHeader("Connection", "close");
+            response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            baseRequest.setHandled(true);
+            return;
+        }
+        // Only in-process warm-up traffic arrives over the local connector
+        if(baseRequest.getHttpChannel().getConnector() instanceof LocalConnector)
+            request.setAttribute(ClearnetServerSensor.WARMUP, Boolean.TRUE);
+        super.handle(target, baseRequest, request, response);
+    }
+}
@@ -0,0 +1,387 @@
+package io.onemfive.clearnet.server;
+
+import org.eclipse.jetty.http.HttpMethod;
+import org.eclipse.jetty.http.MimeTypes;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.eclipse.jetty.util.IO;
+import org.eclipse.jetty.util.resource.Resource;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Serves a local server's UI resource directory from memory, prepared
+ * once on start (and on each restart of the handler tree).
+ *
+ * Every file up to the size limit gets a fingerprinted name with a hash
+ * of its content inserted before the extension (app.js becomes
+ * app.1a2b3c4d5e.js). References in HTML src/href attributes and CSS
+ * url() are rewritten to those names, so pages pick up new assets as
+ * soon as they change. Fingerprinted URLs are served with
+ * Cache-Control immutable and a one year max-age; original names stay
+ * reachable but must revalidate.
+ *
+ * Compressible types are gzipped once. A .br or .gz file shipped next
+ * to an asset (e.g. produced by the UI build, as the JDK has no Brotli
+ * encoder) is served as that asset's variant unless its source was
+ * rewritten. The smallest variant the client accepts is chosen.
+ * Files over the limit are left to the ResourceHandler.
+ *
+ * @author objectorange
+ */
+public class AssetHandler extends AbstractHandler {
+
+    private static Logger LOG = Logger.getLogger(AssetHandler.class.getName());
+
+    /**
+     * Largest file in bytes held in memory; larger files are served from the resource directory as stored.
+     */
+    public static final String ASSETS_MAX_BYTES = "1m5.sensors.clearnet.server.assets.maxBytes";
+    /**
+     * Prefix of whether a server fingerprints asset names, suffixed with the server's name: true (default) or false.
+     */
+    public static final String FINGERPRINT_PREFIX = "1m5.sensors.clearnet.server.assets.fingerprint.";
+
+    static final String IMMUTABLE = "public, max-age=31536000, immutable";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final Pattern HTML_REF = Pattern.compile("(?i)\\b(?:src|href)\\s*=\\s*[\"']([^\"'#?]+)");
+    private static final Pattern CSS_REF = Pattern.compile("(?i)url\\(\\s*[\"']?([^\"')#?\\s]+)");
+
+    private final String resourceBase;
+    private final boolean fingerprint;
+    private final long maxBytes;
+    private final MimeTypes mimeTypes = new MimeTypes();
+
+    // Request path -> asset, by original and by fingerprinted name
+    private volatile Map<String,Asset> originals;
+    private volatile Map<String,Asset> fingerprinted;
+
+    public AssetHandler(String resourceBase, boolean fingerprint, long maxBytes) {
+        this.resourceBase = resourceBase;
+        this.fingerprint = fingerprint;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return handler or null when the server has no resource directory
+     */
+    public static AssetHandler fromProperties(Properties p, String serverName, String resourceBase) {
+        if(resourceBase == null)
+            return null;
+        long maxBytes = 1024 * 1024;
+        try {
+            maxBytes = Long.parseLong(p.getProperty(ASSETS_MAX_BYTES, String.valueOf(maxBytes)));
+        } catch (NumberFormatException e) {
+            LOG.warning("Invalid "+ASSETS_MAX_BYTES+"; using "+maxBytes);
+        }
+        return new AssetHandler(resourceBase, !"false".equals(p.getProperty(FINGERPRINT_PREFIX + serverName)), maxBytes);
+    }
+
+    @Override
+    protected void doStart() throws Exception {
+        prepare();
+        super.doStart();
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        super.doStop();
+        synchronized (this) {
+            originals = null;
+            fingerprinted = null;
+        }
+    }
+
+    /**
+     * Rewritten page, e.g. index.html for the {@link SPAHandler}, preparing assets first if need be.
+     * @param path relative to the resource directory
+     * @return read-only content or null when not held
+     */
+    public ByteBuffer content(String path) {
+        Asset a = prepare().get("/" + path);
+        return a == null ? null : a.identity.duplicate();
+    }
+
+    /**
+     * Prepare assets once per start; handlers sharing them may start first.
+     */
+    private synchronized Map<String,Asset> prepare() {
+        if(originals != null)
+            return originals;
+        long begin = System.currentTimeMillis();
+        Map<String,byte[]> files = new TreeMap<>();
+        try {
+            collect(Resource.newResource(resourceBase), "", files);
+        } catch (IOException e) {
+            LOG.warning("Unable to read resource directory "+resourceBase+": "+e.getLocalizedMessage());
+        }
+
+        // Hash leaves first, then stylesheets referencing them, then pages referencing both
+        Map<String,String> names = new HashMap<>();
+        Map<String,byte[]> rewritten = new HashMap<>();
+        List<String> order = new ArrayList<>();
+        for(int pass = 0; pass < 3; pass++) {
+            for(String path : files.keySet()) {
+                if(path.endsWith(".br") || path.endsWith(".gz"))
+                    continue;
+                int kind = path.endsWith(".html") || path.endsWith(".htm") ? 2 : path.endsWith(".css") ? 1 : 0;
+                if(kind != pass)
+                    continue;
+                order.add(path);
+                byte[] content = files.get(path);
+                if(fingerprint && kind > 0) {
+                    byte[] r = rewrite(content, path, kind == 2 ? HTML_REF : CSS_REF, names);
+                    if(r != content) {
+                        rewritten.put(path, r);
+                        content = r;
+                    }
+                }
+                // Pages are entry points and keep their names
+                if(fingerprint && kind < 2)
+                    names.put(path, fingerprintedName(path, hash(content)));
+            }
+        }
+
+        Map<String,Asset> byOriginal = new HashMap<>();
+        Map<String,Asset> byFingerprint = new HashMap<>();
+        long held = 0;
+        for(String path : order) {
+            boolean changed = rewritten.containsKey(path);
+            byte[] content = changed ? rewritten.get(path) : files.get(path);
+            String contentType = mimeTypes.getMimeByExtension(path);
+            byte[] gzip = changed ? null : files.get(path + ".gz");
+            if(gzip == null && compressible(contentType))
+                gzip = gzip(content);
+            byte[] br = changed ? null : files.get(path + ".br");
+            Asset a = new Asset(contentType, content, smaller(gzip, content), smaller(br, content), hash(content));
+            byOriginal.put("/" + path, a);
+            if(names.containsKey(path))
+                byFingerprint.put("/" + names.get(path), a);
+            held += a.size();
+        }
+        fingerprinted = byFingerprint;
+        originals = byOriginal;
+        LOG.info("Prepared "+byOriginal.size()+" assets ("+held+" bytes with variants, "+byFingerprint.size()+" fingerprinted) in "
+                +(System.currentTimeMillis() - begin)+"ms");
+        return byOriginal;
+    }
+
+    private void collect(Resource dir, String prefix, Map<String,byte[]> files) throws IOException {
+        String[] list = dir.list();
+        if(list == null)
+            return;
+        for(String name : list) {
+            Resource r = dir.addPath(name);
+            if(name.endsWith("/")) {
+                collect(r, prefix + name, files);
+            } else if(r.length() >= 0 && r.length() <= maxBytes) {
+                InputStream in = r.getInputStream();
+                try {
+                    files.put(prefix + name, IO.readBytes(in));
+                } finally {
+                    in.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Point references to held assets at their fingerprinted names.
+     * @return rewritten content or the same array when nothing changed
+     */
+    static byte[] rewrite(byte[] content, String path, Pattern refs, Map<String,String> names) {
+        String text = new String(content, UTF8);
+        String dir = path.substring(0, path.lastIndexOf('/') + 1);
+        Matcher m = refs.matcher(text);
+        StringBuilder sb = null;
+        int last = 0;
+        while(m.find()) {
+            String ref = m.group(1);
+            if(ref.startsWith("//") || ref.indexOf(':') >= 0)
+                continue; // external or data:, mailto:, ...
+            String hashed = names.get(resolve(dir, ref));
+            if(hashed == null)
+                continue;
+            if(sb == null)
+                sb = new StringBuilder(text.length() + 256);
+            sb.append(text, last, m.start(1))
+                    .append(ref, 0, ref.lastIndexOf('/') + 1)
+                    .append(hashed.substring(hashed.lastIndexOf('/') + 1));
+            last = m.end(1);
+        }
+        if(sb == null)
+            return content;
+        sb.append(text, last, text.length());
+        return sb.toString().getBytes(UTF8);
+    }
+
+    /**
+     * @return path relative to the resource directory of a reference from a file in dir
+     */
+    static String resolve(String dir, String ref) {
+        String joined = ref.startsWith("/") ? ref.substring(1) : dir + ref;
+        List<String> segments = new ArrayList<>();
+        for(String segment : joined.split("/")) {
+            if(segment.isEmpty() || segment.equals("."))
+                continue;
+            if(segment.equals("..")) {
+                if(!segments.isEmpty())
+                    segments.remove(segments.size() - 1);
+            } else {
+                segments.add(segment);
+            }
+        }
+        StringBuilder sb = new StringBuilder();
+        for(String segment : segments) {
+            if(sb.length() > 0)
+                sb.append('/');
+            sb.append(segment);
+        }
+        return sb.toString();
+    }
+
+    static String fingerprintedName(String path, String hash) {
+        int slash = path.lastIndexOf('/');
+        int dot = path.lastIndexOf('.');
+        if(dot <= slash + 1)
+            return path + "." + hash;
+        return path.substring(0, dot) + "." + hash + path.substring(dot);
+    }
+
+    private static String hash(byte[] content) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(content);
+            StringBuilder sb = new StringBuilder(10);
+            for(int i = 0; i < 5; i++) {
+                sb.append(Character.forDigit((digest[i] >> 4) & 0xF, 16)).append(Character.forDigit(digest[i] & 0xF, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static boolean compressible(String contentType) {
+        if(contentType == null)
+            return false;
+        return contentType.startsWith("text/") || contentType.contains("javascript") || contentType.contains("json")
+                || contentType.contains("xml") || contentType.contains("svg") || contentType.contains("wasm");
+    }
+
+    private static byte[] gzip(byte[] content) {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(content.length / 3 + 64);
+            GZIPOutputStream gz = new GZIPOutputStream(out) {
+                {
+                    def.setLevel(Deflater.BEST_COMPRESSION);
+                }
+            };
+            gz.write(content);
+            gz.close();
+            return out.toByteArray();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return variant only when it saves bytes
+     */
+    private static byte[] smaller(byte[] variant, byte[] identity) {
+        return variant != null && variant.length < identity.length ? variant : null;
+    }
+
+    @Override
+    public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        Map<String,Asset> byOriginal = originals;
+        Map<String,Asset> byFingerprint = fingerprinted;
+        if(baseRequest.isHandled() || byOriginal == null || byFingerprint == null)
+            return;
+        boolean head = HttpMethod.HEAD.is(request.getMethod());
+        if(!head && !HttpMethod.GET.is(request.getMethod()))
+            return;
+        String path = request.getRequestURI();
+        Asset a = byFingerprint.get(path);
+        boolean immutable = a != null;
+        if(a == null)
+            a = byOriginal.get(path);
+        if(a == null)
+            return;
+
+        String coding = null;
+        ByteBuffer body = a.identity;
+        if(a.br != null && SPAHandler.accepts(request, "br")) {
+            coding = "br";
+            body = a.br;
+        } else if(a.gzip != null && SPAHandler.accepts(request, "gzip")) {
+            coding = "gzip";
+            body = a.gzip;
+        }
+        String etag = coding == null ? a.etag : a.etag.substring(0, a.etag.length() - 1) + "--" + coding + "\"";
+        if(a.gzip != null || a.br != null)
+            response.setHeader("Vary", "Accept-Encoding");
+        response.setHeader("Cache-Control", immutable ? IMMUTABLE : "no-cache");
+        response.setHeader("ETag", etag);
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if(ifNoneMatch != null && (ifNoneMatch.contains(etag) || ifNoneMatch.trim().equals("*"))) {
+            response.setStatus(304);
+            baseRequest.setHandled(true);
+            return;
+        }
+        response.setStatus(200);
+        if(a.contentType != null)
+            response.setContentType(a.contentType);
+        if(coding != null)
+            response.setHeader("Content-Encoding", coding);
+        response.setContentLength(body.remaining());
+        if(!head)
+            baseRequest.getResponse().getHttpOutput().sendContent(body.slice());
+        baseRequest.setHandled(true);
+    }
+
+    private static final class Asset {
+        private final String contentType;
+        private final ByteBuffer identity;
+        private final ByteBuffer gzip;
+        private final ByteBuffer br;
+        private final String etag;
+
+        private Asset(String contentType, byte[] identity, byte[] gzip, byte[] br, String hash) {
+            this.contentType = contentType;
+            this.identity = readOnly(identity);
+            this.gzip = gzip == null ? null : readOnly(gzip);
+            this.br = br == null ? null : readOnly(br);
+            this.etag = "\"" + hash + "\"";
+        }
+
+        private long size() {
+            return identity.capacity() + (gzip == null ? 0 : gzip.capacity()) + (br == null ? 0 : br.capacity());
+        }
+
+        private static ByteBuffer readOnly(byte[] bytes) {
+            ByteBuffer b = ByteBuffer.allocateDirect(bytes.length);
+            b.put(bytes).flip();
+            return b.asReadOnlyBuffer();
+        }
+    }
+}
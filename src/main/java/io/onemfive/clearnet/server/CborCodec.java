@@ -0,0 +1,374 @@
+package io.onemfive.clearnet.server;
+
+import io.onemfive.data.JSONSerializable;
+import io.onemfive.data.content.Content;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary alternative to JSON for /data requests and responses
+ * (CBOR, RFC 8949), negotiated through Accept and Content-Type.
+ *
+ * Encodes the same maps, lists, strings, numbers and booleans JSON
+ * carries, plus byte arrays as byte strings so binary {@link Content}
+ * travels raw instead of base64. Decoding accepts definite and
+ * indefinite lengths, ignores tags and rejects malformed or truncated
+ * input with IllegalArgumentException.
+ *
+ * @author objectorange
+ */
+public final class CborCodec {
+
+    public static final String MEDIA_TYPE = "application/cbor";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int MAX_DEPTH = 64;
+    private static final Object BREAK = new Object();
+
+    private byte[] buf;
+    private int pos;
+
+    private CborCodec(byte[] buf) {
+        this.buf = buf;
+    }
+
+    /**
+     * @return true if Content-Type names CBOR
+     */
+    public static boolean isCbor(String contentType) {
+        return contentType != null && contentType.regionMatches(true, 0, MEDIA_TYPE, 0, MEDIA_TYPE.length());
+    }
+
+    /**
+     * JSON stays the default: CBOR only when the client ranks it above JSON,
+     * or equal and listed first.
+     */
+    public static boolean accepted(String accept) {
+        if(accept == null || accept.indexOf("cbor") < 0)
+            return false;
+        float cbor = 0;
+        float json = 0;
+        boolean cborFirst = false;
+        boolean seen = false;
+        for(String range : accept.split(",")) {
+            String[] params = range.split(";");
+            String type = params[0].trim().toLowerCase();
+            float q = 1;
+            for(int i = 1; i < params.length; i++) {
+                String param = params[i].trim();
+                if(param.startsWith("q=")) {
+                    try {
+                        q = Float.parseFloat(param.substring(2));
+                    } catch (NumberFormatException e) {
+                        q = 0;
+                    }
+                }
+            }
+            if(MEDIA_TYPE.equals(type)) {
+                cbor = q;
+                if(!seen)
+                    cborFirst = true;
+                seen = true;
+            } else if("application/json".equals(type) || "*/*".equals(type) || "application/*".equals(type)) {
+                json = Math.max(json, q);
+                seen = true;
+            }
+        }
+        return cbor > 0 && (cbor > json || (cbor == json && cborFirst));
+    }
+
+    public static byte[] encode(Object value) {
+        CborCodec c = new CborCodec(new byte[256]);
+        c.write(value, 0);
+        return Arrays.copyOf(c.buf, c.pos);
+    }
+
+    public static Object decode(byte[] data) {
+        CborCodec c = new CborCodec(data);
+        Object value = c.read(0);
+        if(value == BREAK)
+            throw new IllegalArgumentException("Unexpected break");
+        if(c.pos != data.length)
+            throw new IllegalArgumentException("Trailing bytes after CBOR item");
+        return value;
+    }
+
+    // Encoding
+
+    private void write(Object v, int depth) {
+        if(depth > MAX_DEPTH)
+            throw new IllegalArgumentException("Nesting deeper than "+MAX_DEPTH);
+        if(v == null) {
+            put(0xf6);
+        } else if(v instanceof Boolean) {
+            put((Boolean)v ? 0xf5 : 0xf4);
+        } else if(v instanceof Integer || v instanceof Long || v instanceof Short || v instanceof Byte) {
+            long n = ((Number)v).longValue();
+            if(n >= 0)
+                head(0, n);
+            else
+                head(1, -1 - n);
+        } else if(v instanceof Double || v instanceof Float || v instanceof BigDecimal) {
+            long bits = Double.doubleToLongBits(((Number)v).doubleValue());
+            put(0xfb);
+            for(int shift = 56; shift >= 0; shift -= 8) {
+                put((int)(bits >>> shift));
+            }
+        } else if(v instanceof BigInteger) {
+            BigInteger b = (BigInteger)v;
+            if(b.bitLength() < 64)
+                write(b.longValue(), depth);
+            else
+                write(b.toString(), depth);
+        } else if(v instanceof byte[]) {
+            byte[] bytes = (byte[])v;
+            head(2, bytes.length);
+            put(bytes);
+        } else if(v instanceof CharSequence) {
+            byte[] utf8 = v.toString().getBytes(UTF8);
+            head(3, utf8.length);
+            put(utf8);
+        } else if(v instanceof Map) {
+            Map<?,?> m = (Map<?,?>)v;
+            head(5, m.size());
+            for(Map.Entry<?,?> entry : m.entrySet()) {
+                write(String.valueOf(entry.getKey()), depth + 1);
+                write(entry.getValue(), depth + 1);
+            }
+        } else if(v instanceof Collection) {
+            Collection<?> c = (Collection<?>)v;
+            head(4, c.size());
+            for(Object o : c) {
+                write(o, depth + 1);
+            }
+        } else if(v instanceof Object[]) {
+            Object[] a = (Object[])v;
+            head(4, a.length);
+            for(Object o : a) {
+                write(o, depth + 1);
+            }
+        } else if(v instanceof Content) {
+            // Body as a byte string rather than the base64 text of its JSON form
+            Map<String,Object> m = ((Content)v).toMap();
+            m.put("body", ((Content)v).getBody());
+            write(m, depth);
+        } else if(v instanceof JSONSerializable) {
+            write(((JSONSerializable)v).toMap(), depth);
+        } else {
+            write(v.toString(), depth);
+        }
+    }
+
+    private void head(int major, long n) {
+        int mt = major << 5;
+        if(n < 24) {
+            put(mt | (int)n);
+        } else if(n < 0x100) {
+            put(mt | 24);
+            put((int)n);
+        } else if(n < 0x10000) {
+            put(mt | 25);
+            put((int)(n >>> 8));
+            put((int)n);
+        } else if(n < 0x100000000L) {
+            put(mt | 26);
+            for(int shift = 24; shift >= 0; shift -= 8) {
+                put((int)(n >>> shift));
+            }
+        } else {
+            put(mt | 27);
+            for(int shift = 56; shift >= 0; shift -= 8) {
+                put((int)(n >>> shift));
+            }
+        }
+    }
+
+    private void ensure(int bytes) {
+        if(pos + bytes > buf.length)
+            buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + bytes));
+    }
+
+    private void put(int b) {
+        ensure(1);
+        buf[pos++] = (byte)b;
+    }
+
+    private void put(byte[] bytes) {
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, buf, pos, bytes.length);
+        pos += bytes.length;
+    }
+
+    // Decoding
+
+    private Object read(int depth) {
+        if(depth > MAX_DEPTH)
+            throw new IllegalArgumentException("Nesting deeper than "+MAX_DEPTH);
+        int initial = next();
+        int major = initial >>> 5;
+        int info = initial & 0x1f;
+        switch (major) {
+            case 0: {
+                long n = argument(info);
+                if(n < 0)
+                    throw new IllegalArgumentException("Unsigned integer exceeds 64-bit signed range");
+                return n;
+            }
+            case 1: {
+                long n = argument(info);
+                if(n < 0)
+                    throw new IllegalArgumentException("Negative integer exceeds 64-bit signed range");
+                return -1 - n;
+            }
+            case 2:
+                return info == 31 ? chunks(2, depth) : take(length(info));
+            case 3:
+                return new String(info == 31 ? chunks(3, depth) : take(length(info)), UTF8);
+            case 4: {
+                List<Object> list = new ArrayList<>();
+                if(info == 31) {
+                    Object o;
+                    while((o = read(depth + 1)) != BREAK) {
+                        list.add(o);
+                    }
+                } else {
+                    int n = length(info);
+                    for(int i = 0; i < n; i++) {
+                        list.add(item(depth));
+                    }
+                }
+                return list;
+            }
+            case 5: {
+                Map<String,Object> map = new LinkedHashMap<>();
+                if(info == 31) {
+                    Object k;
+                    while((k = read(depth + 1)) != BREAK) {
+                        map.put(String.valueOf(k), item(depth));
+                    }
+                } else {
+                    int n = length(info);
+                    for(int i = 0; i < n; i++) {
+                        String k = String.valueOf(item(depth));
+                        map.put(k, item(depth));
+                    }
+                }
+                return map;
+            }
+            case 6:
+                // Tags (dates, bignums, ...) are not interpreted; keep the tagged item
+                argument(info);
+                return item(depth);
+            default:
+                return simple(info);
+        }
+    }
+
+    private Object item(int depth) {
+        Object o = read(depth + 1);
+        if(o == BREAK)
+            throw new IllegalArgumentException("Unexpected break");
+        return o;
+    }
+
+    private Object simple(int info) {
+        switch (info) {
+            case 20: return Boolean.FALSE;
+            case 21: return Boolean.TRUE;
+            case 22:
+            case 23: return null;
+            case 25: return halfToDouble((next() << 8) | next());
+            case 26: return (double)Float.intBitsToFloat((int)argument(26));
+            case 27: return Double.longBitsToDouble(argument(27));
+            case 31: return BREAK;
+            default:
+                if(info < 24)
+                    return null; // unassigned simple value
+                if(info == 24) {
+                    next();
+                    return null;
+                }
+                throw new IllegalArgumentException("Reserved simple value "+info);
+        }
+    }
+
+    /**
+     * Concatenate an indefinite-length string's definite chunks of the same major type.
+     */
+    private byte[] chunks(int major, int depth) {
+        byte[] out = new byte[0];
+        while(true) {
+            int initial = next();
+            if(initial == 0xff)
+                return out;
+            if(initial >>> 5 != major || (initial & 0x1f) == 31)
+                throw new IllegalArgumentException("Invalid chunk in indefinite-length string");
+            byte[] chunk = take(length(initial & 0x1f));
+            byte[] joined = Arrays.copyOf(out, out.length + chunk.length);
+            System.arraycopy(chunk, 0, joined, out.length, chunk.length);
+            out = joined;
+        }
+    }
+
+    private long argument(int info) {
+        if(info < 24)
+            return info;
+        int bytes;
+        switch (info) {
+            case 24: bytes = 1;break;
+            case 25: bytes = 2;break;
+            case 26: bytes = 4;break;
+            case 27: bytes = 8;break;
+            default: throw new IllegalArgumentException("Invalid additional information "+info);
+        }
+        long n = 0;
+        for(int i = 0; i < bytes; i++) {
+            n = (n << 8) | next();
+        }
+        return n;
+    }
+
+    /**
+     * Length of a string, array or map, bounded by the bytes left so a
+     * forged header cannot force a huge allocation.
+     */
+    private int length(int info) {
+        long n = argument(info);
+        if(n < 0 || n > buf.length - pos)
+            throw new IllegalArgumentException("Length "+n+" exceeds remaining input");
+        return (int)n;
+    }
+
+    private int next() {
+        if(pos >= buf.length)
+            throw new IllegalArgumentException("Truncated CBOR input");
+        return buf[pos++] & 0xff;
+    }
+
+    private byte[] take(int n) {
+        byte[] out = Arrays.copyOfRange(buf, pos, pos + n);
+        pos += n;
+        return out;
+    }
+
+    private static double halfToDouble(int half) {
+        int exp = (half >> 10) & 0x1f;
+        int mant = half & 0x3ff;
+        double val;
+        if(exp == 0)
+            val = mant * Math.pow(2, -24);
+        else if(exp != 31)
+            val = (mant + 1024) * Math.pow(2, exp - 25);
+        else
+            val = mant == 0 ? Double.POSITIVE_INFINITY : Double.NaN;
+        return (half & 0x8000) != 0 ? -val : val;
+    }
+}
@@ -1,16 +1,31 @@
 package io.onemfive.clearnet.server;
 
 import java.awt.Desktop;
+import java.io.File;
 import java.io.IOException;
-import java.net.InetSocketAddress;
+import java.lang.reflect.InvocationTargetException;
 import java.net.MalformedURLException;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 import io.onemfive.core.notification.NotificationService;
@@ -19,13 +34,23 @@ import io.onemfive.data.EventMessage;
 import io.onemfive.data.Subscription;
 import io.onemfive.data.util.DLC;
 import io.onemfive.sensors.SensorStatus;
+import org.eclipse.jetty.server.Connector;
 import org.eclipse.jetty.server.Handler;
+import org.eclipse.jetty.server.LocalConnector;
 import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.SslConnectionFactory;
 import org.eclipse.jetty.server.handler.ContextHandler;
 import org.eclipse.jetty.server.handler.DefaultHandler;
 import org.eclipse.jetty.server.handler.HandlerCollection;
 import org.eclipse.jetty.server.handler.ResourceHandler;
+import org.eclipse.jetty.server.handler.StatisticsHandler;
+import org.eclipse.jetty.server.session.DefaultSessionCache;
+import org.eclipse.jetty.server.session.FileSessionDataStore;
 import org.eclipse.jetty.server.session.SessionHandler;
+import org.eclipse.jetty.unixsocket.UnixSocketConnector;
+import jnr.unixsocket.UnixSocketAddress;
+import jnr.unixsocket.UnixSocketChannel;
 
 import io.onemfive.core.Config;
 import io.onemfive.core.util.SystemVersion;
@@ -39,9 +64,12 @@ import org.eclipse.jetty.websocket.servlet.ServletUpgradeResponse;
 import org.eclipse.jetty.websocket.servlet.WebSocketCreator;
 import org.eclipse.jetty.websocket.servlet.WebSocketServletFactory;
 
+import javax.servlet.http.HttpServletRequest;
+
 /**
  * Sets up HTTP server listeners.
- * Only localhost (127.0.0.1) is supported.
+ * Only localhost (127.0.0.1) and Unix domain sockets are supported
+ * unless a TLS connector is configured to bind another interface.
  *
  * @author objectorange
  */
@@ -49,22 +77,116 @@ public final class ClearnetServerSensor extends BaseSensor {
 
     public static final String HANDLER_ID = "1m5.sensors.clearnet.server.handler.id";
 
+    /**
+     * Envelope header: absolute time in epoch milliseconds after which nobody is
+     * waiting on the Envelope's reply and its work may be skipped.
+     */
+    public static final String DEADLINE = "1m5.sensors.clearnet.server.deadline.at";
+
+    /**
+     * Envelope header set to true on an Envelope handed back to its handler
+     * because the bus batcher failed to deliver it.
+     */
+    public static final String SEND_FAILED = "1m5.sensors.clearnet.server.send.failed";
+
+    /**
+     * Namespace of Envelope headers set by this sensor and its handlers; client
+     * request headers under it are never copied onto an Envelope.
+     */
+    public static final String RESERVED_HEADER_PREFIX = "1m5.sensors.clearnet.server.";
+
     /**
      * Configuration of Servers in the form:
      *      name, port, launch on start, concrete implementation of io.onemfive.clearnet.server.AsynchronousEnvelopeHandler, run websocket, relative resource directory|n,...}
+     * A local server's resource directory is looked up on the classpath unless it is an absolute filesystem path.
      */
     public static final String SERVERS_CONFIG = "1m5.sensors.clearnet.server.config";
 
+    /**
+     * Prefix of a filesystem resource directory for a local server, suffixed with the
+     * server's name; overrides the classpath directory in its SERVERS_CONFIG entry.
+     */
+    public static final String RESOURCE_DIR_PREFIX = "1m5.sensors.clearnet.server.resourceDir.";
+
+    /**
+     * Enable Server-Sent Events push channel at /sse/* on local servers: true|false
+     */
+    public static final String SSE_CONFIG = "1m5.sensors.clearnet.server.sse";
+
+    /**
+     * Milliseconds to let held requests finish on graceful shutdown and restart.
+     */
+    public static final String DRAIN_TIMEOUT = "1m5.sensors.clearnet.server.drainTimeout";
+
+    /**
+     * Number of synthetic requests driven in-process through each server's
+     * handler chain before its connector opens; 0 (default) disables warm-up.
+     */
+    public static final String WARMUP_REQUESTS = "1m5.sensors.clearnet.server.warmup.requests";
+
+    /**
+     * Comma-separated paths warm-up requests cycle through.
+     */
+    public static final String WARMUP_PATHS = "1m5.sensors.clearnet.server.warmup.paths";
+
+    /**
+     * Prefix of Unix domain socket path for a server, suffixed with the server's name,
+     * e.g. 1m5.sensors.clearnet.server.unixSocket.1M5=/run/1m5/ui.sock
+     */
+    public static final String UNIX_SOCKET_PREFIX = "1m5.sensors.clearnet.server.unixSocket.";
+
+    /**
+     * Prefix of POSIX permissions of a server's Unix domain socket, suffixed with
+     * the server's name; default rw------- (owner only).
+     */
+    public static final String UNIX_SOCKET_PERMISSIONS_PREFIX = "1m5.sensors.clearnet.server.unixSocket.permissions.";
+
+    private static final String BIND_DIR_PREFIX = ".1m5-sock";
+    // File type bits of st_mode
+    private static final int S_IFMT = 0170000;
+    private static final int S_IFSOCK = 0140000;
+
+    /**
+     * Prefix of whether a server also listens on TCP 127.0.0.1, suffixed with the
+     * server's name: true (default) or false to serve only its Unix domain socket.
+     */
+    public static final String TCP_PREFIX = "1m5.sensors.clearnet.server.tcp.";
+
+    /**
+     * Request attribute and Envelope header marking a warm-up request;
+     * its Envelope is looped straight back instead of going to the bus.
+     */
+    public static final String WARMUP = "1m5.sensors.clearnet.server.warmup";
+
     private static final Logger LOG = Logger.getLogger(ClearnetServerSensor.class.getName());
 
     private boolean isTest = false;
 
     private final List<Server> servers = new ArrayList<>();
-    private EnvelopeWebSocket webSocket = null;
-    private final Map<String,AsynchronousEnvelopeHandler> handlers = new HashMap<>();
+    private volatile EnvelopeWebSocket webSocket = null;
+    private volatile EnvelopeEventStreamHandler eventStream = null;
+    private volatile boolean pushChannels = false;
+    // Indexed by handler id; copied on registration, read lock-free on reply
+    private volatile AsynchronousEnvelopeHandler[] handlers = new AsynchronousEnvelopeHandler[8];
     private int nextHandlerId = 1;
+    private ReplyDispatcher replyDispatcher;
+    private EnvelopeBatcher busBatcher;
+    private LoadMonitor loadMonitor;
+    private RequestTracer tracer;
+    private volatile LoadMonitor.Load load = LoadMonitor.Load.HEALTHY;
+    private volatile boolean accepting = true;
+    private volatile boolean paused = false;
+    // Set while restart() cycles the handler trees; new requests wait at the gate
+    private volatile boolean restarting = false;
+    private final Object restartLock = new Object();
+    // Counts pauses so a drain outlived by unpause and pause again does not report PAUSED
+    private int pauses = 0;
+    private long drainTimeoutMs = 30 * 1000;
+    private int warmupRequests = 0;
+    private String[] warmupPaths = {"/", "/data/warmup"};
 
     private Properties properties;
+    private ConcurrencyLimiter concurrencyLimiter = new ConcurrencyLimiter();
 
     public ClearnetServerSensor() {}
 
@@ -72,10 +194,137 @@ public final class ClearnetServerSensor extends BaseSensor {
         super(sensorManager, sensitivity, priority);
     }
 
-    String registerHandler(AsynchronousEnvelopeHandler handler) {
-        String nextHandlerIdStr = String.valueOf(nextHandlerId++);
-        handlers.put(nextHandlerIdStr, handler);
-        return nextHandlerIdStr;
+    synchronized int registerHandler(AsynchronousEnvelopeHandler handler) {
+        int handlerId = nextHandlerId++;
+        AsynchronousEnvelopeHandler[] table = handlers;
+        if(handlerId >= table.length)
+            table = Arrays.copyOf(table, table.length * 2);
+        else
+            table = table.clone();
+        table[handlerId] = handler;
+        handlers = table;
+        return handlerId;
+    }
+
+    Properties getProperties() {
+        return properties;
+    }
+
+    List<Server> getServers() {
+        synchronized (servers) {
+            return new ArrayList<>(servers);
+        }
+    }
+
+    EnvelopeWebSocket getWebSocket() {
+        return webSocket;
+    }
+
+    EnvelopeEventStreamHandler getEventStream() {
+        return eventStream;
+    }
+
+    ReplyDispatcher getReplyDispatcher() {
+        return replyDispatcher;
+    }
+
+    /**
+     * @return tracer sampling requests or null when tracing is not configured
+     */
+    RequestTracer getTracer() {
+        return tracer;
+    }
+
+    /**
+     * Load level last sampled from live server health.
+     */
+    public LoadMonitor.Load getLoad() {
+        return load;
+    }
+
+    /**
+     * Report load upward unless status is owned by an error, or by a pause,
+     * drain or shutdown in progress.
+     */
+    synchronized void loadChanged(LoadMonitor.Load load) {
+        this.load = load;
+        if(!isAccepting() || statusHeld())
+            return;
+        if(load != LoadMonitor.Load.HEALTHY)
+            LOG.warning("Server load "+load+": "+concurrencyLimiter.getInFlight()+" held of limit "+concurrencyLimiter.getLimit());
+        updateStatus(loadStatus());
+    }
+
+    /**
+     * @return true if the current status must not be replaced by a load status
+     */
+    private boolean statusHeld() {
+        SensorStatus status = getStatus();
+        if(status == null)
+            return false;
+        switch (status) {
+            case ERROR:
+            case PAUSING:
+            case PAUSED:
+            case RESTARTING:
+            case SHUTTING_DOWN:
+            case SHUTDOWN:
+            case GRACEFULLY_SHUTTING_DOWN:
+            case GRACEFULLY_SHUTDOWN:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Status for a running sensor: overloaded reports blocked so the
+     * SensorManager routes new traffic elsewhere.
+     */
+    private SensorStatus loadStatus() {
+        return load == LoadMonitor.Load.OVERLOADED ? SensorStatus.NETWORK_BLOCKED : SensorStatus.NETWORK_CONNECTED;
+    }
+
+    /**
+     * @return false while paused or draining; servers answer new requests with 503
+     */
+    public boolean isAccepting() {
+        return accepting && !paused;
+    }
+
+    public boolean isPaused() {
+        return paused;
+    }
+
+    /**
+     * Hold the calling request thread while a restart cycles the handlers.
+     * @return true when handlers are serving, false if still restarting after the drain timeout
+     */
+    boolean awaitRestart() {
+        if(!restarting)
+            return true;
+        long deadline = System.currentTimeMillis() + drainTimeoutMs;
+        synchronized (restartLock) {
+            while(restarting) {
+                long remaining = deadline - System.currentTimeMillis();
+                if(remaining <= 0)
+                    return false;
+                try {
+                    restartLock.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Shared limit on envelopes in flight on the bus across all handlers.
+     */
+    public ConcurrencyLimiter getConcurrencyLimiter() {
+        return concurrencyLimiter;
     }
 
     @Override
@@ -93,11 +342,69 @@ public final class ClearnetServerSensor extends BaseSensor {
         return new String[]{".html",".htm",".do",".json"};
     }
 
+    /**
+     * @return true if Envelope carries a DEADLINE that has passed
+     */
+    public static boolean isExpired(Envelope e) {
+        Object deadline = e.getHeader(DEADLINE);
+        return deadline instanceof Long && (Long)deadline < System.currentTimeMillis();
+    }
+
+    /**
+     * Flag Envelope built from a warm-up request. Header value is not a String
+     * so it cannot be set by a client through copied request headers.
+     */
+    static void markWarmup(HttpServletRequest request, Envelope e) {
+        if(request.getAttribute(WARMUP) != null)
+            e.setHeader(WARMUP, Boolean.TRUE);
+    }
+
+    public static boolean isWarmup(Envelope e) {
+        return Boolean.TRUE.equals(e.getHeader(WARMUP));
+    }
+
+    /**
+     * @return true if Envelope was returned by sendFailed() without reaching the bus
+     */
+    public static boolean isSendFailed(Envelope e) {
+        return Boolean.TRUE.equals(e.getHeader(SEND_FAILED));
+    }
+
+    /**
+     * Return an Envelope that did not reach the bus to the handler holding its
+     * request so it can answer now instead of waiting out the deadline.
+     */
+    void sendFailed(Envelope e) {
+        e.setHeader(SEND_FAILED, Boolean.TRUE);
+        if(e.getHeader(HANDLER_ID) == null) {
+            LOG.warning("Envelope not delivered to bus and no handler waiting on it; dropped.");
+            return;
+        }
+        reply(e);
+    }
+
+    /**
+     * @return true if a client request header would shadow a header set internally:
+     * anything under {@link #RESERVED_HEADER_PREFIX} and the session id header
+     */
+    static boolean isReservedHeader(String name) {
+        return name.regionMatches(true, 0, RESERVED_HEADER_PREFIX, 0, RESERVED_HEADER_PREFIX.length())
+                || name.equalsIgnoreCase(ClearnetSession.class.getName());
+    }
+
     @Override
     public boolean send(Envelope e) {
-        if(!isTest)
-            sensorManager.sendToBus(e);
-        else {
+        if(isExpired(e)) {
+            LOG.info("Envelope deadline passed before reaching the bus; skipping.");
+            return false;
+        }
+        if(isWarmup(e)) {
+            reply(e);
+        } else if(!isTest) {
+            EnvelopeBatcher batcher = busBatcher;
+            if(batcher == null || !batcher.submit(e))
+                sensorManager.sendToBus(e);
+        } else {
             // TODO: add content here
             reply(e);
         }
@@ -108,25 +415,41 @@ public final class ClearnetServerSensor extends BaseSensor {
     @Override
     public boolean reply(Envelope e) {
         LOG.info("Reply to ClearnetServerSensor; forwarding to registered handler...");
-        String handlerId = (String)e.getHeader(HANDLER_ID);
-        if(handlerId == null) {
+        Object handlerIdObj = e.getHeader(HANDLER_ID);
+        if(handlerIdObj == null) {
             LOG.warning("Handler id not found in Envelope header. Ensure this is placed in the Envelope header="+HANDLER_ID);
             sensorManager.suspend(e);
             return false;
         }
-        AsynchronousEnvelopeHandler handler = handlers.get(handlerId);
+        int handlerId;
+        try {
+            handlerId = handlerIdObj instanceof Integer ? (Integer)handlerIdObj : Integer.parseInt(handlerIdObj.toString());
+        } catch (NumberFormatException ex) {
+            handlerId = -1;
+        }
+        AsynchronousEnvelopeHandler[] table = handlers;
+        AsynchronousEnvelopeHandler handler = handlerId > 0 && handlerId < table.length ? table[handlerId] : null;
         if(handler == null) {
-            LOG.warning("Handler with id="+handlerId+" not registered. Please ensure it's registered prior to calling send().");
+            LOG.warning("Handler with id="+handlerIdObj+" not registered. Please ensure it's registered prior to calling send().");
             sensorManager.suspend(e);
             return false;
         }
-        handler.reply(e);
+        if(tracer != null && e.getHeader(RequestTracer.TRACE_ID) != null)
+            e.setHeader(RequestTracer.REPLY_AT, System.nanoTime());
+        // Off the bus thread: handlers serialize and write to possibly slow clients
+        ReplyDispatcher dispatcher = replyDispatcher;
+        if(dispatcher == null)
+            handler.reply(e);
+        else
+            dispatcher.dispatch(e, handler);
         return true;
     }
 
     @Override
     public boolean start(Properties p) {
         LOG.info("Starting...");
+        long begin = System.currentTimeMillis();
+        StringBuilder timing = new StringBuilder();
         updateStatus(SensorStatus.INITIALIZING);
         Config.logProperties(p);
         try {
@@ -134,311 +457,872 @@ public final class ClearnetServerSensor extends BaseSensor {
         } catch (Exception e) {
             LOG.warning(e.getLocalizedMessage());
         }
+        long mark = lap(timing, "config", begin);
+
+        concurrencyLimiter = ConcurrencyLimiter.fromProperties(properties);
+        try {
+            drainTimeoutMs = Long.parseLong(properties.getProperty(DRAIN_TIMEOUT, String.valueOf(drainTimeoutMs)));
+        } catch (NumberFormatException e) {
+            LOG.warning("Invalid "+DRAIN_TIMEOUT+"; using "+drainTimeoutMs+"ms");
+        }
+        try {
+            warmupRequests = Integer.parseInt(properties.getProperty(WARMUP_REQUESTS, "0"));
+        } catch (NumberFormatException e) {
+            LOG.warning("Invalid "+WARMUP_REQUESTS+"; warm-up disabled");
+        }
+        if(properties.getProperty(WARMUP_PATHS) != null)
+            warmupPaths = properties.getProperty(WARMUP_PATHS).split(",");
+        replyDispatcher = ReplyDispatcher.fromProperties(properties);
+        tracer = RequestTracer.fromProperties(properties);
+        if(!isTest)
+            busBatcher = EnvelopeBatcher.fromProperties(this, sensorManager, properties);
+        mark = lap(timing, "stages", mark);
 
         updateStatus(SensorStatus.STARTING);
+        // Servers share nothing but the stages above: build and start them concurrently
+        Callable<Boolean> uiServer = null;
         if("true".equals(properties.getProperty(Config.PROP_UI))) {
-            String webDir = this.getClass().getClassLoader().getResource("io/onemfive/clearnet/server/ui").toExternalForm();
-            // Start HTTP Server for 1M5 UI
-            AsynchronousEnvelopeHandler dataHandler = new EnvelopeJSONDataHandler();
-            dataHandler.setSensor(this);
-            dataHandler.setServiceName("1M5-Data-Service");
-
-            ResourceHandler resourceHandler = new ResourceHandler();
-            resourceHandler.setDirectoriesListed(false);
-            resourceHandler.setResourceBase(webDir);
-
-            ContextHandler dataContext = new ContextHandler();
-            dataContext.setContextPath("/data/*");
-            dataContext.setHandler(dataHandler);
-
-            HandlerCollection handlers = new HandlerCollection();
-            handlers.addHandler(new SessionHandler());
-            handlers.addHandler(dataContext);
-            handlers.addHandler(resourceHandler);
-            handlers.addHandler(new DefaultHandler());
-
-            boolean launchOnStart = "true".equals(properties.getProperty(Config.PROP_UI_LAUNCH_ON_START));
-            // 571 BC - Birth of Laozi, Chinese Philosopher and Writer, author of Tao Te Ching
-            if(!startServer("1M5", 5710, handlers, launchOnStart))
-                return false;
+            uiServer = new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return startUIServer();
+                }
+            };
         }
-
+        List<Callable<Boolean>> configuredServers = new ArrayList<>();
         if(properties.getProperty(SERVERS_CONFIG)!=null) {
             String serversConfig = properties.getProperty(SERVERS_CONFIG);
             LOG.info("Building servers configuration: "+serversConfig);
             String[] servers = serversConfig.split(":");
             LOG.info("Number of servers to start: "+servers.length);
-            boolean launchOnStart = false;
-            if(servers.length > 0) {
-                // TODO: Support multiple servers?
-//            for(String s : servers) {
-                String s = servers[0];
-                HandlerCollection handlers = new HandlerCollection();
-
-                String[] m = s.split(",");
-                String name = m[0];
-                if(name==null){
-                    LOG.warning("Name must be provided for HTTP server.");
-                    return false;
-                }
+            for(final String s : servers) {
+                configuredServers.add(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() {
+                        return startConfiguredServer(s);
+                    }
+                });
+            }
+        }
+        List<Callable<Boolean>> bringUps = new ArrayList<>(configuredServers);
+        if(uiServer != null)
+            bringUps.add(0, uiServer);
+        List<Boolean> started = bringUp(bringUps);
+        mark = lap(timing, "servers", mark);
+        if(warmupRequests > 0) {
+            // Loopback round trips are not bus latency
+            concurrencyLimiter.resetLatency();
+        }
 
-                String type = m[1];
-                if(type==null) {
-                    LOG.warning("Type must be provided for HTTP Proxy with name="+name);
-                    return false;
-                }
+        if(uiServer != null && !started.remove(0))
+            return false;
+        if(!configuredServers.isEmpty()) {
+            if(started.contains(Boolean.FALSE)) {
+                updateStatus(SensorStatus.ERROR);
+            } else if(pushChannels) {
+                subscribePushChannels();
+                lap(timing, "subscribe", mark);
+            } else {
+                updateStatus(SensorStatus.NETWORK_CONNECTED);
+            }
+        }
 
-                String portStr = m[2];
-                if (portStr == null) {
-                    LOG.warning("Port must be provided for HTTP server with name=" + name);
-                    return false;
+        loadMonitor = LoadMonitor.fromProperties(this, properties);
+
+        lap(timing, "total", begin);
+        LOG.info("Started; timing: "+timing.toString().trim());
+        return true;
+    }
+
+    private static long lap(StringBuilder timing, String phase, long since) {
+        long now = System.currentTimeMillis();
+        timing.append(phase).append('=').append(now - since).append("ms ");
+        return now;
+    }
+
+    /**
+     * Run server bring-ups in parallel, inline when there is only one.
+     * @return result of each in order; false if it failed or threw
+     */
+    private List<Boolean> bringUp(List<Callable<Boolean>> tasks) {
+        List<Boolean> results = new ArrayList<>(tasks.size());
+        if(tasks.size() == 1) {
+            try {
+                results.add(tasks.get(0).call());
+            } catch (Exception e) {
+                LOG.warning("Server bring-up failed: "+e.getLocalizedMessage());
+                results.add(false);
+            }
+            return results;
+        }
+        if(tasks.isEmpty())
+            return results;
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(tasks.size(), Runtime.getRuntime().availableProcessors()));
+        try {
+            for(Future<Boolean> f : pool.invokeAll(tasks)) {
+                try {
+                    results.add(f.get());
+                } catch (ExecutionException e) {
+                    LOG.warning("Server bring-up failed: "+e.getCause());
+                    results.add(false);
                 }
-                int port = Integer.parseInt(portStr);
-
-                if("proxy".equals(type)) {
-                    String kandlerStr = m[3];
-                    AsynchronousEnvelopeHandler handler = null;
-//                    handlers.addHandler(new DefaultHandler());
-                    try {
-                        handler = (AsynchronousEnvelopeHandler) Class.forName(kandlerStr).newInstance();
-                        handler.setSensor(this);
-                        handler.setServiceName(name);
-                        handler.setParameters(m);
-                        handlers.addHandler(handler);
-                    } catch (InstantiationException e) {
-                        LOG.warning("Handler must be implementation of " + AsynchronousEnvelopeHandler.class.getName() + " to ensure asynchronous replies with Envelopes gets returned to calling thread.");
-                        return false;
-                    } catch (IllegalAccessException e) {
-                        LOG.warning("Getting an IllegalAccessException while attempting to instantiate Handler implementation class " + kandlerStr + ". Launch application with appropriate read access.");
-                        return false;
-                    } catch (ClassNotFoundException e) {
-                        LOG.warning("Handler implementation " + kandlerStr + " not found. Ensure library included.");
-                        return false;
-                    }
-                } else if("local".equals(type)) {
+            }
+        } catch (InterruptedException e) {
+            LOG.warning("Interrupted while starting servers.");
+            while(results.size() < tasks.size())
+                results.add(false);
+        } finally {
+            pool.shutdown();
+        }
+        return results;
+    }
 
-                    String launchOnStartStr = m[3];
-                    launchOnStart = "true".equals(launchOnStartStr);
+    private boolean startUIServer() {
+        String webDir = this.getClass().getClassLoader().getResource("io/onemfive/clearnet/server/ui").toExternalForm();
+        // Start HTTP Server for 1M5 UI
+        AsynchronousEnvelopeHandler dataHandler = new EnvelopeJSONDataHandler();
+        dataHandler.setSensor(this);
+        dataHandler.setServiceName("1M5-Data-Service");
 
-                    String spaStr = m[4];
-                    boolean spa = "true".equals(spaStr);
+        ResourceHandler resourceHandler = new ResourceHandler();
+        resourceHandler.setDirectoriesListed(false);
+        resourceHandler.setResourceBase(webDir);
 
-                    String dataHandlerStr = m[5];
-                    AsynchronousEnvelopeHandler dataHandler = null;
+        ContextHandler dataContext = new ContextHandler();
+        dataContext.setContextPath("/data/*");
+        dataContext.setHandler(dataHandler);
 
-                    String resourceDirectory = m[6];
-                    URL webDirURL = this.getClass().getClassLoader().getResource(resourceDirectory);
+        HandlerCollection handlers = new HandlerCollection();
+        handlers.addHandler(sessionHandler("1M5"));
+        handlers.addHandler(dataContext);
+        handlers.addHandler(resourceHandler);
+        handlers.addHandler(new DefaultHandler());
 
-                    String useSocketStr = m[7];
+        boolean launchOnStart = "true".equals(properties.getProperty(Config.PROP_UI_LAUNCH_ON_START));
+        // 571 BC - Birth of Laozi, Chinese Philosopher and Writer, author of Tao Te Ching
+        return startServer("1M5", 5710, handlers, launchOnStart);
+    }
 
-                    String webSocketAdapter = null;
-                    if ("true".equals(useSocketStr) && m.length > 8) {
-                        webSocketAdapter = m[8];
-                    }
-                    // TODO: Make Web Socket context path configurable
+    /**
+     * Build and start one server from its SERVERS_CONFIG entry.
+     */
+    private boolean startConfiguredServer(String s) {
+        HandlerCollection handlers = new HandlerCollection();
+        boolean launchOnStart = false;
 
-                    SessionHandler sessionHandler = new SessionHandler();
+        String[] m = s.split(",");
+        String name = m[0];
+        if(name==null){
+            LOG.warning("Name must be provided for HTTP server.");
+            return false;
+        }
 
-                    // TODO: Make data context path configurable
-                    ContextHandler dataContext = new ContextHandler();
-                    dataContext.setContextPath("/data/*");
+        String type = m[1];
+        if(type==null) {
+            LOG.warning("Type must be provided for HTTP Proxy with name="+name);
+            return false;
+        }
 
-                    ResourceHandler resourceHandler = new ResourceHandler();
-                    resourceHandler.setDirectoriesListed(false);
-                    resourceHandler.setWelcomeFiles(new String[]{"index.html"});
-                    if (webDirURL != null) {
-                        resourceHandler.setResourceBase(webDirURL.toExternalForm());
-                    }
+        String portStr = m[2];
+        if (portStr == null) {
+            LOG.warning("Port must be provided for HTTP server with name=" + name);
+            return false;
+        }
+        int port = Integer.parseInt(portStr);
 
-                    ContextHandler wsContext = null;
-                    if ("true".equals(useSocketStr)) {
-                        if (webSocketAdapter == null) {
-                            webSocket = new EnvelopeWebSocket(this);
-                            LOG.info("No custom EnvelopWebSocket class provided; using generic one.");
-                        } else {
-                            try {
-                                webSocket = (EnvelopeWebSocket) Class.forName(webSocketAdapter).newInstance();
-                                webSocket.setClearnetServerSensor(this);
-                            } catch (InstantiationException e) {
-                                LOG.warning("Unable to instantiate WebSocket of type: " + webSocketAdapter);
-                            } catch (IllegalAccessException e) {
-                                LOG.warning("Illegal Access caught when attempting to instantiate WebSocket of type: " + webSocketAdapter);
-                            } catch (ClassNotFoundException e) {
-                                LOG.warning("WebSocket class " + webSocketAdapter + " not found. Unable to instantiate.");
-                            }
-                        }
-                        if (webSocket == null) {
-                            LOG.warning("WebSocket configured to be launched yet unable to instantiate.");
-                        } else {
-                            WebSocketHandler wsHandler = new WebSocketHandler() {
-                                @Override
-                                public void configure(WebSocketServletFactory factory) {
-                                    WebSocketPolicy policy = factory.getPolicy();
-                                    // set a one hour timeout
-                                    policy.setIdleTimeout(60 * 60 * 1000);
-//                            policy.setAsyncWriteTimeout(60 * 1000);
-//                            int maxSize = 100 * 1000000;
-//                            policy.setMaxBinaryMessageSize(maxSize);
-//                            policy.setMaxBinaryMessageBufferSize(maxSize);
-//                            policy.setMaxTextMessageSize(maxSize);
-//                            policy.setMaxTextMessageBufferSize(maxSize);
-
-                                    factory.setCreator(new WebSocketCreator() {
-                                        @Override
-                                        public Object createWebSocket(ServletUpgradeRequest req, ServletUpgradeResponse resp) {
-                                            String query = req.getRequestURI().toString();
-                                            if ((query == null) || (query.length() <= 0)) {
-                                                try {
-                                                    resp.sendForbidden("Unspecified query");
-                                                } catch (IOException e) {
-
-                                                }
-                                                return null;
-                                            }
-                                            return webSocket;
-                                        }
-                                    });
-                                }
+        if("proxy".equals(type)) {
+            String kandlerStr = m[3];
+            AsynchronousEnvelopeHandler handler = null;
+//            handlers.addHandler(new DefaultHandler());
+            try {
+                handler = (AsynchronousEnvelopeHandler) Class.forName(kandlerStr).getDeclaredConstructor().newInstance();
+                handler.setSensor(this);
+                handler.setServiceName(name);
+                handler.setParameters(m);
+                handlers.addHandler(handler);
+            } catch (InstantiationException | NoSuchMethodException | InvocationTargetException e) {
+                LOG.warning("Handler must be implementation of " + AsynchronousEnvelopeHandler.class.getName() + " to ensure asynchronous replies with Envelopes gets returned to calling thread.");
+                return false;
+            } catch (IllegalAccessException e) {
+                LOG.warning("Getting an IllegalAccessException while attempting to instantiate Handler implementation class " + kandlerStr + ". Launch application with appropriate read access.");
+                return false;
+            } catch (ClassNotFoundException e) {
+                LOG.warning("Handler implementation " + kandlerStr + " not found. Ensure library included.");
+                return false;
+            }
+        } else if("local".equals(type)) {
 
-                            };
-                            wsContext = new ContextHandler();
-                            wsContext.setContextPath("/events/*");
-                            wsContext.setHandler(wsHandler);
-                        }
-                    }
+            String launchOnStartStr = m[3];
+            launchOnStart = "true".equals(launchOnStartStr);
 
-                    handlers.addHandler(sessionHandler);
-                    if (spa) {
-                        handlers.addHandler(new SPAHandler());
-                    }
-                    handlers.addHandler(dataContext);
-                    handlers.addHandler(resourceHandler);
-                    if (wsContext != null) {
-                        handlers.addHandler(wsContext);
-                    }
-                    handlers.addHandler(new DefaultHandler());
-
-                    if (dataHandlerStr != null) { // optional
-                        try {
-                            dataHandler = (AsynchronousEnvelopeHandler) Class.forName(dataHandlerStr).newInstance();
-                            dataHandler.setSensor(this);
-                            dataHandler.setServiceName(name);
-                            dataHandler.setParameters(m);
-                            dataContext.setHandler(dataHandler);
-                        } catch (InstantiationException e) {
-                            LOG.warning("Data Handler must be implementation of " + AsynchronousEnvelopeHandler.class.getName() + " to ensure asynchronous replies with Envelopes gets returned to calling thread.");
-                            return false;
-                        } catch (IllegalAccessException e) {
-                            LOG.warning("Getting an IllegalAccessException while attempting to instantiate data Handler implementation class " + dataHandlerStr + ". Launch application with appropriate read access.");
-                            return false;
-                        } catch (ClassNotFoundException e) {
-                            LOG.warning("Data Handler implementation " + dataHandlerStr + " not found. Ensure library included.");
-                            return false;
-                        }
-                    }
+            String spaStr = m[4];
+            boolean spa = "true".equals(spaStr);
+
+            String dataHandlerStr = m[5];
+            AsynchronousEnvelopeHandler dataHandler = null;
+
+            String resourceDirectory = m[6];
+            File resourceDir = filesystemResourceDir(name, resourceDirectory);
+            URL webDirURL = null;
+            if (resourceDir != null) {
+                try {
+                    webDirURL = resourceDir.toURI().toURL();
+                } catch (MalformedURLException e) {
+                    LOG.warning("Invalid resource directory "+resourceDir+": "+e.getLocalizedMessage());
+                    resourceDir = null;
                 }
+            } else if (resourceDirectory != null) {
+                webDirURL = this.getClass().getClassLoader().getResource(resourceDirectory);
+            }
+
+            String useSocketStr = m[7];
+
+            String webSocketAdapter = null;
+            if ("true".equals(useSocketStr) && m.length > 8) {
+                webSocketAdapter = m[8];
+            }
+            // TODO: Make Web Socket context path configurable
+
+            SessionHandler sessionHandler = sessionHandler(name);
+
+            // TODO: Make data context path configurable
+            ContextHandler dataContext = new ContextHandler();
+            dataContext.setContextPath("/data/*");
+
+            ResourceHandler resourceHandler = new ResourceHandler();
+            resourceHandler.setDirectoriesListed(false);
+            resourceHandler.setWelcomeFiles(new String[]{"index.html"});
+            if (webDirURL != null) {
+                resourceHandler.setResourceBase(webDirURL.toExternalForm());
+            }
+
+            ContextHandler wsContext = null;
+            if ("true".equals(useSocketStr)) {
+                // WebSocket itself is created on first browser connect
+                final String webSocketClass = webSocketAdapter;
+                pushChannels = true;
+                WebSocketHandler wsHandler = new WebSocketHandler() {
+                    @Override
+                    public void configure(WebSocketServletFactory factory) {
+                        WebSocketPolicy policy = factory.getPolicy();
+                        // set a one hour timeout
+                        policy.setIdleTimeout(60 * 60 * 1000);
+//                        policy.setAsyncWriteTimeout(60 * 1000);
+//                        int maxSize = 100 * 1000000;
+//                        policy.setMaxBinaryMessageSize(maxSize);
+//                        policy.setMaxBinaryMessageBufferSize(maxSize);
+//                        policy.setMaxTextMessageSize(maxSize);
+//                        policy.setMaxTextMessageBufferSize(maxSize);
 
-                if(!startServer(name, port, handlers, launchOnStart)) {
-                    LOG.warning("Unable to start server "+name);
-                    updateStatus(SensorStatus.ERROR);
-                } else {
-                    if(webSocket != null) {
-                        LOG.info("Subscribing WebSocket ("+webSocket.getClass().getName()+") to TEXT notifications...");
-                        // Subscribe to Text notifications
-                        Subscription subscription = new Subscription() {
+                        factory.setCreator(new WebSocketCreator() {
                             @Override
-                            public void notifyOfEvent(Envelope envelope) {
-                                webSocket.pushEnvelope(envelope);
+                            public Object createWebSocket(ServletUpgradeRequest req, ServletUpgradeResponse resp) {
+                                String query = req.getRequestURI().toString();
+                                if ((query == null) || (query.length() <= 0)) {
+                                    try {
+                                        resp.sendForbidden("Unspecified query");
+                                    } catch (IOException e) {
+
+                                    }
+                                    return null;
+                                }
+                                return webSocket(webSocketClass);
                             }
-                        };
-                        SubscriptionRequest r = new SubscriptionRequest(EventMessage.Type.TEXT, subscription);
-                        Envelope e = Envelope.documentFactory();
-                        DLC.addData(SubscriptionRequest.class, r, e);
-                        DLC.addRoute(NotificationService.class, NotificationService.OPERATION_SUBSCRIBE, e);
-                        if(send(e)) {
-                            updateStatus(SensorStatus.NETWORK_CONNECTED);
-                        } else {
-                            updateStatus(SensorStatus.ERROR);
-                            LOG.warning("Error sending subscription request to Notification Service for Web Socket.");
-                        }
-                    } else {
-                        updateStatus(SensorStatus.NETWORK_CONNECTED);
+                        });
                     }
+
+                };
+                wsContext = new ContextHandler();
+                wsContext.setContextPath("/events/*");
+                wsContext.setHandler(wsHandler);
+            }
+
+            ContextHandler sseContext = null;
+            EnvelopeEventStreamHandler sse = "true".equals(properties.getProperty(SSE_CONFIG)) ? claimEventStream(name) : null;
+            if (sse != null) {
+                sseContext = new ContextHandler();
+                sseContext.setContextPath("/sse/*");
+                sseContext.setHandler(sse);
+                pushChannels = true;
+            }
+
+            String resourceBase = webDirURL == null ? null : webDirURL.toExternalForm();
+            AssetHandler assetHandler = AssetHandler.fromProperties(properties, name, resourceBase);
+
+            handlers.addHandler(sessionHandler);
+            if (spa) {
+                handlers.addHandler(new SPAHandler(resourceBase, assetHandler));
+            }
+            handlers.addHandler(dataContext);
+            if (assetHandler != null) {
+                handlers.addHandler(assetHandler);
+            }
+            if (resourceDir != null) {
+                // Files too large to hold in memory
+                try {
+                    handlers.addHandler(new FileRangeHandler(resourceDir));
+                } catch (IOException e) {
+                    LOG.warning("Unable to serve "+resourceDir+" directly: "+e.getLocalizedMessage());
+                }
+            }
+            handlers.addHandler(resourceHandler);
+            if (wsContext != null) {
+                handlers.addHandler(wsContext);
+            }
+            if (sseContext != null) {
+                handlers.addHandler(sseContext);
+            }
+            handlers.addHandler(new DefaultHandler());
+
+            if (dataHandlerStr != null) { // optional
+                try {
+                    dataHandler = (AsynchronousEnvelopeHandler) Class.forName(dataHandlerStr).getDeclaredConstructor().newInstance();
+                    dataHandler.setSensor(this);
+                    dataHandler.setServiceName(name);
+                    dataHandler.setParameters(m);
+                    dataContext.setHandler(dataHandler);
+                } catch (InstantiationException | NoSuchMethodException | InvocationTargetException e) {
+                    LOG.warning("Data Handler must be implementation of " + AsynchronousEnvelopeHandler.class.getName() + " to ensure asynchronous replies with Envelopes gets returned to calling thread.");
+                    return false;
+                } catch (IllegalAccessException e) {
+                    LOG.warning("Getting an IllegalAccessException while attempting to instantiate data Handler implementation class " + dataHandlerStr + ". Launch application with appropriate read access.");
+                    return false;
+                } catch (ClassNotFoundException e) {
+                    LOG.warning("Data Handler implementation " + dataHandlerStr + " not found. Ensure library included.");
+                    return false;
                 }
             }
         }
 
-        LOG.info("Started.");
+        if(!startServer(name, port, handlers, launchOnStart)) {
+            LOG.warning("Unable to start server "+name);
+            return false;
+        }
         return true;
     }
 
+    /**
+     * @return filesystem directory configured for a local server or null to use the classpath
+     */
+    private File filesystemResourceDir(String serverName, String resourceDirectory) {
+        String dir = properties.getProperty(RESOURCE_DIR_PREFIX + serverName);
+        if(dir == null && resourceDirectory != null && new File(resourceDirectory).isAbsolute())
+            dir = resourceDirectory;
+        if(dir == null)
+            return null;
+        File f = new File(dir);
+        if(!f.isDirectory()) {
+            LOG.warning("Resource directory "+dir+" for "+serverName+" not found.");
+            return null;
+        }
+        return f;
+    }
+
+    /**
+     * Jetty sessions, kept on disk next to the session journal when one is
+     * configured so session ids survive restarts.
+     */
+    private SessionHandler sessionHandler(String serverName) {
+        SessionHandler sessionHandler = new SessionHandler();
+        String dir = properties.getProperty(SessionJournal.SESSIONS_DIR);
+        if(dir != null) {
+            File storeDir = new File(new File(dir, serverName), "jetty");
+            if(storeDir.isDirectory() || storeDir.mkdirs()) {
+                DefaultSessionCache sessionCache = new DefaultSessionCache(sessionHandler);
+                FileSessionDataStore store = new FileSessionDataStore();
+                store.setStoreDir(storeDir);
+                store.setDeleteUnrestorableFiles(true);
+                // Write only on change or once a minute on access
+                store.setSavePeriodSec(60);
+                sessionCache.setSessionDataStore(store);
+                sessionHandler.setSessionCache(sessionCache);
+            } else {
+                LOG.warning("Unable to create session store "+storeDir+"; sessions kept in memory");
+            }
+        }
+        return sessionHandler;
+    }
+
+    /**
+     * Shared WebSocket, instantiated on first connect.
+     * @param webSocketClass custom EnvelopeWebSocket class name or null for generic one
+     */
+    private EnvelopeWebSocket webSocket(String webSocketClass) {
+        EnvelopeWebSocket ws = webSocket;
+        if(ws != null)
+            return ws;
+        synchronized (this) {
+            if(webSocket != null)
+                return webSocket;
+            if (webSocketClass == null) {
+                ws = new EnvelopeWebSocket(this);
+                LOG.info("No custom EnvelopWebSocket class provided; using generic one.");
+            } else {
+                try {
+                    ws = (EnvelopeWebSocket) Class.forName(webSocketClass).getDeclaredConstructor().newInstance();
+                    ws.setClearnetServerSensor(this);
+                } catch (InstantiationException | NoSuchMethodException | InvocationTargetException e) {
+                    LOG.warning("Unable to instantiate WebSocket of type: " + webSocketClass);
+                } catch (IllegalAccessException e) {
+                    LOG.warning("Illegal Access caught when attempting to instantiate WebSocket of type: " + webSocketClass);
+                } catch (ClassNotFoundException e) {
+                    LOG.warning("WebSocket class " + webSocketClass + " not found. Unable to instantiate.");
+                }
+            }
+            if (ws == null)
+                LOG.warning("WebSocket configured to be launched yet unable to instantiate.");
+            webSocket = ws;
+            return ws;
+        }
+    }
+
+    /**
+     * A Jetty handler belongs to one server; SSE is served by the first local server claiming it.
+     * @return handler or null if already claimed
+     */
+    private synchronized EnvelopeEventStreamHandler claimEventStream(String serverName) {
+        if(eventStream != null) {
+            LOG.warning("SSE already served by another server; not adding it to "+serverName);
+            return null;
+        }
+        eventStream = new EnvelopeEventStreamHandler();
+        return eventStream;
+    }
+
+    private void subscribePushChannels() {
+        LOG.info("Subscribing push channels to TEXT notifications...");
+        // Subscribe to Text notifications
+        Subscription subscription = new Subscription() {
+            @Override
+            public void notifyOfEvent(Envelope envelope) {
+                EnvelopeWebSocket ws = webSocket;
+                if(ws != null)
+                    ws.pushEnvelope(envelope);
+                EnvelopeEventStreamHandler sse = eventStream;
+                if(sse != null)
+                    sse.pushEnvelope(envelope);
+            }
+        };
+        SubscriptionRequest r = new SubscriptionRequest(EventMessage.Type.TEXT, subscription);
+        Envelope e = Envelope.documentFactory();
+        DLC.addData(SubscriptionRequest.class, r, e);
+        DLC.addRoute(NotificationService.class, NotificationService.OPERATION_SUBSCRIBE, e);
+        if(send(e)) {
+            updateStatus(SensorStatus.NETWORK_CONNECTED);
+        } else {
+            updateStatus(SensorStatus.ERROR);
+            LOG.warning("Error sending subscription request to Notification Service for push channels.");
+        }
+    }
+
     private boolean startServer(String name, int port, Handler dataHandler, boolean launch) {
-        Server server = new Server(new InetSocketAddress("127.0.0.1", port));
-        server.setHandler(dataHandler);
-        LOG.info("Starting HTTP Server for "+name+" on 127.0.0.1:"+port);
+        Server server = new Server();
+        List<Connector> connectors = networkConnectors(server, name, port);
+        if(connectors.isEmpty()) {
+            LOG.warning("No TCP or Unix domain socket connector configured for server "+name);
+            return false;
+        }
+        // Warm up through an in-process connector before the network ones open
+        LocalConnector warmup = warmupRequests > 0 ? new LocalConnector(server) : null;
+        if(warmup == null) {
+            for(Connector connector : connectors)
+                server.addConnector(connector);
+        } else {
+            server.addConnector(warmup);
+        }
+        // Gate new requests while draining; statistics let Jetty wait out active requests on stop
+        AdmissionGateHandler gate = new AdmissionGateHandler(this);
+        gate.setHandler(dataHandler);
+        StatisticsHandler stats = new StatisticsHandler();
+        stats.setHandler(gate);
+        server.setHandler(stats);
+        server.setStopTimeout(drainTimeoutMs);
+        LOG.info("Starting HTTP Server for "+name+" on "+describe(connectors));
+        long begin = System.currentTimeMillis();
         try {
             server.start();
+            if(warmup != null) {
+                warmUp(name, warmup);
+                for(Connector connector : connectors) {
+                    server.addConnector(connector);
+                    if(!connector.isStarted())
+                        connector.start();
+                }
+                server.removeConnector(warmup);
+                warmup.stop();
+            }
+            publishUnixSockets(name, connectors);
 //            LOG.finest(server.dump());
-            servers.add(server);
-            LOG.info("HTTP Server for "+name+" started on 127.0.0.1:"+port);
+            synchronized (servers) {
+                servers.add(server);
+            }
+            LOG.info("HTTP Server for "+name+" started on "+describe(connectors)+" in "+(System.currentTimeMillis() - begin)+"ms");
         } catch (Exception e) {
-            LOG.severe("Exception caught while starting HTTP Server for "+name+" with port "+port+": "+e.getLocalizedMessage());
+            LOG.severe("Exception caught while starting HTTP Server for "+name+" on "+describe(connectors)+": "+e.getLocalizedMessage());
             e.printStackTrace();
+            discardBindDirs(connectors);
             return false;
         }
-        if(launch)
-            ClearnetServerUtil.launchBrowser("http://127.0.0.1:"+port+"/");
+        if(launch && hasTcp(connectors))
+            ClearnetServerUtil.launchBrowser((TlsConnectors.isConfigured(properties, name) ? "https" : "http")+"://127.0.0.1:"+port+"/");
         return true;
     }
 
+    /**
+     * TCP on 127.0.0.1 and/or a Unix domain socket, per server configuration.
+     */
+    private List<Connector> networkConnectors(Server server, String name, int port) {
+        List<Connector> connectors = new ArrayList<>();
+        if(TlsConnectors.isConfigured(properties, name)) {
+            connectors.add(TlsConnectors.create(server, properties, name, port));
+        } else if(!"false".equals(properties.getProperty(TCP_PREFIX + name))) {
+            ServerConnector connector = new ServerConnector(server);
+            connector.setHost("127.0.0.1");
+            connector.setPort(port);
+            connectors.add(connector);
+        }
+        String socketPath = properties.getProperty(UNIX_SOCKET_PREFIX + name);
+        if(socketPath != null && !socketPath.isEmpty()) {
+            Path socket = Paths.get(socketPath).toAbsolutePath();
+            if(!clearStaleSocket(socket))
+                return connectors;
+            try {
+                // Bind inside a private directory; the socket is moved into place once restricted
+                Path bindDir = Files.createTempDirectory(socket.getParent(), BIND_DIR_PREFIX,
+                        PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+                UnixSocketConnector connector = new UnixSocketConnector(server);
+                connector.setUnixSocket(bindDir.resolve(socket.getFileName()).toString());
+                connectors.add(connector);
+            } catch (IOException | UnsupportedOperationException e) {
+                LOG.warning("Unable to create private bind directory for Unix domain socket "+socketPath+": "+e.getLocalizedMessage());
+            }
+        }
+        return connectors;
+    }
 
+    /**
+     * Remove a socket left behind by an unclean exit; binding would fail.
+     * Anything that is not a socket, or a socket still accepting connections,
+     * is left in place.
+     *
+     * @return true when the path is free to bind
+     */
+    private static boolean clearStaleSocket(Path socket) {
+        int mode;
+        try {
+            mode = (Integer)Files.getAttribute(socket, "unix:mode", LinkOption.NOFOLLOW_LINKS);
+        } catch (NoSuchFileException e) {
+            return true;
+        } catch (IOException | UnsupportedOperationException e) {
+            LOG.warning("Unable to inspect Unix domain socket path "+socket+": "+e.getLocalizedMessage());
+            return false;
+        }
+        if((mode & S_IFMT) != S_IFSOCK) {
+            LOG.warning("Not replacing "+socket+": exists and is not a Unix domain socket");
+            return false;
+        }
+        try {
+            UnixSocketChannel.open(new UnixSocketAddress(socket.toFile())).close();
+            LOG.warning("Unix domain socket "+socket+" is in use by another server");
+            return false;
+        } catch (IOException e) {
+            // Nobody listening
+        }
+        try {
+            Files.deleteIfExists(socket);
+            return true;
+        } catch (IOException e) {
+            LOG.warning("Unable to remove stale Unix domain socket "+socket+": "+e.getLocalizedMessage());
+            return false;
+        }
+    }
 
-    @Override
-    public boolean pause() {
+    /**
+     * Apply configured permissions to Unix domain sockets bound in their private
+     * directory, then move each into its configured path.
+     */
+    private void publishUnixSockets(String name, List<Connector> connectors) {
+        String permissions = properties.getProperty(UNIX_SOCKET_PERMISSIONS_PREFIX + name, "rw-------");
+        Path socket = Paths.get(properties.getProperty(UNIX_SOCKET_PREFIX + name, "")).toAbsolutePath();
+        for(Connector connector : connectors) {
+            if(!(connector instanceof UnixSocketConnector))
+                continue;
+            UnixSocketConnector unixConnector = (UnixSocketConnector)connector;
+            Path bound = Paths.get(unixConnector.getUnixSocket());
+            try {
+                Files.setPosixFilePermissions(bound, PosixFilePermissions.fromString(permissions));
+            } catch (IOException | UnsupportedOperationException | IllegalArgumentException e) {
+                LOG.warning("Unable to set permissions "+permissions+" on "+bound+": "+e.getLocalizedMessage());
+            }
+            try {
+                Files.move(bound, socket, StandardCopyOption.ATOMIC_MOVE);
+                // Closing the connector deletes the socket at its configured path
+                unixConnector.setUnixSocket(socket.toString());
+            } catch (IOException e) {
+                LOG.warning("Unable to move Unix domain socket into "+socket+"; serving on "+bound+": "+e.getLocalizedMessage());
+                continue;
+            }
+            removeBindDir(bound);
+        }
+    }
+
+    /**
+     * Stop Unix domain socket connectors still bound in their private directory
+     * and remove the directory; used when the server fails to start.
+     */
+    private static void discardBindDirs(List<Connector> connectors) {
+        for(Connector connector : connectors) {
+            if(!(connector instanceof UnixSocketConnector))
+                continue;
+            Path bound = Paths.get(((UnixSocketConnector)connector).getUnixSocket());
+            if(!bound.getParent().getFileName().toString().startsWith(BIND_DIR_PREFIX))
+                continue;
+            try {
+                connector.stop();
+                Files.deleteIfExists(bound);
+            } catch (Exception e) {
+                LOG.warning("Unable to close Unix domain socket "+bound+": "+e.getLocalizedMessage());
+            }
+            removeBindDir(bound);
+        }
+    }
+
+    /**
+     * Remove the private directory a Unix domain socket was bound in.
+     */
+    private static void removeBindDir(Path bound) {
+        try {
+            Files.deleteIfExists(bound.getParent());
+        } catch (IOException e) {
+            LOG.warning("Unable to remove Unix domain socket bind directory "+bound.getParent()+": "+e.getLocalizedMessage());
+        }
+    }
+
+    private static boolean hasTcp(List<Connector> connectors) {
+        for(Connector connector : connectors) {
+            if(connector instanceof ServerConnector)
+                return true;
+        }
         return false;
     }
 
+    private static String describe(List<Connector> connectors) {
+        StringBuilder sb = new StringBuilder();
+        for(Connector connector : connectors) {
+            if(sb.length() > 0)
+                sb.append(", ");
+            if(connector instanceof UnixSocketConnector)
+                sb.append("unix:").append(((UnixSocketConnector)connector).getUnixSocket());
+            else if(connector instanceof ServerConnector)
+                sb.append(connector.getConnectionFactory(SslConnectionFactory.class) == null ? "http://" : "https://")
+                        .append(((ServerConnector)connector).getHost()).append(':').append(((ServerConnector)connector).getPort());
+        }
+        return sb.toString();
+    }
+
+
+
+    /**
+     * Drive synthetic GET and POST requests through the server's real handler
+     * chain so request parsing, Envelope building and JSON serialization are
+     * compiled before the first client arrives. Their Envelopes loop back
+     * without reaching the bus.
+     */
+    private void warmUp(String name, LocalConnector local) {
+        long begin = System.currentTimeMillis();
+        int failed = 0;
+        for(int i = 0; i < warmupRequests; i++) {
+            String path = warmupPaths[i % warmupPaths.length].trim();
+            String request;
+            if(i % 2 == 0) {
+                request = "GET "+path+"?warmup="+i+" HTTP/1.1\r\nHost: 127.0.0.1\r\nConnection: close\r\n\r\n";
+            } else {
+                String body = "{\"warmup\":"+i+"}";
+                request = "POST "+path+" HTTP/1.1\r\nHost: 127.0.0.1\r\nContent-Type: application/json\r\nContent-Length: "+body.length()+"\r\nConnection: close\r\n\r\n"+body;
+            }
+            try {
+                if(local.getResponse(request, 5, TimeUnit.SECONDS) == null)
+                    failed++;
+            } catch (Exception e) {
+                failed++;
+            }
+        }
+        LOG.info("Warmed up "+name+" with "+warmupRequests+" requests ("+failed+" failed) in "+(System.currentTimeMillis() - begin)+"ms");
+    }
+
+    /**
+     * Backpressure from the SensorManager: answer new requests with 503,
+     * suspend inbound WebSocket frames and let in-flight work drain.
+     * Reports PAUSING until drained or the drain timeout passes, then PAUSED;
+     * the SensorManager is not blocked meanwhile.
+     */
     @Override
-    public boolean unpause() {
-        return false;
+    public synchronized boolean pause() {
+        if(paused)
+            return true;
+        LOG.info("Pausing...");
+        updateStatus(SensorStatus.PAUSING);
+        paused = true;
+        if(webSocket != null)
+            webSocket.suspendInbound();
+        final int pause = ++pauses;
+        final long deadline = System.currentTimeMillis() + drainTimeoutMs;
+        Thread drainer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                boolean drained = drain(deadline);
+                synchronized (ClearnetServerSensor.this) {
+                    // Unpaused, or paused again, meanwhile
+                    if(!paused || pause != pauses)
+                        return;
+                    updateStatus(SensorStatus.PAUSED);
+                }
+                LOG.info(drained ? "Paused; in-flight requests drained." : "Paused; "+concurrencyLimiter.getInFlight()+" requests still in flight.");
+            }
+        }, "ClearnetPauseDrain");
+        drainer.setDaemon(true);
+        drainer.start();
+        return true;
+    }
+
+    @Override
+    public synchronized boolean unpause() {
+        if(!paused)
+            return true;
+        LOG.info("Unpausing...");
+        updateStatus(SensorStatus.UNPAUSING);
+        if(webSocket != null)
+            webSocket.resumeInbound();
+        paused = false;
+        updateStatus(loadStatus());
+        LOG.info("Unpaused.");
+        return true;
     }
 
     @Override
     public boolean restart() {
         LOG.info("Restarting...");
-        for(Server server : servers) {
-            try {
-                server.stop();
-                server.start();
-            } catch (Exception e) {
-                LOG.warning(e.getLocalizedMessage());
+        updateStatus(SensorStatus.RESTARTING);
+        // Connectors stay bound throughout; only the handler trees are cycled once drained.
+        // New requests wait at the gate meanwhile rather than being turned away.
+        restarting = true;
+        try {
+            closeEventStreams();
+            drain(System.currentTimeMillis() + drainTimeoutMs);
+            for(Server server : servers) {
+                AdmissionGateHandler gate = server.getChildHandlerByClass(AdmissionGateHandler.class);
+                Handler handler = gate == null ? null : gate.getHandler();
+                if(handler == null)
+                    continue;
+                try {
+                    handler.stop();
+                    handler.start();
+                } catch (Exception e) {
+                    LOG.warning(e.getLocalizedMessage());
+                }
+            }
+        } finally {
+            synchronized (restartLock) {
+                restarting = false;
+                restartLock.notifyAll();
             }
         }
+        updateStatus(loadStatus());
         LOG.info("Restarted.");
         return true;
     }
 
+    private void closeEventStreams() {
+        if(eventStream != null)
+            eventStream.closeAll(); // long-lived; clients reconnect elsewhere or after restart
+    }
+
+    /**
+     * Wait until no requests are held waiting on the bus or the deadline passes.
+     * @return true if fully drained
+     */
+    private boolean drain(long deadline) {
+        while(concurrencyLimiter.getInFlight() > 0) {
+            if(System.currentTimeMillis() >= deadline) {
+                LOG.warning("Drain deadline passed with "+concurrencyLimiter.getInFlight()+" requests still held.");
+                return false;
+            }
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     @Override
     public boolean shutdown() {
         LOG.info("Shutting down...");
+        updateStatus(SensorStatus.SHUTTING_DOWN);
+        accepting = false;
         for(Server server : servers) {
             try {
+                server.setStopTimeout(0);
                 server.stop();
             } catch (Exception e) {
                 LOG.warning(e.getLocalizedMessage());
             }
         }
+        stopStages();
+        updateStatus(SensorStatus.SHUTDOWN);
         LOG.info("Shutdown.");
         return true;
     }
 
+    private void stopStages() {
+        if(loadMonitor != null)
+            loadMonitor.shutdown();
+        if(busBatcher != null)
+            busBatcher.shutdown();
+        if(replyDispatcher != null)
+            replyDispatcher.shutdown();
+        if(tracer != null)
+            tracer.close();
+    }
+
+    /**
+     * Stop accepting, let held requests finish within the drain timeout, then close.
+     */
     @Override
     public boolean gracefulShutdown() {
-        return shutdown();
+        LOG.info("Gracefully shutting down...");
+        updateStatus(SensorStatus.GRACEFULLY_SHUTTING_DOWN);
+        accepting = false;
+        long deadline = System.currentTimeMillis() + drainTimeoutMs;
+        closeEventStreams();
+        drain(deadline);
+        for(Server server : servers) {
+            try {
+                // Jetty closes connectors then waits out any request still active
+                server.setStopTimeout(Math.max(1, deadline - System.currentTimeMillis()));
+                server.stop();
+            } catch (Exception e) {
+                LOG.warning(e.getLocalizedMessage());
+            }
+        }
+        stopStages();
+        updateStatus(SensorStatus.GRACEFULLY_SHUTDOWN);
+        LOG.info("Gracefully shutdown.");
+        return true;
     }
 
     public static void main(String[] args) {
         Properties p = new Properties();
+        if(args.length > 0 && "--cds-training".equals(args[0])) {
+            // Exercise startup and warm-up then exit so the JVM can dump a class-data-sharing archive
+            p.setProperty(SERVERS_CONFIG, "cds,local,0,false,false,"+EnvelopeJSONDataHandler.class.getName()+",none,false");
+            p.setProperty(WARMUP_REQUESTS, args.length > 1 ? args[1] : "2000");
+            ClearnetServerSensor sensor = new ClearnetServerSensor(null, null, null);
+            sensor.start(p);
+            sensor.shutdown();
+            return;
+        }
         p.setProperty("1m5.ui","true");
         p.setProperty("1m5.ui.launchOnStart","true");
         ClearnetServerSensor sensor = new ClearnetServerSensor(null, null, null);
@@ -15,6 +15,10 @@ public class ClearnetSession {
     private DID did = new DID();
     private long lastRequestTime = System.currentTimeMillis();
     private boolean authenticated = false;
+    // Scheduling state kept compact: see SessionScheduler
+    private int inFlight = 0;
+    private float tokens = -1;
+    private long tokensRefilledAt;
 
     public ClearnetSession(String id) {
         this.id = id;
@@ -43,4 +47,29 @@ public class ClearnetSession {
     public void setAuthenticated(boolean authenticated) {
         this.authenticated = authenticated;
     }
+
+    int getInFlight() {
+        return inFlight;
+    }
+
+    void setInFlight(int inFlight) {
+        this.inFlight = inFlight;
+    }
+
+    /**
+     * Token bucket check refilling at rate per second up to burst.
+     * @return true if a token was available and consumed
+     */
+    synchronized boolean tryConsumeToken(double rate, int burst, long nowNanos) {
+        if(tokens < 0) {
+            tokens = burst;
+        } else {
+            tokens = (float)Math.min(burst, tokens + (nowNanos - tokensRefilledAt) * rate / 1e9);
+        }
+        tokensRefilledAt = nowNanos;
+        if(tokens < 1)
+            return false;
+        tokens--;
+        return true;
+    }
 }
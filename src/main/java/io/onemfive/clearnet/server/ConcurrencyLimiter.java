@@ -0,0 +1,156 @@
+package io.onemfive.clearnet.server;
+
+import java.util.Properties;
+import java.util.logging.Logger;
+
+/**
+ * Adaptive limit on the number of envelopes in flight on the bus
+ * shared by all {@link AsynchronousEnvelopeHandler}s of a sensor.
+ *
+ * Limit follows a gradient of long-term over observed bus round-trip
+ * time: it grows while latency stays near its long-term average and
+ * shrinks as latency rises (queuing downstream). Timed out holds back
+ * off multiplicatively. Requests beyond the limit are rejected up front
+ * so callers can answer 503 with Retry-After instead of queuing.
+ *
+ * @author objectorange
+ */
+public class ConcurrencyLimiter {
+
+    private static Logger LOG = Logger.getLogger(ConcurrencyLimiter.class.getName());
+
+    public static final String LIMIT_INITIAL = "1m5.sensors.clearnet.server.limit.initial";
+    public static final String LIMIT_MIN = "1m5.sensors.clearnet.server.limit.min";
+    public static final String LIMIT_MAX = "1m5.sensors.clearnet.server.limit.max";
+    /**
+     * Ratio of observed to long-term round-trip time tolerated before limit decreases.
+     */
+    public static final String LIMIT_TOLERANCE = "1m5.sensors.clearnet.server.limit.tolerance";
+
+    private static final double SMOOTHING = 0.2;
+    private static final double LONG_RTT_ALPHA = 0.01;
+    private static final double BACKOFF = 0.9;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final double tolerance;
+
+    private double limit;
+    private int inFlight = 0;
+    private double longRtt = 0;
+    private long rejected = 0;
+    private long completed = 0;
+    private long dropped = 0;
+
+    public ConcurrencyLimiter() {
+        this(20, 4, 200, 2.0);
+    }
+
+    public ConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit, double tolerance) {
+        this.limit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.tolerance = tolerance;
+    }
+
+    public static ConcurrencyLimiter fromProperties(Properties p) {
+        ConcurrencyLimiter d = new ConcurrencyLimiter();
+        if(p == null)
+            return d;
+        try {
+            return new ConcurrencyLimiter(
+                    Integer.parseInt(p.getProperty(LIMIT_INITIAL, String.valueOf((int)d.limit))),
+                    Integer.parseInt(p.getProperty(LIMIT_MIN, String.valueOf(d.minLimit))),
+                    Integer.parseInt(p.getProperty(LIMIT_MAX, String.valueOf(d.maxLimit))),
+                    Double.parseDouble(p.getProperty(LIMIT_TOLERANCE, String.valueOf(d.tolerance))));
+        } catch (NumberFormatException e) {
+            LOG.warning("Invalid concurrency limit configuration; using defaults: "+e.getLocalizedMessage());
+            return d;
+        }
+    }
+
+    /**
+     * @return true if envelope may be sent to the bus; caller must then release()
+     */
+    public synchronized boolean tryAcquire() {
+        if(inFlight >= (int)limit) {
+            rejected++;
+            return false;
+        }
+        inFlight++;
+        return true;
+    }
+
+    /**
+     * @param rttMs observed bus round-trip time in milliseconds
+     * @param dropped true when hold timed out without a reply
+     */
+    public synchronized void release(long rttMs, boolean dropped) {
+        int wasInFlight = inFlight;
+        if(inFlight > 0)
+            inFlight--;
+        completed++;
+        if(dropped) {
+            this.dropped++;
+            limit = Math.max(minLimit, limit * BACKOFF);
+            return;
+        }
+        double rtt = Math.max(1, rttMs);
+        longRtt = longRtt == 0 ? rtt : longRtt * (1 - LONG_RTT_ALPHA) + rtt * LONG_RTT_ALPHA;
+        // Do not grow while application-limited
+        if(wasInFlight < limit / 2 && rtt <= longRtt)
+            return;
+        double gradient = Math.max(0.5, Math.min(1.0, tolerance * longRtt / rtt));
+        double newLimit = limit * gradient + Math.sqrt(limit);
+        newLimit = limit * (1 - SMOOTHING) + newLimit * SMOOTHING;
+        limit = Math.max(minLimit, Math.min(maxLimit, newLimit));
+    }
+
+    /**
+     * Forget latency history, e.g. after warm-up traffic that never crossed the bus.
+     */
+    public synchronized void resetLatency() {
+        longRtt = 0;
+    }
+
+    /**
+     * Release without a latency sample, e.g. when the envelope never reached the bus.
+     */
+    public synchronized void cancel() {
+        if(inFlight > 0)
+            inFlight--;
+    }
+
+    /**
+     * @return seconds a rejected client should wait before retrying
+     */
+    public synchronized int getRetryAfterSeconds() {
+        return (int)Math.max(1, Math.ceil(longRtt / 1000));
+    }
+
+    public synchronized int getLimit() {
+        return (int)limit;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    public synchronized long getRejected() {
+        return rejected;
+    }
+
+    /**
+     * @return holds released with a latency sample, including timed out ones
+     */
+    public synchronized long getCompleted() {
+        return completed;
+    }
+
+    /**
+     * @return holds that timed out without a reply
+     */
+    public synchronized long getDropped() {
+        return dropped;
+    }
+}
@@ -0,0 +1,169 @@
+package io.onemfive.clearnet.server;
+
+import io.onemfive.data.Envelope;
+import io.onemfive.sensors.SensorManager;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Optional stage putting a queue between request threads and the bus.
+ *
+ * Request threads only enqueue and return to their hold; a single
+ * submitter thread drains up to N envelopes per wake-up and calls
+ * SensorManager.sendToBus() once for each, as the SensorManager has no
+ * bulk submission. What it buys is request threads no longer contending
+ * on the bus's own submission path, and fewer submitter wake-ups under
+ * load; it costs a thread hop per envelope. That only pays off when
+ * sendToBus() is contended, so it is off unless a batch size is
+ * configured. The wait window for filling a drain adapts to load: it
+ * collapses to zero while drains hold a single envelope and widens up
+ * to its maximum while they fill.
+ *
+ * An envelope the SensorManager refuses is returned to the sensor as
+ * failed; the rest of its drain still goes.
+ *
+ * @author objectorange
+ */
+public class EnvelopeBatcher implements Runnable {
+
+    private static Logger LOG = Logger.getLogger(EnvelopeBatcher.class.getName());
+
+    /**
+     * Maximum envelopes per batch; 1 or less (default) disables batching.
+     */
+    public static final String BATCH_SIZE = "1m5.sensors.clearnet.server.bus.batch.size";
+    /**
+     * Maximum time in microseconds to wait for a batch to fill under load.
+     */
+    public static final String BATCH_WINDOW_MICROS = "1m5.sensors.clearnet.server.bus.batch.windowMicros";
+
+    private final ClearnetServerSensor sensor;
+    private final SensorManager sensorManager;
+    private final int maxBatch;
+    private final long maxWindowNanos;
+    private final BlockingQueue<Envelope> queue;
+    private long windowNanos = 0;
+    private volatile boolean running = true;
+    private Thread thread;
+
+    public EnvelopeBatcher(ClearnetServerSensor sensor, SensorManager sensorManager, int maxBatch, long maxWindowMicros) {
+        this.sensor = sensor;
+        this.sensorManager = sensorManager;
+        this.maxBatch = maxBatch;
+        this.maxWindowNanos = maxWindowMicros * 1000;
+        this.queue = new ArrayBlockingQueue<>(maxBatch * 64);
+    }
+
+    /**
+     * @return started batcher or null when batching is not configured
+     */
+    public static EnvelopeBatcher fromProperties(ClearnetServerSensor sensor, SensorManager sensorManager, Properties p) {
+        if(p == null || p.getProperty(BATCH_SIZE) == null)
+            return null;
+        try {
+            int size = Integer.parseInt(p.getProperty(BATCH_SIZE));
+            if(size <= 1)
+                return null;
+            long window = Long.parseLong(p.getProperty(BATCH_WINDOW_MICROS, "50"));
+            EnvelopeBatcher batcher = new EnvelopeBatcher(sensor, sensorManager, size, window);
+            batcher.start();
+            LOG.info("Bus submission batching: size="+size+", window="+window+"us");
+            return batcher;
+        } catch (NumberFormatException e) {
+            LOG.warning("Invalid bus batching configuration; batching disabled: "+e.getLocalizedMessage());
+            return null;
+        }
+    }
+
+    void start() {
+        thread = new Thread(this, "ClearnetBusBatcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @return false if queue is full and caller should send directly
+     */
+    public boolean submit(Envelope e) {
+        return queue.offer(e);
+    }
+
+    @Override
+    public void run() {
+        List<Envelope> batch = new ArrayList<>(maxBatch);
+        while(running) {
+            try {
+                batch.add(queue.take());
+                queue.drainTo(batch, maxBatch - batch.size());
+                if(batch.size() < maxBatch && windowNanos > 0) {
+                    long deadline = System.nanoTime() + windowNanos;
+                    long remaining = windowNanos;
+                    while(batch.size() < maxBatch && remaining > 0) {
+                        Envelope e = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                        if(e == null)
+                            break;
+                        batch.add(e);
+                        queue.drainTo(batch, maxBatch - batch.size());
+                        remaining = deadline - System.nanoTime();
+                    }
+                }
+                adapt(batch.size());
+                for(Envelope e : batch) {
+                    send(e);
+                }
+            } catch (InterruptedException e) {
+                running = false;
+                for(Envelope pending : batch) {
+                    send(pending);
+                }
+            } finally {
+                batch.clear();
+            }
+        }
+        // Do not strand envelopes queued at shutdown
+        Envelope e;
+        while((e = queue.poll()) != null) {
+            send(e);
+        }
+    }
+
+    /**
+     * Hand one envelope to the bus, reporting a failure for it alone.
+     */
+    private void send(Envelope e) {
+        try {
+            sensorManager.sendToBus(e);
+        } catch (Exception ex) {
+            LOG.warning("Failed sending envelope to bus: "+ex.getLocalizedMessage());
+            sensor.sendFailed(e);
+        }
+    }
+
+    private void adapt(int batchSize) {
+        if(batchSize <= 1) {
+            // Low rate: stop waiting
+            windowNanos = windowNanos / 2;
+            if(windowNanos < 1000)
+                windowNanos = 0;
+        } else if(batchSize >= maxBatch / 2) {
+            // Drains filling: allow more time to amortize wake-ups
+            windowNanos = Math.min(maxWindowNanos, Math.max(1000, windowNanos * 2));
+        }
+    }
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    public void shutdown() {
+        running = false;
+        if(thread != null)
+            thread.interrupt();
+    }
+}
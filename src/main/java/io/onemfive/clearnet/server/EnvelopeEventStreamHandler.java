@@ -0,0 +1,328 @@
+package io.onemfive.clearnet.server;
+
+import io.onemfive.data.Envelope;
+import io.onemfive.data.EventMessage;
+import io.onemfive.data.util.DLC;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Server-Sent Events (text/event-stream) push channel.
+ *
+ * Lightweight alternative to {@link EnvelopeWebSocket} for clients
+ * only needing server-to-client notifications. Fed by the same
+ * NotificationService subscription through pushEnvelope().
+ *
+ * Each client gets a bounded buffer drained with async servlet output.
+ * A client falling too far behind is disconnected; EventSource reconnects
+ * on its own sending Last-Event-ID and is replayed from a small in-memory
+ * ring of the most recent events.
+ *
+ * A comment line is sent to every client each keep-alive interval so
+ * quiet streams are not closed by the connector's idle timeout.
+ *
+ * @author objectorange
+ */
+public class EnvelopeEventStreamHandler extends AbstractHandler {
+
+    private static Logger LOG = Logger.getLogger(EnvelopeEventStreamHandler.class.getName());
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    public static int DEFAULT_CLIENT_BUFFER_SIZE = 64;
+    public static int DEFAULT_REPLAY_RING_SIZE = 128;
+    public static int RECONNECT_DELAY_MS = 3 * 1000;
+    public static int DEFAULT_KEEP_ALIVE_MS = 15 * 1000;
+
+    private static final byte[] KEEP_ALIVE = ":\n\n".getBytes(UTF8);
+
+    private final int clientBufferSize;
+    private final long keepAliveMs;
+    private ScheduledExecutorService keepAlive;
+    private final byte[][] ring;
+    private final long[] ringIds;
+    private long nextEventId = 1;
+    private final Object ringLock = new Object();
+
+    private final List<EventStreamClient> clients = new CopyOnWriteArrayList<>();
+
+    public EnvelopeEventStreamHandler() {
+        this(DEFAULT_CLIENT_BUFFER_SIZE, DEFAULT_REPLAY_RING_SIZE, DEFAULT_KEEP_ALIVE_MS);
+    }
+
+    public EnvelopeEventStreamHandler(int clientBufferSize, int replayRingSize, long keepAliveMs) {
+        this.clientBufferSize = clientBufferSize;
+        this.keepAliveMs = keepAliveMs;
+        this.ring = new byte[replayRingSize][];
+        this.ringIds = new long[replayRingSize];
+    }
+
+    @Override
+    protected void doStart() throws Exception {
+        keepAlive = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "ClearnetSSEKeepAlive");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        keepAlive.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                for(EventStreamClient client : clients) {
+                    // A client with events still buffered is not idle
+                    if(client.queued() == 0 && client.offer(KEEP_ALIVE))
+                        client.drain();
+                }
+            }
+        }, keepAliveMs, keepAliveMs, TimeUnit.MILLISECONDS);
+        super.doStart();
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        if(keepAlive != null)
+            keepAlive.shutdownNow();
+        super.doStop();
+    }
+
+    @Override
+    public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        if(baseRequest.isHandled())
+            return;
+        if(!"GET".equalsIgnoreCase(request.getMethod())) {
+            response.setStatus(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+            baseRequest.setHandled(true);
+            return;
+        }
+        long lastEventId = parseLastEventId(request);
+        LOG.info("SSE client connecting; Last-Event-ID="+lastEventId);
+
+        response.setStatus(200);
+        response.setContentType("text/event-stream");
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Cache-Control", "no-cache");
+        response.setHeader("X-Accel-Buffering", "no");
+
+        AsyncContext async = request.startAsync();
+        async.setTimeout(0); // held open until client leaves
+        EventStreamClient client = new EventStreamClient(async, response.getOutputStream());
+        async.addListener(client);
+        client.offer(("retry: " + RECONNECT_DELAY_MS + "\n\n").getBytes(UTF8));
+        client.out.setWriteListener(client); // drains on onWritePossible()
+
+        // Replay and registration under the ring lock so no event is missed or sent twice
+        synchronized (ringLock) {
+            if(lastEventId >= 0) {
+                long oldest = Math.max(1, nextEventId - ring.length);
+                for(long id = Math.max(oldest, lastEventId + 1); id < nextEventId; id++) {
+                    int i = (int)(id % ring.length);
+                    if(ringIds[i] == id)
+                        client.offer(ring[i]);
+                }
+            }
+            clients.add(client);
+        }
+        baseRequest.setHandled(true);
+        client.drain();
+    }
+
+    /**
+     * Push Envelope's text event to all connected clients.
+     */
+    public void pushEnvelope(Envelope e) {
+        EventMessage em = DLC.getEventMessage(e);
+        Object obj = em == null ? null : em.getMessage();
+        if(!(obj instanceof String)) {
+            LOG.warning("Object received not a String and thus not handled by event stream. Ignoring.");
+            return;
+        }
+        List<EventStreamClient> overflowed = null;
+        synchronized (ringLock) {
+            long id = nextEventId++;
+            byte[] frame = frame(id, (String)obj);
+            int i = (int)(id % ring.length);
+            ring[i] = frame;
+            ringIds[i] = id;
+            for(EventStreamClient client : clients) {
+                if(!client.offer(frame)) {
+                    if(overflowed == null)
+                        overflowed = new ArrayList<>();
+                    overflowed.add(client);
+                }
+            }
+        }
+        if(overflowed != null) {
+            for(EventStreamClient client : overflowed) {
+                LOG.info("SSE client buffer full; disconnecting to force Last-Event-ID replay.");
+                client.close();
+            }
+        }
+        for(EventStreamClient client : clients) {
+            client.drain();
+        }
+    }
+
+    /**
+     * Disconnect all clients, e.g. when draining for shutdown.
+     */
+    public void closeAll() {
+        for(EventStreamClient client : clients) {
+            client.close();
+        }
+    }
+
+    public int getClientCount() {
+        return clients.size();
+    }
+
+    /**
+     * @return events buffered across all clients not yet written
+     */
+    public int getQueuedEvents() {
+        int queued = 0;
+        for(EventStreamClient client : clients) {
+            queued += client.queued();
+        }
+        return queued;
+    }
+
+    private static byte[] frame(long id, String txt) {
+        StringBuilder sb = new StringBuilder(txt.length() + 32);
+        sb.append("id: ").append(id).append('\n');
+        int start = 0;
+        int end;
+        while((end = txt.indexOf('\n', start)) >= 0) {
+            sb.append("data: ").append(txt, start, end).append('\n');
+            start = end + 1;
+        }
+        sb.append("data: ").append(txt, start, txt.length()).append("\n\n");
+        return sb.toString().getBytes(UTF8);
+    }
+
+    private static long parseLastEventId(HttpServletRequest request) {
+        String lastEventId = request.getHeader("Last-Event-ID");
+        if(lastEventId == null)
+            lastEventId = request.getParameter("lastEventId");
+        if(lastEventId == null)
+            return -1;
+        try {
+            return Long.parseLong(lastEventId.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private class EventStreamClient implements WriteListener, AsyncListener {
+        private final AsyncContext async;
+        private final ServletOutputStream out;
+        private final ArrayDeque<byte[]> queue = new ArrayDeque<>();
+        private boolean unflushed = false;
+        private boolean closed = false;
+
+        private EventStreamClient(AsyncContext async, ServletOutputStream out) {
+            this.async = async;
+            this.out = out;
+        }
+
+        /**
+         * @return false when buffer is full
+         */
+        private synchronized boolean offer(byte[] frame) {
+            if(closed)
+                return true;
+            if(queue.size() >= clientBufferSize)
+                return false;
+            queue.addLast(frame);
+            return true;
+        }
+
+        private synchronized int queued() {
+            return queue.size();
+        }
+
+        private synchronized void drain() {
+            if(closed)
+                return;
+            try {
+                while(out.isReady()) {
+                    byte[] frame = queue.pollFirst();
+                    if(frame == null) {
+                        if(!unflushed)
+                            return;
+                        unflushed = false;
+                        out.flush();
+                    } else {
+                        out.write(frame);
+                        unflushed = true;
+                    }
+                }
+            } catch (IOException ex) {
+                LOG.info("SSE client write failed: "+ex.getLocalizedMessage());
+                close();
+            }
+        }
+
+        private synchronized void close() {
+            if(closed)
+                return;
+            closed = true;
+            queue.clear();
+            clients.remove(this);
+            try {
+                async.complete();
+            } catch (IllegalStateException ex) {
+                // already completed
+            }
+        }
+
+        @Override
+        public void onWritePossible() {
+            drain();
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            close();
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+            close();
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+            close();
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+            close();
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {}
+    }
+
+}
@@ -11,7 +11,6 @@ import io.onemfive.data.util.DLC;
 import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.handler.DefaultHandler;
 
-import javax.servlet.MultipartConfigElement;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -20,6 +19,13 @@ import java.io.*;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
@@ -30,28 +36,84 @@ import java.util.logging.Logger;
  *  - serializing the Envelope into JSON
  *  - setting up Response letting it return
  *
+ * Request bodies sent as application/cbor and responses for clients
+ * preferring it in Accept use CBOR instead of JSON; see {@link CborCodec}.
+ *
+ * Clients accepting application/x-ndjson may be answered incrementally:
+ * the Envelope carries {@link #STREAM} and the service replies with any
+ * number of Envelopes of the same id flagged {@link #PARTIAL}, then one
+ * without it. Each content is written and flushed as one JSON line as it
+ * arrives, followed by a terminal {"done":true,"records":n} line, or
+ * {"done":false,"status":..} when the stream is cut short.
+ *
  * @author objectorange
  */
 public class EnvelopeJSONDataHandler extends DefaultHandler implements AsynchronousEnvelopeHandler {
 
     private static Logger LOG = Logger.getLogger(EnvelopeJSONDataHandler.class.getName());
 
+    public static long DEFAULT_HOLD_TIMEOUT_MS = 30 * 1000;
+
+    /**
+     * POST a JSON array of operations {"path":..,"method":..,"query":{..},"headers":{..},"body":{..}}
+     * to have them routed concurrently; results stream back as a JSON array of
+     * {"index":..,"status":..,"body":..} in completion order.
+     * Each operation carries only its own headers, not those of the batch request.
+     */
+    public static final String BATCH_PATH = "/_batch";
+    public static int MAX_BATCH_SIZE = 100;
+
+    public static final String NDJSON = "application/x-ndjson";
+    /**
+     * Envelope header set to true when the client accepts a streamed answer.
+     */
+    public static final String STREAM = "1m5.sensors.clearnet.server.stream";
+    /**
+     * Reply header set to true on each partial result; the final reply omits it.
+     */
+    public static final String PARTIAL = "1m5.sensors.clearnet.server.partial";
+    /**
+     * Session id of warm-up requests; not a Jetty session id, never tracked.
+     */
+    static final String WARMUP_SESSION_ID = "1m5-warmup";
+
     protected ClearnetServerSensor sensor;
-    private Map<Long,ClientHold> requests = new HashMap<>();
-    private String id;
+    private Map<Long,ClientHold> requests = new ConcurrentHashMap<>();
+    private int id;
     private String serviceName;
     private String[] parameters;
-    protected Map<String,ClearnetSession> activeSessions = new HashMap<>();
+    protected Map<String,ClearnetSession> activeSessions = new ConcurrentHashMap<>();
+    private SessionScheduler scheduler;
+    private ResponseCache cache;
+    private HoldDeadlines deadlines = new HoldDeadlines(DEFAULT_HOLD_TIMEOUT_MS);
+    private SessionJournal journal;
+    // Cache key -> holds waiting on the same in-flight VIEW; first is the leader sent to the bus
+    private final Map<String,List<ClientHold>> inFlight = new HashMap<>();
 
     public EnvelopeJSONDataHandler() {}
 
     public void setSensor(ClearnetServerSensor sensor) {
         this.sensor = sensor;
         id = sensor.registerHandler(this);
+        cache = ResponseCache.fromProperties(sensor.getProperties());
+        scheduler = SessionScheduler.fromProperties(sensor.getProperties());
     }
 
     public void setServiceName(String serviceName) {
         this.serviceName = serviceName;
+        if(sensor != null) {
+            deadlines = HoldDeadlines.fromProperties(sensor.getProperties(), serviceName, DEFAULT_HOLD_TIMEOUT_MS);
+            if(journal == null)
+                journal = SessionJournal.fromProperties(sensor.getProperties(), serviceName, activeSessions);
+        }
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        // Capture request times too before restart or shutdown
+        if(journal != null)
+            journal.snapshot();
+        super.doStop();
     }
 
     public void setParameters(String[] parameters) {
@@ -93,59 +155,616 @@ public class EnvelopeJSONDataHandler extends DefaultHandler implements Asynchron
         long now = System.currentTimeMillis();
         List<ClearnetSession> expiredSessions = new ArrayList<>();
         for(ClearnetSession session : activeSessions.values()) {
-            if(session.getLastRequestTime() + now > ClearnetSession.SESSION_INACTIVITY_INTERVAL * 1000)
+            if(now - session.getLastRequestTime() > ClearnetSession.SESSION_INACTIVITY_INTERVAL * 1000)
                 expiredSessions.add(session);
         }
         for(ClearnetSession session : expiredSessions) {
             activeSessions.remove(session.getId());
+            if(journal != null)
+                journal.remove(session.getId());
         }
 
-        // Check for new sessions and add to active users when new
-        String sessionId = request.getSession().getId();
-//        LOG.info("Session ID: "+sessionId);
-        if(activeSessions.get(sessionId) == null) {
-            request.getSession().setMaxInactiveInterval(ClearnetSession.SESSION_INACTIVITY_INTERVAL);
-            activeSessions.put(sessionId, new ClearnetSession(sessionId));
+        String sessionId;
+        ClearnetSession session;
+        if(request.getAttribute(ClearnetServerSensor.WARMUP) != null) {
+            // Synthetic traffic: no Jetty session, nothing tracked, journaled or persisted
+            sessionId = WARMUP_SESSION_ID;
+            session = new ClearnetSession(sessionId);
         } else {
-            activeSessions.get(sessionId).setLastRequestTime(now);
+            // Check for new sessions and add to active users when new
+            sessionId = request.getSession().getId();
+//            LOG.info("Session ID: "+sessionId);
+            session = activeSessions.get(sessionId);
+            if(session == null) {
+                request.getSession().setMaxInactiveInterval(ClearnetSession.SESSION_INACTIVITY_INTERVAL);
+                session = new ClearnetSession(sessionId);
+                activeSessions.put(sessionId, session);
+                if(journal != null)
+                    journal.upsert(session);
+            } else {
+                session.setLastRequestTime(now);
+            }
+        }
+
+        // Per-session rate limit and fair share of in-flight holds; batch items are admitted one by one
+        boolean batch = BATCH_PATH.equals(target) && "POST".equalsIgnoreCase(request.getMethod());
+        if(!batch) {
+            int admitted = scheduler.admit(session);
+            if(admitted != SessionScheduler.ADMITTED) {
+                LOG.warning("Session "+sessionId+" not admitted; returning HTTP "+admitted+"...");
+                response.setHeader("Retry-After", "1");
+                response.setStatus(admitted);
+                baseRequest.setHandled(true);
+                return;
+            }
+        }
+        RequestTracer tracer = sensor.getTracer();
+        RequestTracer.Trace trace = tracer == null ? null : tracer.start(request, request.getMethod()+" "+target);
+        try {
+            if(batch)
+                dispatchBatch(baseRequest, request, response, session);
+            else
+                dispatch(target, baseRequest, request, response, sessionId);
+        } finally {
+            if(!batch)
+                scheduler.release(session);
+            // Closes traces not answered by a reply: cache hits, rejections, timeouts
+            if(trace != null)
+                trace.end(null, response.getStatus());
         }
+    }
 
-        Envelope envelope = parseEnvelope(target, request, sessionId);
-        ClientHold clientHold = new ClientHold(target, baseRequest, request, response, envelope);
-        requests.put(envelope.getId(), clientHold);
+    private void dispatch(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response, String sessionId) {
+        String commandPath = target.startsWith("/")?target.substring(1):target;
+        boolean cbor = CborCodec.accepted(request.getHeader("Accept"));
+        boolean stream = acceptsStream(request.getHeader("Accept"));
+        String cacheKey = null;
+        long cacheTtl = 0;
+        int cacheGeneration = 0;
+        // Warm-up replies are synthetic and never cached
+        if(cache != null && request.getAttribute(ClearnetServerSensor.WARMUP) == null) {
+            if("GET".equalsIgnoreCase(request.getMethod())) {
+                // Streams are neither cached nor collapsed
+                cacheTtl = stream ? 0 : cache.ttlFor(commandPath);
+                if(cacheTtl > 0) {
+                    String query = request.getQueryString();
+                    cacheKey = cache.key(commandPath, query == null ? null : RequestBuffers.parseQuery(query), sessionId);
+                    // Each encoding cached and collapsed on its own
+                    if(cbor)
+                        cacheKey += "#cbor";
+                    Object body = cache.get(cacheKey);
+                    if(body != null) {
+                        respondBody(body, response, 200);
+                        baseRequest.setHandled(true);
+                        return;
+                    }
+                    cacheGeneration = cache.generation(cacheKey);
+                }
+            } else {
+                // ADD/UPDATE/REMOVE
+                cache.invalidate(commandPath);
+            }
+        }
+
+        if(cacheKey != null) {
+            // Collapse identical concurrent misses onto the leader's bus round-trip
+            ClientHold follower = null;
+            synchronized (inFlight) {
+                List<ClientHold> waiters = inFlight.get(cacheKey);
+                if(waiters != null) {
+                    follower = new ClientHold(target, baseRequest, request, response, null);
+                    waiters.add(follower);
+                } else {
+                    inFlight.put(cacheKey, new ArrayList<ClientHold>());
+                }
+            }
+            if(follower == null && !sensor.getConcurrencyLimiter().tryAcquire()) {
+                // Shed load; followers already queued on this key get the same answer
+                releaseWaiters(cacheKey, null, 503);
+                rejectOverloaded(baseRequest, response);
+                return;
+            }
+            if(follower != null) {
+                follower.cacheKey = cacheKey;
+                if(!follower.hold(deadlines.timeoutFor(commandPath))) {
+                    respondTimeout(follower);
+                }
+                return;
+            }
+        } else if(!sensor.getConcurrencyLimiter().tryAcquire()) {
+            rejectOverloaded(baseRequest, response);
+            return;
+        }
 
-        // Add Routes Last first as it's a stack: Setup for return call
-        DLC.addRoute(SensorsService.class, SensorsService.OPERATION_REPLY, envelope);
+        // From here the limiter slot and any followers are ours until a reply claims the hold
+        Envelope envelope = null;
+        ClientHold clientHold = null;
+        boolean answered = false;
+        try {
+            try {
+                envelope = parseEnvelope(target, request, sessionId);
+            } catch (RequestBuffers.BodyTooLargeException ex) {
+                LOG.warning(ex.getLocalizedMessage()+"; returning HTTP 413...");
+                response.setStatus(413);
+                baseRequest.setHandled(true);
+                return;
+            } catch (RuntimeException ex) {
+                LOG.warning("Unable to parse request; returning HTTP 400: "+ex.getLocalizedMessage());
+                response.setStatus(400);
+                baseRequest.setHandled(true);
+                return;
+            }
+            // Read before the bus sees the Envelope
+            long deadline = HoldDeadlines.stamp(envelope, deadlines.timeoutFor(commandPath));
+            RequestTracer.Trace trace = RequestTracer.traceOf(request);
+            if(trace != null)
+                trace.mark("parse");
+            clientHold = new ClientHold(target, baseRequest, request, response, envelope);
+            clientHold.limited = true;
+            clientHold.trace = trace;
+            if(stream) {
+                envelope.setHeader(STREAM, Boolean.TRUE);
+                clientHold.stream = new LinkedBlockingQueue<>();
+            } else {
+                clientHold.cbor = cbor;
+            }
+            clientHold.cacheKey = cacheKey;
+            clientHold.cacheTtl = cacheTtl;
+            clientHold.cacheGeneration = cacheGeneration;
+            requests.put(envelope.getId(), clientHold);
 
-        route(envelope); // asynchronous call upon; returns upon reaching Message Channel's queue in Service Bus
+            // Add Routes Last first as it's a stack: Setup for return call
+            DLC.addRoute(SensorsService.class, SensorsService.OPERATION_REPLY, envelope);
 
-        if(DLC.getErrorMessages(envelope).size() > 0) {
-            // Just 500 for now
-            LOG.warning("Returning HTTP 500...");
-            response.setStatus(500);
-            baseRequest.setHandled(true);
-            requests.remove(envelope.getId());
+            route(envelope); // asynchronous call upon; returns upon reaching Message Channel's queue in Service Bus
+            if(trace != null)
+                trace.mark("send");
+
+            if(DLC.getErrorMessages(envelope).size() > 0) {
+                // Just 500 for now
+                LOG.warning("Returning HTTP 500...");
+                response.setStatus(500);
+                baseRequest.setHandled(true);
+                return;
+            }
+            if(clientHold.stream != null) {
+                streamResponse(clientHold, deadlines.timeoutFor(commandPath));
+            } else {
+                // Hold Thread until response or deadline
+                if(!clientHold.hold(deadline - System.currentTimeMillis())) {
+                    clientHold.releaseLimit(true, true);
+                    respondTimeout(clientHold);
+                    // Followers share the leader's fate
+                    releaseWaiters(cacheKey, null, 504);
+                }
+            }
+            answered = true;
+        } finally {
+            if(!answered)
+                abandon(envelope, clientHold, cacheKey, response);
+        }
+    }
+
+    /**
+     * Free the limiter slot and answer followers of a hold no reply will own:
+     * rejected, failed to route, or thrown out of dispatch.
+     */
+    private void abandon(Envelope envelope, ClientHold hold, String cacheKey, HttpServletResponse response) {
+        if(hold == null) {
+            sensor.getConcurrencyLimiter().cancel();
+        } else if(requests.remove(envelope.getId()) != null) {
+            hold.releaseLimit(false, false);
         } else {
-            // Hold Thread until response or 30 seconds
-//            LOG.info("Holding HTTP Request for up to 30 seconds waiting for internal asynch response...");
-            clientHold.hold(30 * 1000); // hold for 30 seconds or until interrupted
+            // A reply claimed the hold and answers it and its followers
+            return;
+        }
+        releaseWaiters(cacheKey, null, response.getStatus() >= 400 ? response.getStatus() : 500);
+    }
+
+    private void respondTimeout(ClientHold hold) {
+        LOG.warning("Hold deadline passed without reply; returning HTTP 504...");
+        hold.getResponse().setStatus(504);
+        hold.baseRequest.setHandled(true);
+    }
+
+    /**
+     * @return true if Accept names NDJSON without q=0
+     */
+    static boolean acceptsStream(String accept) {
+        if(accept == null || accept.indexOf(NDJSON) < 0)
+            return false;
+        for(String range : accept.split(",")) {
+            String[] params = range.split(";");
+            if(!NDJSON.equalsIgnoreCase(params[0].trim()))
+                continue;
+            for(int i = 1; i < params.length; i++) {
+                String param = params[i].trim();
+                if(param.startsWith("q=")) {
+                    try {
+                        return Float.parseFloat(param.substring(2)) > 0;
+                    } catch (NumberFormatException e) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Write each partial result as one JSON line as it arrives, until the final
+     * reply or until no record arrives within the idle timeout.
+     */
+    private void streamResponse(ClientHold hold, long idleTimeoutMs) {
+        HttpServletResponse response = hold.getResponse();
+        response.setContentType(NDJSON);
+        response.setHeader("Cache-Control", "no-store");
+        response.setHeader("Vary", "Accept");
+        response.setStatus(200);
+        hold.baseRequest.setHandled(true);
+        int records = 0;
+        try {
+            PrintWriter writer = response.getWriter();
+            // Commit headers so the client knows the stream has begun
+            response.flushBuffer();
+            while(true) {
+                StreamRecord r = hold.stream.poll(idleTimeoutMs, TimeUnit.MILLISECONDS);
+                if(r == null) {
+                    if(hold.claim()) {
+                        LOG.warning("No partial result within "+idleTimeoutMs+"ms; ending stream with 504...");
+                        hold.releaseLimit(true, true);
+                        r = new StreamRecord(null, true, 504);
+                    } else {
+                        // The final reply claimed the hold and is on its way
+                        r = hold.stream.take();
+                    }
+                }
+                if(r.body != null) {
+                    writer.write(r.body);
+                    writer.write('\n');
+                    records++;
+                }
+                if(r.last) {
+                    if(r.code == 200)
+                        writer.write("{\"done\":true,\"records\":"+records+"}\n");
+                    else
+                        writer.write("{\"done\":false,\"status\":"+r.code+"}\n");
+                    response.flushBuffer();
+                    if(hold.trace != null)
+                        hold.trace.end("write", r.code);
+                    return;
+                }
+                response.flushBuffer();
+            }
+        } catch (InterruptedException ex) {
+            LOG.warning("Stream interrupted.");
+            if(hold.claim())
+                hold.releaseLimit(true, true);
+        } catch (IOException ex) {
+            // Client went away; later partials find no hold and are dropped
+            LOG.warning("Unable to stream results: "+ex.getLocalizedMessage());
+            if(hold.claim())
+                hold.releaseLimit(true, true);
+        }
+    }
+
+    /**
+     * Fan out a batch of operations as individual Envelopes, routed concurrently,
+     * streaming each result as it completes until the batch deadline.
+     * Each item spends a token and an in-flight slot of the session as a
+     * request of its own would, waiting its turn in the session's queue;
+     * once one is refused the rest of the batch is refused alike.
+     */
+    @SuppressWarnings("unchecked")
+    private void dispatchBatch(Request baseRequest, HttpServletRequest request, HttpServletResponse response, ClearnetSession session) {
+        String sessionId = session.getId();
+        Object parsed = null;
+        try {
+            if(CborCodec.isCbor(request.getContentType()))
+                parsed = readCborBody(request);
+            else
+                parsed = JSONParser.parse(getPostRequestFormData(request));
+        } catch (RequestBuffers.BodyTooLargeException ex) {
+            LOG.warning(ex.getLocalizedMessage()+"; returning HTTP 413...");
+            response.setStatus(413);
+            baseRequest.setHandled(true);
+            return;
+        } catch (Exception ex) {
+            LOG.warning("Unable to parse batch: "+ex.getLocalizedMessage());
+        }
+        if(!(parsed instanceof List)) {
+            response.setStatus(400);
+            baseRequest.setHandled(true);
+            return;
+        }
+        List<Object> ops = (List<Object>)parsed;
+        if(ops.size() > MAX_BATCH_SIZE) {
+            LOG.warning("Batch of "+ops.size()+" exceeds max of "+MAX_BATCH_SIZE+"; returning HTTP 413...");
+            response.setStatus(413);
+            baseRequest.setHandled(true);
+            return;
+        }
+        long deadline = System.currentTimeMillis() + deadlines.timeoutFor(BATCH_PATH.substring(1));
+        BlockingQueue<BatchResult> completed = new LinkedBlockingQueue<>();
+        ClientHold[] holds = new ClientHold[ops.size()];
+        int refused = 0;
+        for(int i = 0; i < ops.size(); i++) {
+            if(!(ops.get(i) instanceof Map) || !(((Map)ops.get(i)).get("path") instanceof String)) {
+                completed.add(new BatchResult(i, 400, null));
+                continue;
+            }
+            if(refused == 0) {
+                int admitted = scheduler.admit(session);
+                if(admitted != SessionScheduler.ADMITTED) {
+                    LOG.warning("Session "+sessionId+" not admitted for batch item "+i+"; answering "+admitted+"...");
+                    refused = admitted;
+                }
+            }
+            if(refused != 0) {
+                completed.add(new BatchResult(i, refused, null));
+                continue;
+            }
+            Map<String,Object> op = (Map<String,Object>)ops.get(i);
+            String path = (String)op.get("path");
+            String commandPath = path.startsWith("/")?path.substring(1):path;
+            String method = op.get("method") instanceof String ? (String)op.get("method") : "GET";
+            Map<String,Object> query = op.get("query") instanceof Map ? (Map<String,Object>)op.get("query") : null;
+
+            String cacheKey = null;
+            long cacheTtl = 0;
+            int cacheGeneration = 0;
+            if(cache != null && request.getAttribute(ClearnetServerSensor.WARMUP) == null) {
+                if("GET".equalsIgnoreCase(method)) {
+                    cacheTtl = cache.ttlFor(commandPath);
+                    if(cacheTtl > 0) {
+                        cacheKey = cache.key(commandPath, query, sessionId);
+                        Object body = cache.get(cacheKey);
+                        if(body instanceof String) {
+                            scheduler.release(session);
+                            completed.add(new BatchResult(i, 200, (String)body));
+                            continue;
+                        }
+                        cacheGeneration = cache.generation(cacheKey);
+                    }
+                } else {
+                    cache.invalidate(commandPath);
+                }
+            }
+            if(!sensor.getConcurrencyLimiter().tryAcquire()) {
+                scheduler.release(session);
+                completed.add(new BatchResult(i, 503, null));
+                continue;
+            }
+
+            Envelope e = null;
+            ClientHold hold = null;
+            try {
+                e = buildEnvelope("/"+commandPath, method, sessionId);
+                // The batch request's own headers (Content-Type, Content-Length...) describe the batch
+                if(op.get("headers") instanceof Map)
+                    copyHeaders((Map<String,Object>)op.get("headers"), e);
+                ClearnetServerSensor.markWarmup(request, e);
+                RequestTracer.stamp(request, e);
+                if(HoldDeadlines.stamp(e, deadlines.timeoutFor(commandPath)) > deadline)
+                    e.setHeader(ClearnetServerSensor.DEADLINE, deadline);
+                if(op.get("body") instanceof Map)
+                    DLC.addData(Map.class, op.get("body"), e);
+                if(query != null)
+                    DLC.addData(Map.class, query, e);
+                e.setExternal(true);
+
+                ClientHold itemHold = new ClientHold("/"+commandPath, baseRequest, request, response, e);
+                itemHold.limited = true;
+                itemHold.scheduled = session;
+                itemHold.batch = completed;
+                itemHold.batchIndex = i;
+                // Cache the item's result; batch items are not collapsed with other requests
+                itemHold.cacheKey = cacheKey;
+                itemHold.cacheTtl = cacheTtl;
+                itemHold.cacheGeneration = cacheGeneration;
+                requests.put(e.getId(), itemHold);
+                holds[i] = hold = itemHold;
+                DLC.addRoute(SensorsService.class, SensorsService.OPERATION_REPLY, e);
+                route(e);
+                if(DLC.getErrorMessages(e).size() == 0)
+                    continue;
+            } catch (RuntimeException ex) {
+                LOG.warning("Unable to route batch item "+i+": "+ex.getLocalizedMessage());
+            }
+            // Item never reached the bus
+            if(hold == null) {
+                sensor.getConcurrencyLimiter().cancel();
+                scheduler.release(session);
+                completed.add(new BatchResult(i, 500, null));
+            } else if(requests.remove(e.getId()) != null) {
+                hold.releaseLimit(false, false);
+                hold.wake();
+                completed.add(new BatchResult(i, 500, null));
+            }
+        }
+
+        response.setContentType("application/json");
+        response.setStatus(200);
+        baseRequest.setHandled(true);
+        try {
+            PrintWriter writer = response.getWriter();
+            writer.write('[');
+            boolean expired = false;
+            for(int written = 0; written < ops.size(); written++) {
+                BatchResult r = null;
+                while(r == null) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if(expired) {
+                        r = completed.take();
+                    } else if(remaining > 0) {
+                        r = completed.poll(remaining, TimeUnit.MILLISECONDS);
+                    } else {
+                        expireBatch(holds, completed);
+                        expired = true;
+                    }
+                }
+                if(written > 0)
+                    writer.write(',');
+                writer.write("{\"index\":"+r.index+",\"status\":"+r.code+",\"body\":"+(r.code == 200 && r.body != null ? r.body : "null")+"}");
+                response.flushBuffer();
+            }
+            writer.write(']');
+        } catch (InterruptedException ex) {
+            LOG.warning("Batch interrupted.");
+            expireBatch(holds, completed);
+        } catch (IOException ex) {
+            LOG.warning("Unable to stream batch results: "+ex.getLocalizedMessage());
+            expireBatch(holds, completed);
+        }
+    }
+
+    /**
+     * Answer outstanding batch items with 504, waiting out replies already in progress.
+     */
+    private void expireBatch(ClientHold[] holds, BlockingQueue<BatchResult> completed) {
+        for(ClientHold hold : holds) {
+            if(hold == null)
+                continue;
+            if(requests.remove(hold.getEnvelope().getId()) != null) {
+                hold.releaseLimit(true, true);
+                completed.add(new BatchResult(hold.batchIndex, 504, null));
+            } else {
+                try {
+                    hold.done.await();
+                } catch (InterruptedException e) {
+                    LOG.warning("Interrupted waiting on batch reply in progress.");
+                }
+            }
+        }
+    }
+
+    /**
+     * Reject early with 503 and Retry-After when the bus is at its concurrency limit.
+     */
+    protected void rejectOverloaded(Request baseRequest, HttpServletResponse response) {
+        LOG.warning("Concurrency limit reached; returning HTTP 503...");
+        response.setHeader("Retry-After", String.valueOf(sensor.getConcurrencyLimiter().getRetryAfterSeconds()));
+        response.setStatus(503);
+        baseRequest.setHandled(true);
+    }
+
+    /**
+     * Answer all followers collapsed onto the leader's request.
+     * @param cacheKey key of the collapsed request; null when not cacheable
+     * @param body JSON String or CBOR byte[] response body or null when none to send
+     * @param code status code
+     */
+    private void releaseWaiters(String cacheKey, Object body, int code) {
+        if(cacheKey == null)
+            return;
+        List<ClientHold> waiters;
+        synchronized (inFlight) {
+            waiters = inFlight.remove(cacheKey);
+        }
+        if(waiters == null)
+            return;
+        for(ClientHold waiter : waiters) {
+            if(body != null)
+                respondBody(body, waiter.getResponse(), code);
+            else {
+                if(code == 503)
+                    waiter.getResponse().setHeader("Retry-After", String.valueOf(sensor.getConcurrencyLimiter().getRetryAfterSeconds()));
+                waiter.getResponse().setStatus(code);
+            }
+            waiter.baseRequest.setHandled(true);
+            waiter.wake();
         }
     }
 
     protected void route(Envelope e) {
+        if(ClearnetServerSensor.isWarmup(e)) {
+            // Looped straight back by the sensor: give the reply content to serialize
+            DLC.addContent(new WarmupContent(), e);
+        }
         sensor.send(e);
     }
 
+    /**
+     * Session a reply belongs to, or null once expired; warm-up replies get
+     * a throwaway session as their requests never had a tracked one.
+     */
+    private ClearnetSession sessionOf(Envelope e) {
+        String sessionId = (String)e.getHeader(ClearnetSession.class.getName());
+        if(ClearnetServerSensor.isWarmup(e))
+            return new ClearnetSession(sessionId);
+        return activeSessions.get(sessionId);
+    }
+
     public void reply(Envelope e) {
-        ClientHold hold = requests.get(e.getId());
+        boolean partial = isPartial(e);
+        // Partial results leave the hold in place for those that follow
+        ClientHold hold = partial ? requests.get(e.getId()) : requests.remove(e.getId());
+        if(hold==null) {
+            LOG.warning("Hold not found; request likely timed out.");
+            return;
+        }
+        if(ClearnetServerSensor.isSendFailed(e)) {
+            failHold(hold);
+            return;
+        }
+        if(hold.stream != null) {
+            replyToStream(hold, e, !partial);
+            return;
+        }
+        if(partial) {
+            LOG.warning("Partial result for a request not streaming; waiting on final reply.");
+            return;
+        }
+        try {
+            replyToHold(hold, e);
+        } finally {
+            hold.wake(); // Release held request thread to return
+        }
+        LOG.info("Unwinded request call with response.");
+    }
+
+    /**
+     * Answer 500 for a request whose Envelope never reached the bus, as when route() fails.
+     */
+    private void failHold(ClientHold hold) {
+        LOG.warning("Envelope not delivered to bus; returning HTTP 500...");
+        hold.releaseLimit(false, false);
+        if(hold.stream != null) {
+            hold.stream.add(new StreamRecord(null, true, 500));
+            return;
+        }
+        try {
+            if(hold.batch != null) {
+                hold.batch.add(new BatchResult(hold.batchIndex, 500, null));
+            } else {
+                hold.getResponse().setStatus(500);
+                hold.baseRequest.setHandled(true);
+                releaseWaiters(hold.cacheKey, null, 500);
+            }
+        } finally {
+            hold.wake();
+        }
+    }
+
+    private void replyToHold(ClientHold hold, Envelope e) {
+        RequestTracer.Trace trace = hold.trace;
+        if(trace != null) {
+            trace.markReply(e);
+            trace.mark("dispatch");
+        }
+        hold.releaseLimit(true, false);
         HttpServletResponse response = hold.getResponse();
         LOG.info("Updating session status from response...");
         String sessionId = (String)e.getHeader(ClearnetSession.class.getName());
-        ClearnetSession activeSession = activeSessions.get(sessionId);
+        ClearnetSession activeSession = sessionOf(e);
+        Object body;
+        int code;
         if(activeSession==null) {
             // session expired before response received so kill
             LOG.warning("Expired session before response received: sessionId="+sessionId);
-            respond("{httpErrorCode=401}", "application/json", response, 401);
+            body = hold.cbor ? CborCodec.encode(Collections.singletonMap("httpErrorCode", 401)) : "{httpErrorCode=401}";
+            code = 401;
         } else {
             LOG.info("Active session found");
             DID eDID = e.getDID();
@@ -154,13 +773,70 @@ public class EnvelopeJSONDataHandler extends DefaultHandler implements Asynchron
                 LOG.info("Updating active session and DID to authenticated.");
                 activeSession.setAuthenticated(true);
                 activeSession.getDid().setAuthenticated(true);
+                if(journal != null && !ClearnetServerSensor.isWarmup(e))
+                    journal.upsert(activeSession);
             }
-            respond(unpackEnvelopeContent(e), "application/json", response, 200);
+            body = hold.cbor ? unpackEnvelopeContentCbor(e) : unpackEnvelopeContent(e);
+            code = 200;
+            if(trace != null)
+                trace.mark("serialize");
+            if(hold.cacheKey != null)
+                cache.put(hold.cacheKey, body, hold.cacheTtl, hold.cacheGeneration);
+        }
+        if(hold.batch != null) {
+            // Batch items are always JSON, embedded in the batch's JSON array
+            hold.batch.add(new BatchResult(hold.batchIndex, code, (String)body));
+            return;
         }
+        respondBody(body, response, code);
         hold.baseRequest.setHandled(true);
-        LOG.info("Waking sleeping request thread to return response to caller...");
-        hold.wake(); // Interrupt sleep to allow thread to return
-        LOG.info("Unwinded request call with response.");
+        if(trace != null)
+            trace.end("write", response.getStatus());
+        releaseWaiters(hold.cacheKey, body, code);
+    }
+
+    static boolean isPartial(Envelope e) {
+        Object partial = e.getHeader(PARTIAL);
+        return Boolean.TRUE.equals(partial) || "true".equals(partial);
+    }
+
+    /**
+     * Queue one streamed record for the request thread to write; runs on the
+     * reply stripe of the request's Envelope id, so records keep the order the
+     * bus delivered them in. A dropped partial drops the rest of the stream's
+     * replies, see {@link ReplyDispatcher}.
+     */
+    private void replyToStream(ClientHold hold, Envelope e, boolean last) {
+        RequestTracer.Trace trace = hold.trace;
+        if(trace != null && !hold.streaming) {
+            trace.markReply(e);
+            trace.mark("dispatch");
+        }
+        hold.streaming = true;
+        String sessionId = (String)e.getHeader(ClearnetSession.class.getName());
+        ClearnetSession activeSession = sessionOf(e);
+        if(activeSession == null) {
+            LOG.warning("Expired session during stream: sessionId="+sessionId);
+            if(last || requests.remove(e.getId()) != null) {
+                hold.releaseLimit(true, false);
+                hold.stream.add(new StreamRecord(null, true, 401));
+            }
+            return;
+        }
+        if(last) {
+            hold.releaseLimit(true, false);
+            DID eDID = e.getDID();
+            if(!activeSession.getAuthenticated() && eDID != null && eDID.getAuthenticated()) {
+                LOG.info("Updating active session and DID to authenticated.");
+                activeSession.setAuthenticated(true);
+                activeSession.getDid().setAuthenticated(true);
+                if(journal != null && !ClearnetServerSensor.isWarmup(e))
+                    journal.upsert(activeSession);
+            }
+        }
+        // The final reply may only mark the end
+        String body = DLC.getContent(e) == null ? null : unpackEnvelopeContent(e);
+        hold.stream.add(new StreamRecord(body, last, 200));
     }
 
     protected int verifyRequest(String target, HttpServletRequest request) {
@@ -171,94 +847,33 @@ public class EnvelopeJSONDataHandler extends DefaultHandler implements Asynchron
     protected Envelope parseEnvelope(String target, HttpServletRequest request, String sessionId) {
 //        LOG.info("Parsing request into Envelope...");
 
-        Envelope e = Envelope.documentFactory();
-        // Flag as LOW for HTTP - this is required to ensure ClearnetServerSensor is selected in reply
-        e.setSensitivity(Envelope.Sensitivity.LOW);
-        // Must set id in header for asynchronous support
-        e.setHeader(ClearnetServerSensor.HANDLER_ID, id);
-        e.setHeader(ClearnetSession.class.getName(), sessionId);
-
-        // Set path
-        e.setCommandPath(target.startsWith("/")?target.substring(1):target); // strip leading slash if present
-        try {
-            // This is required to ensure the SensorManager knows to return the reply to the ClearnetServerSensor (ends with .json)
-            URL url = new URL("http://127.0.0.1"+target+".json");
-            e.setURL(url);
-        } catch (MalformedURLException e1) {
-            LOG.warning(e1.getLocalizedMessage());
-        }
-
-        // Populate method
-        String method = request.getMethod();
-//        LOG.info("Incoming method: "+method);
-        if(method != null) {
-            switch (method.toUpperCase()) {
-                case "GET": e.setAction(Envelope.Action.VIEW);break;
-                case "POST": e.setAction(Envelope.Action.ADD);break;
-                case "PUT": e.setAction(Envelope.Action.UPDATE);break;
-                case "DELETE": e.setAction(Envelope.Action.REMOVE);break;
-                default: e.setAction(Envelope.Action.VIEW);
-            }
-        } else {
-            e.setAction(Envelope.Action.VIEW);
-        }
-
-        // Populate headers
-        Enumeration<String> headerNames = request.getHeaderNames();
-        while(headerNames.hasMoreElements()) {
-            String headerName = headerNames.nextElement();
-            Enumeration<String> headerValues = request.getHeaders(headerName);
-            boolean first = true;
-            int i = 2;
-            while(headerValues.hasMoreElements()){
-                String headerValue = headerValues.nextElement();
-                if(first) {
-                    e.setHeader(headerName, headerValue);
-                    first = false;
-                } else {
-                    e.setHeader(headerName + Integer.toString(i++), headerValue);
-                }
-//                LOG.info("Incoming header:value="+headerName+":"+headerValue);
-            }
-        }
+        Envelope e = buildEnvelope(target, request.getMethod(), sessionId);
+        copyHeaders(request, e);
 
         // Get file content if sent
         if(e.getContentType() != null && e.getContentType().startsWith("multipart/form-data")) {
-        	request.setAttribute(Request.__MULTIPART_CONFIG_ELEMENT, new MultipartConfigElement(""));
+        	request.setAttribute(Request.__MULTIPART_CONFIG_ELEMENT, RequestBuffers.MULTIPART_CONFIG);
             try {
                 Collection<Part> parts = request.getParts();
                 String contentType;
-                String name;
                 String fileName;
                 long size = 0;
-                InputStream is;
-                ByteArrayOutputStream b;
+                byte[] data;
                 int k = 0;
                 for (Part part : parts) {
-                    String msg = "Downloading... {";
-                    name = part.getName();
-                    msg += "\n\tparamName="+name;
                     fileName = part.getSubmittedFileName();
-                    msg += "\n\tfileName="+fileName;
                     contentType = part.getContentType();
-                    msg += "\n\tcontentType="+contentType;
                     size = part.getSize();
-                    msg += "\n\tsize="+size+"\n}";
-                    LOG.info(msg);
+                    if(LOG.isLoggable(Level.INFO))
+                        LOG.info("Downloading... {\n\tparamName="+part.getName()+"\n\tfileName="+fileName+"\n\tcontentType="+contentType+"\n\tsize="+size+"\n}");
                     if(size > 1000000) {
                         // 1Mb
                         LOG.warning("Downloading of file with size="+size+" prevented. Max size is 1Mb.");
                         return e;
                     }
-                    is = part.getInputStream();
-                    if (is != null) {
-                        b = new ByteArrayOutputStream();
-                        int nRead;
-                        byte[] bucket = new byte[16384];
-                        while ((nRead = is.read(bucket, 0, bucket.length)) != -1) {
-                            b.write(bucket, 0, nRead);
-                        }
-                        Content content = Content.buildContent(b.toByteArray(), contentType, fileName, true, true);
+                    data = RequestBuffers.readPart(part);
+                    if (data != null) {
+                        Content content = Content.buildContent(data, contentType, fileName, true, true);
                         content.setSize(size);
                         if (k == 0) {
                             Map<String, Object> d = ((DocumentMessage) e.getMessage()).data.get(k++);
@@ -278,23 +893,28 @@ public class EnvelopeJSONDataHandler extends DefaultHandler implements Asynchron
         }
 
         //Get post formData params
-        String postFormBody = getPostRequestFormData(request);
-        if(!postFormBody.isEmpty()){
-            Map<String, Object> bodyMap = (Map<String, Object>) JSONParser.parse(postFormBody);
-            DLC.addData(Map.class, bodyMap, e);
+        if(CborCodec.isCbor(request.getContentType())) {
+            Object body = readCborBody(request);
+            if(body instanceof Map) {
+                // Decoded CBOR maps always have String keys
+                @SuppressWarnings("unchecked")
+                Map<String,Object> bodyMap = (Map<String,Object>)body;
+                DLC.addData(Map.class, bodyMap, e);
+            }
+        } else {
+            String postFormBody = getPostRequestFormData(request);
+            if(!postFormBody.isEmpty()){
+                @SuppressWarnings("unchecked")
+                Map<String, Object> bodyMap = (Map<String, Object>) JSONParser.parse(postFormBody);
+                DLC.addData(Map.class, bodyMap, e);
+            }
         }
 
         // Get query parameters if present
         String query = request.getQueryString();
         if(query!=null) {
 //            LOG.info("Incoming query: "+query);
-            Map<String,String> queryMap = new HashMap<>();
-            String[] nvps = query.split("&");
-            for (String nvpStr : nvps) {
-                String[] nvp = nvpStr.split("=");
-                queryMap.put(nvp[0], nvp[1]);
-            }
-            DLC.addData(Map.class, queryMap, e);
+            DLC.addData(Map.class, RequestBuffers.parseQuery(query), e);
         }
         e.setExternal(true);
 
@@ -307,38 +927,126 @@ public class EnvelopeJSONDataHandler extends DefaultHandler implements Asynchron
         return e;
     }
 
+    /**
+     * Envelope routed back to this handler with path, action and deadline set.
+     */
+    protected Envelope buildEnvelope(String target, String method, String sessionId) {
+        Envelope e = Envelope.documentFactory();
+        // Flag as LOW for HTTP - this is required to ensure ClearnetServerSensor is selected in reply
+        e.setSensitivity(Envelope.Sensitivity.LOW);
+        // Must set id in header for asynchronous support
+        e.setHeader(ClearnetServerSensor.HANDLER_ID, id);
+        e.setHeader(ClearnetSession.class.getName(), sessionId);
+
+        // Set path
+        String commandPath = target.startsWith("/")?target.substring(1):target; // strip leading slash if present
+        e.setCommandPath(commandPath);
+        // Absolute deadline so expired work can be skipped downstream
+        e.setHeader(ClearnetServerSensor.DEADLINE, System.currentTimeMillis() + deadlines.timeoutFor(commandPath));
+        try {
+            // This is required to ensure the SensorManager knows to return the reply to the ClearnetServerSensor (ends with .json)
+            e.setURL(RequestBuffers.dataRouteURL(target));
+        } catch (MalformedURLException e1) {
+            LOG.warning(e1.getLocalizedMessage());
+        }
+
+        // Populate method
+//        LOG.info("Incoming method: "+method);
+        if(method != null) {
+            switch (method.toUpperCase()) {
+                case "GET": e.setAction(Envelope.Action.VIEW);break;
+                case "POST": e.setAction(Envelope.Action.ADD);break;
+                case "PUT": e.setAction(Envelope.Action.UPDATE);break;
+                case "DELETE": e.setAction(Envelope.Action.REMOVE);break;
+                default: e.setAction(Envelope.Action.VIEW);
+            }
+        } else {
+            e.setAction(Envelope.Action.VIEW);
+        }
+        return e;
+    }
+
+    private void copyHeaders(HttpServletRequest request, Envelope e) {
+        Enumeration<String> headerNames = request.getHeaderNames();
+        while(headerNames.hasMoreElements()) {
+            String headerName = headerNames.nextElement();
+            if(ClearnetServerSensor.isReservedHeader(headerName)) {
+                LOG.warning("Dropping reserved request header: "+headerName);
+                continue;
+            }
+            Enumeration<String> headerValues = request.getHeaders(headerName);
+            boolean first = true;
+            int i = 2;
+            while(headerValues.hasMoreElements()){
+                String headerValue = headerValues.nextElement();
+                if(first) {
+                    e.setHeader(headerName, headerValue);
+                    first = false;
+                } else {
+                    e.setHeader(headerName + Integer.toString(i++), headerValue);
+                }
+//                LOG.info("Incoming header:value="+headerName+":"+headerValue);
+            }
+        }
+        ClearnetServerSensor.markWarmup(request, e);
+        RequestTracer.stamp(request, e);
+    }
+
+    /**
+     * Headers of a batch item, under the same rules as request headers.
+     */
+    private void copyHeaders(Map<String,Object> headers, Envelope e) {
+        for(Map.Entry<String,Object> header : headers.entrySet()) {
+            if(header.getValue() == null)
+                continue;
+            if(ClearnetServerSensor.isReservedHeader(header.getKey())) {
+                LOG.warning("Dropping reserved batch item header: "+header.getKey());
+                continue;
+            }
+            e.setHeader(header.getKey(), header.getValue().toString());
+        }
+    }
+
     protected String unpackEnvelopeContent(Envelope e) {
 //        LOG.info("Unpacking Content Map to JSON");
         String json = JSONParser.toString(((JSONSerializable)DLC.getContent(e)).toMap());
         return json;
     }
 
+    /**
+     * Content as CBOR, for clients preferring application/cbor; binary Content is embedded as raw bytes.
+     */
+    protected byte[] unpackEnvelopeContentCbor(Envelope e) {
+        return CborCodec.encode(DLC.getContent(e));
+    }
+
     public String getPostRequestFormData(HttpServletRequest request)  {
-        StringBuilder formData = new StringBuilder();
-        BufferedReader bufferedReader = null;
+        return RequestBuffers.readBody(request);
+    }
+
+    /**
+     * @return decoded CBOR request body or null when empty or malformed
+     */
+    protected Object readCborBody(HttpServletRequest request) {
         try {
-            InputStream inputStream = request.getInputStream();
-            if (inputStream != null) {
-                bufferedReader = new BufferedReader(new InputStreamReader(inputStream));
-                char[] charBuffer = new char[128];
-                int bytesRead = -1;
-                while ((bytesRead = bufferedReader.read(charBuffer)) > 0) {
-                    formData.append(charBuffer, 0, bytesRead);
-                }
-            }
-        } catch (IOException ex) {
-            LOG.warning(ex.getLocalizedMessage());
-        } finally {
-            if (bufferedReader != null) {
-                try {
-                    bufferedReader.close();
-                } catch (IOException ex) {
-                    LOG.warning(ex.getLocalizedMessage());
-                }
-            }
+            byte[] body = RequestBuffers.readBytes(request);
+            return body.length == 0 ? null : CborCodec.decode(body);
+        } catch (IOException | IllegalArgumentException ex) {
+            LOG.warning("Unable to parse CBOR body: "+ex.getLocalizedMessage());
+            return null;
         }
+    }
 
-        return formData.toString();
+    /**
+     * Respond with a serialized body in the encoding it was built for.
+     * @param body JSON String or CBOR byte[]
+     */
+    private void respondBody(Object body, HttpServletResponse response, int code) {
+        response.setHeader("Vary", "Accept");
+        if(body instanceof byte[])
+            respond((byte[])body, CborCodec.MEDIA_TYPE, response, code);
+        else
+            respond((String)body, "application/json", response, code);
     }
 
     protected void respond(String body, String contentType, HttpServletResponse response, int code) {
@@ -353,13 +1061,79 @@ public class EnvelopeJSONDataHandler extends DefaultHandler implements Asynchron
         }
     }
 
+    protected void respond(byte[] body, String contentType, HttpServletResponse response, int code) {
+        response.setContentType(contentType);
+        response.setContentLength(body.length);
+        response.setStatus(code);
+        try {
+            response.getOutputStream().write(body);
+        } catch (IOException ex) {
+            LOG.warning(ex.getLocalizedMessage());
+            response.setStatus(500);
+        }
+    }
+
+    private static class BatchResult {
+        private final int index;
+        private final int code;
+        private final String body;
+
+        private BatchResult(int index, int code, String body) {
+            this.index = index;
+            this.code = code;
+            this.body = body;
+        }
+    }
+
+    /**
+     * Body of a looped back warm-up reply.
+     */
+    private static class WarmupContent implements JSONSerializable {
+        @Override
+        public Map<String, Object> toMap() {
+            Map<String, Object> m = new HashMap<>();
+            m.put("warmup", true);
+            return m;
+        }
+
+        @Override
+        public void fromMap(Map<String, Object> m) {
+        }
+    }
+
+    private static class StreamRecord {
+        private final String body;
+        private final boolean last;
+        private final int code;
+
+        private StreamRecord(String body, boolean last, int code) {
+            this.body = body;
+            this.last = last;
+            this.code = code;
+        }
+    }
+
     private class ClientHold {
-        private Thread thread;
+        private final CountDownLatch done = new CountDownLatch(1);
         private String target;
         private Request baseRequest;
         private HttpServletRequest request;
         private HttpServletResponse response;
         private Envelope envelope;
+        private String cacheKey;
+        private long cacheTtl;
+        private int cacheGeneration;
+        private boolean limited;
+        // Session whose scheduler slot this hold takes; batch items only
+        private ClearnetSession scheduled;
+        private BlockingQueue<BatchResult> batch;
+        private int batchIndex;
+        private RequestTracer.Trace trace;
+        private boolean cbor;
+        private BlockingQueue<StreamRecord> stream;
+        private boolean streaming;
+        private final long started = System.currentTimeMillis();
+        private final AtomicBoolean released = new AtomicBoolean();
 
         private ClientHold(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response, Envelope envelope) {
             this.target = target;
@@ -369,17 +1143,58 @@ public class EnvelopeJSONDataHandler extends DefaultHandler implements Asynchron
             this.envelope = envelope;
         }
 
-        private void hold(long waitTimeMs) {
-            thread = Thread.currentThread();
+        /**
+         * @return true if answered by a reply, false if timed out and caller must respond
+         */
+        private boolean hold(long waitTimeMs) {
+            try {
+                if(done.await(Math.max(0, waitTimeMs), TimeUnit.MILLISECONDS))
+                    return true;
+            } catch (InterruptedException e) {
+                LOG.warning("Hold interrupted.");
+            }
+            if(claim())
+                return false;
+            // A reply claimed this hold first and is writing the response; let it finish
             try {
-                Thread.sleep(waitTimeMs);
+                done.await();
             } catch (InterruptedException e) {
-                requests.remove(envelope.getId());
+                LOG.warning("Hold interrupted while reply in progress.");
             }
+            return true;
+        }
+
+        /**
+         * Take ownership of answering this hold away from any pending reply.
+         */
+        private boolean claim() {
+            if(envelope != null)
+                return requests.remove(envelope.getId()) != null;
+            synchronized (inFlight) {
+                List<ClientHold> waiters = inFlight.get(cacheKey);
+                return waiters != null && waiters.remove(this);
+            }
+        }
+
+        /**
+         * Return this hold's slot to the concurrency limiter, and to the
+         * session scheduler when it holds one, once.
+         * @param sample true to feed the round-trip time into the limit
+         * @param dropped true when timed out
+         */
+        private void releaseLimit(boolean sample, boolean dropped) {
+            if(!limited || !released.compareAndSet(false, true))
+                return;
+            if(scheduled != null)
+                scheduler.release(scheduled);
+            if(sample)
+                sensor.getConcurrencyLimiter().release(System.currentTimeMillis() - started, dropped);
+            else
+                sensor.getConcurrencyLimiter().cancel();
         }
 
         private void wake() {
-            thread.interrupt();
+            done.countDown();
         }
 
         private String getTarget() {
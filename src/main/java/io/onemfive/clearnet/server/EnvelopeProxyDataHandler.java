@@ -6,10 +6,11 @@ import io.onemfive.data.content.Content;
 import io.onemfive.data.util.DLC;
 import io.onemfive.data.util.JSONParser;
 import io.onemfive.sensors.SensorsService;
+import org.eclipse.jetty.http.HttpMethod;
+import org.eclipse.jetty.server.HttpConnection;
 import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.handler.DefaultHandler;
 
-import javax.servlet.MultipartConfigElement;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -18,6 +19,11 @@ import java.io.*;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
@@ -34,11 +40,49 @@ public class EnvelopeProxyDataHandler extends DefaultHandler implements Asynchro
 
     private static Logger LOG = Logger.getLogger(EnvelopeProxyDataHandler.class.getName());
 
+    public static long DEFAULT_HOLD_TIMEOUT_MS = 10 * 60 * 1000;
+
+    /**
+     * Envelope header: tunnel operation, one of open, send (client to far end),
+     * receive (far end to client), ack (chunk written) and close.
+     */
+    public static final String TUNNEL_OP = "1m5.sensors.clearnet.server.tunnel.op";
+    /**
+     * Envelope header: id of the tunnel, the id of its open Envelope.
+     */
+    public static final String TUNNEL_ID = "1m5.sensors.clearnet.server.tunnel.id";
+    /**
+     * Envelope header: chunk sequence number per direction.
+     */
+    public static final String TUNNEL_SEQ = "1m5.sensors.clearnet.server.tunnel.seq";
+    public static final String TUNNEL_OPEN = "open";
+    public static final String TUNNEL_SEND = "send";
+    public static final String TUNNEL_RECEIVE = "receive";
+    public static final String TUNNEL_ACK = "ack";
+    public static final String TUNNEL_CLOSE = "close";
+
+    /**
+     * Maximum bytes per tunnel chunk Envelope.
+     */
+    public static final String TUNNEL_CHUNK_BYTES = "1m5.sensors.clearnet.server.tunnel.chunkBytes";
+    /**
+     * Chunks per direction that may be unacknowledged before reading pauses.
+     */
+    public static final String TUNNEL_WINDOW = "1m5.sensors.clearnet.server.tunnel.window";
+
+    private static final byte[] WARMUP_BODY = "warmup".getBytes();
+
     protected ClearnetServerSensor sensor;
-    protected Map<Long,ClientHold> requests = new HashMap<>();
-    private String id;
+    protected Map<Long,ClientHold> requests = new ConcurrentHashMap<>();
+    private int id;
     private String serviceName;
     private String[] parameters;
+    private HoldDeadlines deadlines = new HoldDeadlines(DEFAULT_HOLD_TIMEOUT_MS);
+    private ProxyResponseCache cache;
+    private final Map<Long,EnvelopeTunnel> tunnels = new ConcurrentHashMap<>();
+    private final Map<Long,URL> tunnelTargets = new ConcurrentHashMap<>();
+    private int tunnelChunkBytes = 16 * 1024;
+    private int tunnelWindow = 8;
 
     public EnvelopeProxyDataHandler() {
 
@@ -51,6 +95,19 @@ public class EnvelopeProxyDataHandler extends DefaultHandler implements Asynchro
 
     public void setServiceName(String serviceName) {
         this.serviceName = serviceName;
+        if(sensor != null) {
+            deadlines = HoldDeadlines.fromProperties(sensor.getProperties(), serviceName, DEFAULT_HOLD_TIMEOUT_MS);
+            cache = ProxyResponseCache.fromProperties(sensor.getProperties(), serviceName);
+            Properties p = sensor.getProperties();
+            if(p != null) {
+                try {
+                    tunnelChunkBytes = Integer.parseInt(p.getProperty(TUNNEL_CHUNK_BYTES, String.valueOf(tunnelChunkBytes)));
+                    tunnelWindow = Math.max(1, Integer.parseInt(p.getProperty(TUNNEL_WINDOW, String.valueOf(tunnelWindow))));
+                } catch (NumberFormatException e) {
+                    LOG.warning("Invalid tunnel configuration; using defaults: "+e.getLocalizedMessage());
+                }
+            }
+        }
     }
 
     public void setParameters(String[] parameters) {
@@ -82,53 +139,384 @@ public class EnvelopeProxyDataHandler extends DefaultHandler implements Asynchro
             return;
         }
 
-        Envelope envelope = parseEnvelope(request);
-        ClientHold clientHold = new ClientHold(target, baseRequest, request, response, envelope);
-        requests.put(envelope.getId(), clientHold);
+        if(HttpMethod.CONNECT.is(request.getMethod())) {
+            connect(baseRequest, request, response);
+            return;
+        }
 
-        // Add Routes Last first as it's a stack: Setup for return call
-        DLC.addRoute(SensorsService.class, SensorsService.OPERATION_SEND, envelope);
+        RequestTracer tracer = sensor.getTracer();
+        RequestTracer.Trace trace = tracer == null ? null : tracer.start(request, request.getMethod()+" "+target);
+        try {
+            proxy(target, baseRequest, request, response);
+        } finally {
+            // Closes traces not answered by a reply: cache hits, rejections, timeouts
+            if(trace != null)
+                trace.end(null, response.getStatus());
+        }
+    }
 
-        route(envelope); // asynchronous call upon; returns upon reaching Message Channel's queue in Service Bus
+    private void proxy(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        // Serve repeat GETs locally while fresh; otherwise revalidate what is stored
+        String cacheKey = null;
+        ProxyResponseCache.Hit stale = null;
+        if(cache != null && ProxyResponseCache.isCacheable(request)) {
+            cacheKey = proxyURL(request);
+            ProxyResponseCache.Hit hit = cache.get(cacheKey, request);
+            if(hit != null && hit.getEntry().isFresh(System.currentTimeMillis()) && !ProxyResponseCache.requiresRevalidation(request)) {
+                serveCached(hit, baseRequest, request, response);
+                return;
+            }
+            if(hit == null && ProxyResponseCache.hasDirective(request.getHeader("Cache-Control"), "only-if-cached")) {
+                response.setStatus(504);
+                baseRequest.setHandled(true);
+                return;
+            }
+            stale = hit;
+        }
 
-        if(DLC.getErrorMessages(envelope).size() > 0) {
-            // Just 500 for now
-            LOG.warning("Returning HTTP 500...");
-            response.setStatus(500);
+        if(!sensor.getConcurrencyLimiter().tryAcquire()) {
+            LOG.warning("Concurrency limit reached; returning HTTP 503...");
+            response.setHeader("Retry-After", String.valueOf(sensor.getConcurrencyLimiter().getRetryAfterSeconds()));
+            response.setStatus(503);
             baseRequest.setHandled(true);
-            requests.remove(envelope.getId());
-        } else {
-            // Hold Thread until response or 10 minutes
-//            LOG.info("Holding HTTP Request for up to 30 seconds waiting for internal asynch response...");
-            clientHold.hold(10 * 60 * 1000); // hold for 10 minutes or until interrupted
+            return;
+        }
+
+        Envelope envelope;
+        try {
+            envelope = parseEnvelope(request);
+        } catch (RequestBuffers.BodyTooLargeException ex) {
+            LOG.warning(ex.getLocalizedMessage()+"; returning HTTP 413...");
+            sensor.getConcurrencyLimiter().cancel();
+            response.setStatus(413);
+            baseRequest.setHandled(true);
+            return;
+        } catch (RuntimeException ex) {
+            LOG.warning("Unable to parse request; returning HTTP 400: "+ex.getLocalizedMessage());
+            sensor.getConcurrencyLimiter().cancel();
+            response.setStatus(400);
+            baseRequest.setHandled(true);
+            return;
+        }
+        // Read before the bus sees the Envelope
+        long deadline = HoldDeadlines.stamp(envelope, deadlines.getServerTimeout());
+        RequestTracer.Trace trace = RequestTracer.traceOf(request);
+        if(trace != null)
+            trace.mark("parse");
+        ClientHold clientHold = new ClientHold(target, baseRequest, request, response, envelope);
+        clientHold.trace = trace;
+        clientHold.cacheKey = cacheKey;
+        if(stale != null) {
+            clientHold.stale = stale;
+            // Conditional request: origin answers without body if unchanged
+            ProxyResponseCache.Entry entry = stale.getEntry();
+            if(entry.getETag() != null && request.getHeader("If-None-Match") == null)
+                envelope.setHeader("If-None-Match", entry.getETag());
+            if(entry.getLastModified() != null && request.getHeader("If-Modified-Since") == null)
+                envelope.setHeader("If-Modified-Since", entry.getLastModified());
+        }
+        requests.put(envelope.getId(), clientHold);
+        boolean answered = false;
+        try {
+            // Add Routes Last first as it's a stack: Setup for return call
+            DLC.addRoute(SensorsService.class, SensorsService.OPERATION_SEND, envelope);
+
+            route(envelope); // asynchronous call upon; returns upon reaching Message Channel's queue in Service Bus
+            if(trace != null)
+                trace.mark("send");
+
+            if(DLC.getErrorMessages(envelope).size() > 0) {
+                // Just 500 for now
+                LOG.warning("Returning HTTP 500...");
+                response.setStatus(500);
+                baseRequest.setHandled(true);
+                return;
+            }
+            // Hold Thread until response or deadline
+            if(!clientHold.hold(deadline - System.currentTimeMillis())) {
+                clientHold.releaseLimit(true, true);
+                LOG.warning("Hold deadline passed without reply; returning HTTP 504...");
+                response.setStatus(504);
+                baseRequest.setHandled(true);
+            }
+            answered = true;
+        } finally {
+            // Failed or thrown before a reply could own the hold: free its slot
+            if(!answered && requests.remove(envelope.getId()) != null)
+                clientHold.releaseLimit(false, false);
         }
     }
 
     protected void route(Envelope e) {
+        if(ClearnetServerSensor.isWarmup(e)) {
+            // Looped straight back by the sensor: give the reply a body to write
+            DLC.addContent(WARMUP_BODY, e);
+        }
         sensor.send(e);
     }
 
     public void reply(Envelope e) {
         LOG.info("Reply received...");
-        ClientHold hold = requests.get(e.getId());
+        Object tunnelOp = e.getHeader(TUNNEL_OP);
+        if(tunnelOp != null && !TUNNEL_OPEN.equals(tunnelOp)) {
+            tunnelReply(e, tunnelOp.toString());
+            return;
+        }
+        ClientHold hold = requests.remove(e.getId());
         if(hold==null) {
             LOG.warning("Hold not found.");
             return;
         }
-        HttpServletResponse response = hold.getResponse();
-        String body = new String(unpackEnvelopeContent(e));
+        boolean failed = ClearnetServerSensor.isSendFailed(e);
+        if(hold.tunnel) {
+            hold.releaseLimit(!failed, false);
+            hold.tunnelOpened = !failed && DLC.getErrorMessages(e).size() == 0;
+            hold.wake();
+            return;
+        }
+        if(failed) {
+            // Never reached the bus; answer as when route() fails
+            LOG.warning("Envelope not delivered to bus; returning HTTP 500...");
+            hold.releaseLimit(false, false);
+            hold.getResponse().setStatus(500);
+            hold.baseRequest.setHandled(true);
+            hold.wake();
+            return;
+        }
+        RequestTracer.Trace trace = hold.trace;
+        if(trace != null) {
+            trace.markReply(e);
+            trace.mark("dispatch");
+        }
         try {
-            response.getWriter().print(body);
-        } catch (IOException ex) {
-            LOG.warning(ex.getLocalizedMessage());
-            response.setStatus(500);
+            hold.releaseLimit(true, false);
+            HttpServletResponse response = hold.getResponse();
+            byte[] content = unpackEnvelopeContent(e);
+            if(trace != null)
+                trace.mark("serialize");
+            try {
+                if(hold.cacheKey != null) {
+                    if(hold.stale != null && cache.revalidated(hold.stale, e)) {
+                        serveCached(hold.stale, hold.baseRequest, hold.request, response);
+                        return;
+                    }
+                    cache.put(hold.cacheKey, content, e, hold.request);
+                }
+                int status = ProxyResponseCache.status(e);
+                if(status > 0)
+                    response.setStatus(status);
+                String body = content == null ? "" : new String(content);
+                response.getWriter().print(body);
+            } catch (IOException ex) {
+                LOG.warning(ex.getLocalizedMessage());
+                response.setStatus(500);
+            }
+            hold.baseRequest.setHandled(true);
+            if(trace != null)
+                trace.end("write", response.getStatus());
+        } finally {
+            hold.wake(); // Release held request thread to return
         }
-        hold.baseRequest.setHandled(true);
-        LOG.info("Waking sleeping request thread to return response to caller...");
-        hold.wake(); // Interrupt sleep to allow thread to return
         LOG.info("Unwinded request call with response.");
     }
 
+    /**
+     * Establish a tunnel to the CONNECT authority through the bus once, then
+     * hand the client's socket to an {@link EnvelopeTunnel} streaming chunks.
+     */
+    private void connect(Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        String authority = request.getRequestURI();
+        URL target;
+        try {
+            target = new URL("https://" + authority);
+        } catch (MalformedURLException ex) {
+            response.setStatus(400);
+            baseRequest.setHandled(true);
+            return;
+        }
+        HttpConnection connection = HttpConnection.getCurrentConnection();
+        if(connection == null) {
+            // CONNECT over HTTP/2 is not supported
+            response.setStatus(501);
+            baseRequest.setHandled(true);
+            return;
+        }
+        if(!sensor.getConcurrencyLimiter().tryAcquire()) {
+            response.setHeader("Retry-After", String.valueOf(sensor.getConcurrencyLimiter().getRetryAfterSeconds()));
+            response.setStatus(503);
+            baseRequest.setHandled(true);
+            return;
+        }
+        Envelope open = tunnelEnvelope(target, TUNNEL_OPEN);
+        open.setHeader(ClearnetServerSensor.DEADLINE, System.currentTimeMillis() + deadlines.getServerTimeout());
+        open.setHeader(TUNNEL_ID, open.getId());
+        ClearnetServerSensor.markWarmup(request, open);
+        ClientHold hold = new ClientHold(authority, baseRequest, request, response, open);
+        hold.tunnel = true;
+        requests.put(open.getId(), hold);
+        boolean answered = false;
+        try {
+            route(open);
+            if(DLC.getErrorMessages(open).size() > 0) {
+                response.setStatus(502);
+                baseRequest.setHandled(true);
+                return;
+            }
+            long deadline = (Long)open.getHeader(ClearnetServerSensor.DEADLINE);
+            if(!hold.hold(deadline - System.currentTimeMillis())) {
+                hold.releaseLimit(true, true);
+                response.setStatus(504);
+                baseRequest.setHandled(true);
+                return;
+            }
+            answered = true;
+        } finally {
+            if(!answered && requests.remove(open.getId()) != null)
+                hold.releaseLimit(false, false);
+        }
+        if(!hold.tunnelOpened) {
+            response.setStatus(502);
+            baseRequest.setHandled(true);
+            return;
+        }
+        EnvelopeTunnel tunnel = new EnvelopeTunnel(connection.getEndPoint(), connection.getConnector().getExecutor(),
+                this, open.getId(), tunnelChunkBytes, tunnelWindow);
+        tunnels.put(tunnel.getTunnelId(), tunnel);
+        tunnelTargets.put(tunnel.getTunnelId(), target);
+        // Commit the 200 ourselves, then report 101 so that Jetty swaps the
+        // connection on the socket once this exchange completes
+        response.setStatus(200);
+        response.setContentLength(0);
+        try {
+            response.getOutputStream().close();
+        } catch (IOException ex) {
+            // Client gone before the tunnel started
+            closeTunnel(tunnel);
+            throw ex;
+        }
+        request.setAttribute(HttpConnection.UPGRADE_CONNECTION_ATTRIBUTE, tunnel);
+        response.setStatus(HttpServletResponse.SC_SWITCHING_PROTOCOLS);
+        baseRequest.setHandled(true);
+    }
+
+    private Envelope tunnelEnvelope(URL target, String op) {
+        Envelope e = Envelope.documentFactory();
+        e.setSensitivity(Envelope.Sensitivity.LOW);
+        e.setHeader(ClearnetServerSensor.HANDLER_ID, id);
+        e.setHeader(TUNNEL_OP, op);
+        e.setURL(target);
+        e.setExternal(true);
+        DLC.addRoute(SensorsService.class, SensorsService.OPERATION_SEND, e);
+        return e;
+    }
+
+    /**
+     * Bytes read from the client towards the far end.
+     */
+    void sendChunk(EnvelopeTunnel tunnel, long seq, byte[] data) {
+        URL target = tunnelTargets.get(tunnel.getTunnelId());
+        if(target == null)
+            return;
+        Envelope e = tunnelEnvelope(target, TUNNEL_SEND);
+        e.setHeader(TUNNEL_ID, tunnel.getTunnelId());
+        e.setHeader(TUNNEL_SEQ, seq);
+        DLC.addContent(data, e);
+        route(e);
+    }
+
+    /**
+     * Chunk from the far end was written to the client.
+     */
+    void acknowledgeChunk(EnvelopeTunnel tunnel, long seq) {
+        URL target = tunnelTargets.get(tunnel.getTunnelId());
+        if(target == null)
+            return;
+        Envelope e = tunnelEnvelope(target, TUNNEL_ACK);
+        e.setHeader(TUNNEL_ID, tunnel.getTunnelId());
+        e.setHeader(TUNNEL_SEQ, seq);
+        route(e);
+    }
+
+    /**
+     * Tunnel closed by the client or locally; tell the far end once.
+     */
+    void closeTunnel(EnvelopeTunnel tunnel) {
+        tunnels.remove(tunnel.getTunnelId());
+        URL target = tunnelTargets.remove(tunnel.getTunnelId());
+        if(target == null)
+            return;
+        Envelope e = tunnelEnvelope(target, TUNNEL_CLOSE);
+        e.setHeader(TUNNEL_ID, tunnel.getTunnelId());
+        route(e);
+    }
+
+    /**
+     * Envelopes of an established tunnel: our chunks coming back (acknowledged),
+     * chunks pushed from the far end, its acknowledgements and close.
+     */
+    private void tunnelReply(Envelope e, String op) {
+        Object idObj = e.getHeader(TUNNEL_ID);
+        EnvelopeTunnel tunnel = idObj instanceof Long ? tunnels.get(idObj) : null;
+        if(tunnel == null)
+            return;
+        switch (op) {
+            case TUNNEL_SEND:
+                if(DLC.getErrorMessages(e).size() > 0 || ClearnetServerSensor.isSendFailed(e)) {
+                    tunnel.close();
+                } else {
+                    tunnel.acknowledged();
+                }
+                break;
+            case TUNNEL_RECEIVE:
+                Object content = DLC.getContent(e);
+                Object seq = e.getHeader(TUNNEL_SEQ);
+                if(content instanceof byte[])
+                    tunnel.deliver(seq instanceof Long ? (Long)seq : -1, (byte[])content);
+                break;
+            case TUNNEL_CLOSE:
+                // Far end closed: do not echo close back
+                if(tunnelTargets.remove(tunnel.getTunnelId()) != null)
+                    tunnel.close();
+                break;
+            default:
+                // Our own acknowledgements returning
+        }
+    }
+
+    /**
+     * Write a stored response, answering the client's own conditional request with 304.
+     */
+    private void serveCached(ProxyResponseCache.Hit hit, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        ProxyResponseCache.Entry entry = hit.getEntry();
+        response.setHeader("Age", String.valueOf(entry.getAgeSeconds(System.currentTimeMillis())));
+        response.setHeader("X-Cache", "HIT");
+        if(entry.getETag() != null)
+            response.setHeader("ETag", entry.getETag());
+        if(entry.getLastModified() != null)
+            response.setHeader("Last-Modified", entry.getLastModified());
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if(entry.getStatus() == 200 && ifNoneMatch != null && entry.getETag() != null && ifNoneMatch.contains(entry.getETag())) {
+            response.setStatus(304);
+        } else {
+            response.setStatus(entry.getStatus());
+            if(entry.getContentType() != null)
+                response.setContentType(entry.getContentType());
+            response.setContentLength(entry.getLength());
+            // Straight from the mapped segment
+            baseRequest.getResponse().getHttpOutput().sendContent(hit.getBody());
+        }
+        baseRequest.setHandled(true);
+    }
+
+    /**
+     * Absolute URL of the proxied resource.
+     */
+    protected String proxyURL(HttpServletRequest request) {
+        String uri = request.getRequestURL().toString();
+        String query = request.getQueryString();
+        return query == null ? uri : uri + "?" + query;
+    }
+
     protected Envelope parseEnvelope(HttpServletRequest request) {
         LOG.info("Parsing request into Envelope...");
         Envelope e = Envelope.documentFactory();
@@ -136,17 +524,10 @@ public class EnvelopeProxyDataHandler extends DefaultHandler implements Asynchro
         e.setSensitivity(Envelope.Sensitivity.LOW);
         // Must set id in header for asynchronous support
         e.setHeader(ClearnetServerSensor.HANDLER_ID, id);
-        String uri = request.getRequestURI();
+        // Scheme and host from an absolute-form request line, else the Host header;
+        // HTTPS arrives as CONNECT tunnels instead
+        String uri = request.getRequestURL().toString();
         LOG.info("URI:"+uri);
-        boolean http = uri.startsWith("http://");
-        boolean https = uri.startsWith("https://");
-        if(!http && !https) {
-            if(uri.contains(":443")) {
-                uri = "https://" + uri;
-            } else {
-                uri = "http://" + uri;
-            }
-        }
         try {
             URL url = new URL(uri);
             e.setURL(url);
@@ -173,6 +554,10 @@ public class EnvelopeProxyDataHandler extends DefaultHandler implements Asynchro
         Enumeration<String> headerNames = request.getHeaderNames();
         while(headerNames.hasMoreElements()) {
             String headerName = headerNames.nextElement();
+            if(ClearnetServerSensor.isReservedHeader(headerName)) {
+                LOG.warning("Dropping reserved request header: "+headerName);
+                continue;
+            }
             Enumeration<String> headerValues = request.getHeaders(headerName);
             boolean first = true;
             int i = 2;
@@ -187,44 +572,36 @@ public class EnvelopeProxyDataHandler extends DefaultHandler implements Asynchro
 //                LOG.info("Incoming header:value="+headerName+":"+headerValue);
             }
         }
+        // Internal headers last so no copied header can shadow them
+        // Absolute deadline so expired work can be skipped downstream
+        e.setHeader(ClearnetServerSensor.DEADLINE, System.currentTimeMillis() + deadlines.getServerTimeout());
+        ClearnetServerSensor.markWarmup(request, e);
+        RequestTracer.stamp(request, e);
 
         // Get file content if sent
         if(e.getContentType() != null && e.getContentType().startsWith("multipart/form-data")) {
-        	request.setAttribute(Request.__MULTIPART_CONFIG_ELEMENT, new MultipartConfigElement(""));
+        	request.setAttribute(Request.__MULTIPART_CONFIG_ELEMENT, RequestBuffers.MULTIPART_CONFIG);
             try {
                 Collection<Part> parts = request.getParts();
                 String contentType;
-                String name;
                 String fileName;
                 long size = 0;
-                InputStream is;
-                ByteArrayOutputStream b;
+                byte[] data;
                 int k = 0;
                 for (Part part : parts) {
-                    String msg = "Downloading... {";
-                    name = part.getName();
-                    msg += "\n\tparamName="+name;
                     fileName = part.getSubmittedFileName();
-                    msg += "\n\tfileName="+fileName;
                     contentType = part.getContentType();
-                    msg += "\n\tcontentType="+contentType;
                     size = part.getSize();
-                    msg += "\n\tsize="+size+"\n}";
-                    LOG.info(msg);
+                    if(LOG.isLoggable(Level.INFO))
+                        LOG.info("Downloading... {\n\tparamName="+part.getName()+"\n\tfileName="+fileName+"\n\tcontentType="+contentType+"\n\tsize="+size+"\n}");
                     if(size > 1000000) {
                         // 1Mb
                         LOG.warning("Downloading of file with size="+size+" prevented. Max size is 1Mb.");
                         return e;
                     }
-                    is = part.getInputStream();
-                    if (is != null) {
-                        b = new ByteArrayOutputStream();
-                        int nRead;
-                        byte[] bucket = new byte[16384];
-                        while ((nRead = is.read(bucket, 0, bucket.length)) != -1) {
-                            b.write(bucket, 0, nRead);
-                        }
-                        Content content = Content.buildContent(b.toByteArray(), contentType, fileName, true, true);
+                    data = RequestBuffers.readPart(part);
+                    if (data != null) {
+                        Content content = Content.buildContent(data, contentType, fileName, true, true);
                         content.setSize(size);
                         if (k == 0) {
                             Map<String, Object> d = ((DocumentMessage) e.getMessage()).data.get(k++);
@@ -246,6 +623,7 @@ public class EnvelopeProxyDataHandler extends DefaultHandler implements Asynchro
         //Get post formData params
         String postFormBody = getPostRequestFormData(request);
         if(!postFormBody.isEmpty()){
+            @SuppressWarnings("unchecked")
             Map<String, Object> bodyMap = (Map<String, Object>) JSONParser.parse(postFormBody);
             DLC.addData(Map.class, bodyMap, e);
         }
@@ -254,13 +632,7 @@ public class EnvelopeProxyDataHandler extends DefaultHandler implements Asynchro
         String query = request.getQueryString();
         if(query!=null) {
 //            LOG.info("Incoming query: "+query);
-            Map<String,String> queryMap = new HashMap<>();
-            String[] nvps = query.split("&");
-            for (String nvpStr : nvps) {
-                String[] nvp = nvpStr.split("=");
-                queryMap.put(nvp[0], nvp[1]);
-            }
-            DLC.addData(Map.class, queryMap, e);
+            DLC.addData(Map.class, RequestBuffers.parseQuery(query), e);
         }
         e.setExternal(true);
 
@@ -278,40 +650,23 @@ public class EnvelopeProxyDataHandler extends DefaultHandler implements Asynchro
     }
 
     public String getPostRequestFormData(HttpServletRequest request)  {
-        StringBuilder formData = new StringBuilder();
-        BufferedReader bufferedReader = null;
-        try {
-            InputStream inputStream = request.getInputStream();
-            if (inputStream != null) {
-                bufferedReader = new BufferedReader(new InputStreamReader(inputStream));
-                char[] charBuffer = new char[128];
-                int bytesRead = -1;
-                while ((bytesRead = bufferedReader.read(charBuffer)) > 0) {
-                    formData.append(charBuffer, 0, bytesRead);
-                }
-            }
-        } catch (IOException ex) {
-            LOG.warning(ex.getLocalizedMessage());
-        } finally {
-            if (bufferedReader != null) {
-                try {
-                    bufferedReader.close();
-                } catch (IOException ex) {
-                    LOG.warning(ex.getLocalizedMessage());
-                }
-            }
-        }
-
-        return formData.toString();
+        return RequestBuffers.readBody(request);
     }
 
     protected class ClientHold {
-        private Thread thread;
+        private final CountDownLatch done = new CountDownLatch(1);
         private String target;
         private Request baseRequest;
         private HttpServletRequest request;
         private HttpServletResponse response;
         private Envelope envelope;
+        private final long started = System.currentTimeMillis();
+        private final AtomicBoolean released = new AtomicBoolean();
+        private String cacheKey;
+        private ProxyResponseCache.Hit stale;
+        private boolean tunnel;
+        private volatile boolean tunnelOpened;
+        private RequestTracer.Trace trace;
 
         public ClientHold(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response, Envelope envelope) {
             this.target = target;
@@ -321,17 +676,43 @@ public class EnvelopeProxyDataHandler extends DefaultHandler implements Asynchro
             this.envelope = envelope;
         }
 
-        public void hold(long waitTimeMs) {
-            thread = Thread.currentThread();
+        /**
+         * @return true if answered by a reply, false if timed out and caller must respond
+         */
+        public boolean hold(long waitTimeMs) {
             try {
-                Thread.sleep(waitTimeMs);
+                if(done.await(Math.max(0, waitTimeMs), TimeUnit.MILLISECONDS))
+                    return true;
             } catch (InterruptedException e) {
-                requests.remove(envelope.getId());
+                LOG.warning("Hold interrupted.");
             }
+            if(requests.remove(envelope.getId()) != null)
+                return false;
+            // A reply claimed this hold first and is writing the response; let it finish
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                LOG.warning("Hold interrupted while reply in progress.");
+            }
+            return true;
+        }
+
+        /**
+         * Return this hold's slot to the sensor's concurrency limiter once.
+         * @param sample true to feed the round-trip time into the limit
+         * @param dropped true when timed out
+         */
+        public void releaseLimit(boolean sample, boolean dropped) {
+            if(!released.compareAndSet(false, true))
+                return;
+            if(sample)
+                sensor.getConcurrencyLimiter().release(System.currentTimeMillis() - started, dropped);
+            else
+                sensor.getConcurrencyLimiter().cancel();
         }
 
         public void wake() {
-            thread.interrupt();
+            done.countDown();
         }
 
         public String getTarget() {
@@ -0,0 +1,210 @@
+package io.onemfive.clearnet.server;
+
+import org.eclipse.jetty.io.AbstractConnection;
+import org.eclipse.jetty.io.Connection;
+import org.eclipse.jetty.io.EndPoint;
+import org.eclipse.jetty.util.Callback;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.logging.Logger;
+
+/**
+ * Connection replacing HTTP on a client's socket once a CONNECT tunnel
+ * is established over the bus.
+ *
+ * Bytes read from the client are sent as chunk Envelopes; at most
+ * window chunks may be unacknowledged before reading stops, pushing
+ * back on the client through TCP. Chunks arriving from the bus are
+ * queued and written without blocking, each acknowledged to the far
+ * end only once written so it can apply the same window.
+ *
+ * Bytes the client sent right behind its CONNECT, already read by HTTP,
+ * are handed over on upgrade and sent first.
+ *
+ * @author objectorange
+ */
+public class EnvelopeTunnel extends AbstractConnection implements Connection.UpgradeTo {
+
+    private static Logger LOG = Logger.getLogger(EnvelopeTunnel.class.getName());
+
+    private final EnvelopeProxyDataHandler handler;
+    private final long tunnelId;
+    private final int chunkBytes;
+    private final int window;
+
+    private int unacknowledged = 0;
+    private boolean readPaused = false;
+    private long sendSeq = 0;
+
+    private final ArrayDeque<Chunk> outbound = new ArrayDeque<>();
+    private boolean writing = false;
+    private boolean closed = false;
+    private ByteBuffer prefilled;
+
+    private final Callback writeCallback = new Callback() {
+        @Override
+        public void succeeded() {
+            Chunk written;
+            synchronized (EnvelopeTunnel.this) {
+                written = outbound.poll();
+                writing = false;
+            }
+            if(written != null)
+                handler.acknowledgeChunk(EnvelopeTunnel.this, written.seq);
+            writeNext();
+        }
+
+        @Override
+        public void failed(Throwable x) {
+            LOG.info("Tunnel "+tunnelId+" write to client failed: "+x.getLocalizedMessage());
+            close();
+        }
+    };
+
+    public EnvelopeTunnel(EndPoint endPoint, Executor executor, EnvelopeProxyDataHandler handler, long tunnelId, int chunkBytes, int window) {
+        super(endPoint, executor);
+        this.handler = handler;
+        this.tunnelId = tunnelId;
+        this.chunkBytes = chunkBytes;
+        this.window = window;
+    }
+
+    public long getTunnelId() {
+        return tunnelId;
+    }
+
+    @Override
+    public void onUpgradeTo(ByteBuffer buffer) {
+        if(buffer != null && buffer.hasRemaining()) {
+            prefilled = ByteBuffer.allocate(buffer.remaining());
+            prefilled.put(buffer).flip();
+        }
+    }
+
+    @Override
+    public void onOpen() {
+        super.onOpen();
+        ByteBuffer early = prefilled;
+        prefilled = null;
+        if(early == null || forward(early))
+            fillInterested();
+    }
+
+    @Override
+    public void onFillable() {
+        ByteBuffer buffer = ByteBuffer.allocate(chunkBytes);
+        buffer.flip();
+        try {
+            int filled = getEndPoint().fill(buffer);
+            if(filled < 0) {
+                close();
+                return;
+            }
+            if(filled == 0) {
+                fillInterested();
+                return;
+            }
+            if(forward(buffer))
+                fillInterested();
+        } catch (Exception e) {
+            LOG.info("Tunnel "+tunnelId+" read from client failed: "+e.getLocalizedMessage());
+            close();
+        }
+    }
+
+    /**
+     * Send bytes read from the client as chunks.
+     * @return false once the window is full and reading must pause
+     */
+    private boolean forward(ByteBuffer data) {
+        boolean more = true;
+        while(data.hasRemaining()) {
+            byte[] chunk = new byte[Math.min(chunkBytes, data.remaining())];
+            data.get(chunk);
+            long seq;
+            synchronized (this) {
+                seq = sendSeq++;
+                more = ++unacknowledged < window;
+                readPaused = !more;
+            }
+            handler.sendChunk(this, seq, chunk);
+        }
+        return more;
+    }
+
+    /**
+     * Far end received a chunk; resume reading if the window had filled.
+     */
+    void acknowledged() {
+        boolean resume;
+        synchronized (this) {
+            if(unacknowledged > 0)
+                unacknowledged--;
+            resume = readPaused && !closed;
+            readPaused = false;
+        }
+        if(resume)
+            fillInterested();
+    }
+
+    /**
+     * Queue bytes from the far end for writing to the client.
+     */
+    void deliver(long seq, byte[] data) {
+        synchronized (this) {
+            if(closed)
+                return;
+            outbound.add(new Chunk(seq, ByteBuffer.wrap(data)));
+        }
+        writeNext();
+    }
+
+    private void writeNext() {
+        Chunk next;
+        synchronized (this) {
+            if(writing || closed)
+                return;
+            next = outbound.peek();
+            if(next == null)
+                return;
+            writing = true;
+        }
+        getEndPoint().write(writeCallback, next.data);
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            if(closed)
+                return;
+            closed = true;
+            outbound.clear();
+        }
+        handler.closeTunnel(this);
+        super.close();
+    }
+
+    @Override
+    public void onClose() {
+        super.onClose();
+        synchronized (this) {
+            if(closed)
+                return;
+            closed = true;
+            outbound.clear();
+        }
+        handler.closeTunnel(this);
+    }
+
+    private static class Chunk {
+        private final long seq;
+        private final ByteBuffer data;
+
+        private Chunk(long seq, ByteBuffer data) {
+            this.seq = seq;
+            this.data = data;
+        }
+    }
+}
@@ -7,9 +7,12 @@ import io.onemfive.data.util.JSONParser;
 import io.onemfive.sensors.SensorsService;
 import org.eclipse.jetty.websocket.api.RemoteEndpoint;
 import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.StatusCode;
+import org.eclipse.jetty.websocket.api.SuspendToken;
 import org.eclipse.jetty.websocket.api.WebSocketAdapter;
+import org.eclipse.jetty.websocket.api.WriteCallback;
 
-import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 /**
@@ -21,6 +24,10 @@ import java.util.logging.Logger;
  *
  * Jetty sets Session through onWebSocketConnect().
  *
+ * Pushes are written asynchronously; a browser falling more than
+ * MAX_PENDING_WRITES messages behind is disconnected rather than
+ * buffered without bound.
+ *
  * Feel free to extend overriding onWebSocketText() and pushEnvelope().
  *
  * @author objectorange
@@ -29,8 +36,25 @@ public class EnvelopeWebSocket extends WebSocketAdapter {
 
     private static Logger LOG = Logger.getLogger(EnvelopeWebSocket.class.getName());
 
+    public static int MAX_PENDING_WRITES = 64;
+
     protected ClearnetServerSensor sensor;
     protected Session session;
+    private SuspendToken suspendToken;
+    private boolean inboundSuspended = false;
+    private final AtomicInteger pendingWrites = new AtomicInteger();
+    private final WriteCallback writeCallback = new WriteCallback() {
+        @Override
+        public void writeFailed(Throwable x) {
+            pendingWrites.decrementAndGet();
+            LOG.warning("Text message to browser failed: "+x.getLocalizedMessage());
+        }
+
+        @Override
+        public void writeSuccess() {
+            pendingWrites.decrementAndGet();
+        }
+    };
 
     public EnvelopeWebSocket() {}
 
@@ -48,6 +72,31 @@ public class EnvelopeWebSocket extends WebSocketAdapter {
         LOG.info("+++ WebSocket Connect...");
         this.session = session;
         LOG.info("Host: "+session.getRemoteAddress().getAddress().getCanonicalHostName());
+        synchronized (this) {
+            // Created lazily on first connect, possibly while already paused
+            if(!inboundSuspended && sensor != null && sensor.isPaused())
+                inboundSuspended = true;
+            if(inboundSuspended)
+                suspendToken = session.suspend();
+        }
+    }
+
+    /**
+     * Stop reading inbound frames (sensor paused); they stay in the socket
+     * until resumed, pushing back on the browser.
+     */
+    public synchronized void suspendInbound() {
+        inboundSuspended = true;
+        if(session != null && session.isOpen() && suspendToken == null)
+            suspendToken = session.suspend();
+    }
+
+    public synchronized void resumeInbound() {
+        inboundSuspended = false;
+        if(suspendToken != null) {
+            suspendToken.resume();
+            suspendToken = null;
+        }
     }
 
     @Override
@@ -55,42 +104,92 @@ public class EnvelopeWebSocket extends WebSocketAdapter {
         LOG.info("WebSocket Text received: "+message);
         if(message != null && !message.equals("keep-alive")) {
             LOG.info("Sending WebSocket text receieved to bus...");
+            RequestTracer tracer = sensor.getTracer();
+            RequestTracer.Trace trace = tracer == null ? null : tracer.start("WebSocket text", null);
             Envelope e = Envelope.eventFactory(EventMessage.Type.TEXT);
+            e.setHeader(RequestTracer.TRACE_ID, trace == null ? RequestTracer.newTraceId() : trace.getTraceId());
             // Flag as LOW for HTTP
             e.setSensitivity(Envelope.Sensitivity.LOW);
             // Add Data
             DLC.addContent(message, e);
             // Add Route
             DLC.addRoute(SensorsService.class, SensorsService.OPERATION_REPLY, e);
+            if(trace != null)
+                trace.mark("parse");
             // Send to bus
             sensor.send(e);
+            if(trace != null)
+                trace.end("send", 0);
         }
     }
 
+    /**
+     * @return text messages queued to the browser not yet written
+     */
+    public int getPendingWrites() {
+        return pendingWrites.get();
+    }
+
     public void pushEnvelope(Envelope e) {
-        EventMessage em = DLC.getEventMessage(e);
-        Object obj = em.getMessage();
-        if(obj instanceof String) {
-            String txt = (String)obj;
-            LOG.info("Received Text Message to send to browser: " + txt);
-            if (session == null) {
-                LOG.warning("Jetty WebSocket session not yet established. Unable to send message.");
-                return;
-            }
-            try {
+        RequestTracer tracer = sensor == null ? null : sensor.getTracer();
+        Object traceId = e.getHeader(RequestTracer.TRACE_ID);
+        final RequestTracer.Trace trace = tracer == null ? null : tracer.start("WebSocket push", traceId instanceof String ? (String)traceId : null);
+        // Ended here unless handed to the write callback
+        boolean writing = false;
+        try {
+            EventMessage em = DLC.getEventMessage(e);
+            Object obj = em.getMessage();
+            if(obj instanceof String) {
+                String txt = (String)obj;
+                if(trace != null)
+                    trace.mark("serialize");
+                LOG.info("Received Text Message to send to browser: " + txt);
+                if (session == null) {
+                    LOG.warning("Jetty WebSocket session not yet established. Unable to send message.");
+                    if(trace != null)
+                        trace.error("WebSocket session not established");
+                    return;
+                }
                 RemoteEndpoint endpoint = session.getRemote();
                 if (endpoint == null) {
                     LOG.warning("No RemoteEndpoint found for current Jetty WebSocket session.");
+                    if(trace != null)
+                        trace.error("No RemoteEndpoint");
+                } else if(pendingWrites.get() >= MAX_PENDING_WRITES) {
+                    LOG.info("Browser "+pendingWrites.get()+" messages behind; closing WebSocket.");
+                    if(trace != null)
+                        trace.error("Too many pending writes");
+                    session.close(StatusCode.TRY_AGAIN_LATER, "Too slow");
                 } else {
                     LOG.info("Sending text message to browser...");
-                    endpoint.sendString(txt);
-                    LOG.info("Text message sent to browser.");
+                    // Asynchronous so a slow browser does not block the notifying thread
+                    pendingWrites.incrementAndGet();
+                    if(trace == null) {
+                        endpoint.sendString(txt, writeCallback);
+                    } else {
+                        endpoint.sendString(txt, new WriteCallback() {
+                            @Override
+                            public void writeFailed(Throwable x) {
+                                writeCallback.writeFailed(x);
+                                trace.error(x.getLocalizedMessage());
+                                trace.end("write", 0);
+                            }
+
+                            @Override
+                            public void writeSuccess() {
+                                writeCallback.writeSuccess();
+                                trace.end("write", 0);
+                            }
+                        });
+                        writing = true;
+                    }
                 }
-            } catch (IOException ex) {
-                LOG.warning(ex.getLocalizedMessage());
+            } else {
+                LOG.warning("Object received not a String and thus not handled by this adapter. Ignoring.");
             }
-        } else {
-            LOG.warning("Object received not a String and thus not handled by this adapter. Ignoring.");
+        } finally {
+            if(trace != null && !writing)
+                trace.end(null, 0);
         }
     }
 
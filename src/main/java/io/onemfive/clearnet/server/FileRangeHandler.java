@@ -0,0 +1,290 @@
+package io.onemfive.clearnet.server;
+
+import org.eclipse.jetty.http.DateGenerator;
+import org.eclipse.jetty.http.HttpMethod;
+import org.eclipse.jetty.http.MimeTypes;
+import org.eclipse.jetty.server.HttpOutput;
+import org.eclipse.jetty.server.InclusiveByteRange;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Serves files of a local server's filesystem resource directory from
+ * memory-mapped buffers, so large media and archives are written from
+ * the page cache without copies through the heap.
+ *
+ * Byte ranges are supported, single (206 with Content-Range) and
+ * multiple (multipart/byteranges), with If-Range so interrupted
+ * downloads resume only when the file is unchanged. Mappings are made
+ * in fixed windows on first use and reused across requests, so seeking
+ * in a video costs no further system calls.
+ *
+ * A file whose size or modification time changed is remapped on its
+ * next request. Deploy by replacing files (write then rename) rather
+ * than rewriting them in place: a file cut short while being served
+ * ends that response early with an error.
+ *
+ * @author objectorange
+ */
+public class FileRangeHandler extends AbstractHandler {
+
+    private static Logger LOG = Logger.getLogger(FileRangeHandler.class.getName());
+
+    private static final long WINDOW = 64L * 1024 * 1024;
+    // Bytes written between checks that the file has not been cut short
+    private static final int SLICE = 1024 * 1024;
+    private static final int MAX_MAPPED_FILES = 64;
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private final File root;
+    private final String rootPath;
+    private final MimeTypes mimeTypes = new MimeTypes();
+    private final Map<String,MappedFile> mapped = new LinkedHashMap<String,MappedFile>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String,MappedFile> eldest) {
+            return size() > MAX_MAPPED_FILES;
+        }
+    };
+
+    public FileRangeHandler(File root) throws IOException {
+        this.root = root.getCanonicalFile();
+        this.rootPath = this.root.getPath() + File.separator;
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        synchronized (mapped) {
+            mapped.clear();
+        }
+        super.doStop();
+    }
+
+    @Override
+    public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        if(baseRequest.isHandled())
+            return;
+        boolean head = HttpMethod.HEAD.is(request.getMethod());
+        if(!head && !HttpMethod.GET.is(request.getMethod()))
+            return;
+        File file = resolve(target);
+        if(file == null)
+            return;
+        long size = file.length();
+        long lastModified = file.lastModified();
+        String etag = "\"" + Long.toHexString(lastModified) + "-" + Long.toHexString(size) + "\"";
+        String contentType = mimeTypes.getMimeByExtension(file.getName());
+
+        response.setHeader("Accept-Ranges", "bytes");
+        response.setHeader("ETag", etag);
+        response.setHeader("Last-Modified", DateGenerator.formatDate(lastModified));
+        if(notModified(request, etag, lastModified)) {
+            response.setStatus(304);
+            baseRequest.setHandled(true);
+            return;
+        }
+
+        List<InclusiveByteRange> ranges = null;
+        Enumeration<String> rangeHeaders = request.getHeaders("Range");
+        if(rangeHeaders != null && rangeHeaders.hasMoreElements() && ifRangeMatches(request, etag, lastModified)) {
+            ranges = InclusiveByteRange.satisfiableRanges(rangeHeaders, size);
+            if(ranges == null || ranges.isEmpty()) {
+                response.setHeader("Content-Range", InclusiveByteRange.to416HeaderRangeString(size));
+                response.setStatus(416);
+                baseRequest.setHandled(true);
+                return;
+            }
+        }
+        baseRequest.setHandled(true);
+
+        MappedFile m = map(file, size, lastModified);
+        try {
+            write(m, head, ranges, contentType, baseRequest, response);
+        } catch (IOException e) {
+            unmap(m);
+            throw e;
+        }
+    }
+
+    private void write(MappedFile m, boolean head, List<InclusiveByteRange> ranges, String contentType,
+                       Request baseRequest, HttpServletResponse response) throws IOException {
+        long size = m.size;
+        HttpOutput out = baseRequest.getResponse().getHttpOutput();
+        if(ranges == null) {
+            response.setStatus(200);
+            if(contentType != null)
+                response.setContentType(contentType);
+            response.setContentLengthLong(size);
+            if(!head)
+                m.write(out, 0, size);
+        } else if(ranges.size() == 1) {
+            InclusiveByteRange r = ranges.get(0);
+            response.setStatus(206);
+            if(contentType != null)
+                response.setContentType(contentType);
+            response.setHeader("Content-Range", r.toHeaderRangeString(size));
+            response.setContentLengthLong(r.getSize());
+            if(!head)
+                m.write(out, r.getFirst(), r.getSize());
+        } else {
+            String boundary = "clearnet" + Long.toHexString(ThreadLocalRandom.current().nextLong());
+            byte[][] partHeaders = new byte[ranges.size()][];
+            long length = 0;
+            for(int i = 0; i < ranges.size(); i++) {
+                InclusiveByteRange r = ranges.get(i);
+                partHeaders[i] = ("\r\n--" + boundary + "\r\n"
+                        + (contentType != null ? "Content-Type: " + contentType + "\r\n" : "")
+                        + "Content-Range: " + r.toHeaderRangeString(size) + "\r\n\r\n").getBytes(ASCII);
+                length += partHeaders[i].length + r.getSize();
+            }
+            byte[] closing = ("\r\n--" + boundary + "--\r\n").getBytes(ASCII);
+            length += closing.length;
+            response.setStatus(206);
+            response.setContentType("multipart/byteranges; boundary=" + boundary);
+            response.setContentLengthLong(length);
+            if(!head) {
+                for(int i = 0; i < ranges.size(); i++) {
+                    out.write(partHeaders[i]);
+                    m.write(out, ranges.get(i).getFirst(), ranges.get(i).getSize());
+                }
+                out.write(closing);
+            }
+        }
+    }
+
+    /**
+     * @return regular, readable file under the root or null
+     */
+    private File resolve(String path) throws IOException {
+        if(path == null || path.isEmpty() || path.endsWith("/") || path.contains("\0"))
+            return null;
+        File file = new File(root, path).getCanonicalFile();
+        // Rejects .. and symlinks leading out of the root
+        if(!file.getPath().startsWith(rootPath) || !file.isFile() || !file.canRead())
+            return null;
+        // Nothing under a dot directory (.git, .env, ...) nor dot files, whatever the link
+        for(String segment : file.getPath().substring(rootPath.length()).split(Pattern.quote(File.separator))) {
+            if(segment.startsWith("."))
+                return null;
+        }
+        return file;
+    }
+
+    private static boolean notModified(HttpServletRequest request, String etag, long lastModified) {
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if(ifNoneMatch != null)
+            return ifNoneMatch.contains(etag) || ifNoneMatch.trim().equals("*");
+        long ifModifiedSince = request.getDateHeader("If-Modified-Since");
+        return ifModifiedSince > 0 && lastModified / 1000 <= ifModifiedSince / 1000;
+    }
+
+    /**
+     * @return true when there is no If-Range or it still names this version of the file
+     */
+    private static boolean ifRangeMatches(HttpServletRequest request, String etag, long lastModified) {
+        String ifRange = request.getHeader("If-Range");
+        if(ifRange == null)
+            return true;
+        if(ifRange.startsWith("\"") || ifRange.startsWith("W/"))
+            return ifRange.equals(etag);
+        try {
+            long date = request.getDateHeader("If-Range");
+            return date > 0 && lastModified / 1000 == date / 1000;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Drop a mapping that failed mid-write so the next request maps the file afresh.
+     */
+    private void unmap(MappedFile m) {
+        synchronized (mapped) {
+            if(mapped.get(m.file.getPath()) == m)
+                mapped.remove(m.file.getPath());
+        }
+    }
+
+    private MappedFile map(File file, long size, long lastModified) throws IOException {
+        String key = file.getPath();
+        synchronized (mapped) {
+            MappedFile m = mapped.get(key);
+            if(m != null && m.size == size && m.lastModified == lastModified)
+                return m;
+            m = new MappedFile(file, size, lastModified);
+            mapped.put(key, m);
+            return m;
+        }
+    }
+
+    /**
+     * A file mapped lazily in windows, each mapped once and shared read-only.
+     */
+    private static final class MappedFile {
+        private final File file;
+        private final long size;
+        private final long lastModified;
+        private final MappedByteBuffer[] windows;
+
+        private MappedFile(File file, long size, long lastModified) {
+            this.file = file;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.windows = new MappedByteBuffer[(int)((size + WINDOW - 1) / WINDOW)];
+        }
+
+        private synchronized ByteBuffer window(int i) throws IOException {
+            if(windows[i] == null) {
+                RandomAccessFile raf = new RandomAccessFile(file, "r");
+                try {
+                    long start = i * WINDOW;
+                    // The mapping stays valid after the channel closes
+                    windows[i] = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, start, Math.min(WINDOW, size - start));
+                } finally {
+                    raf.close();
+                }
+            }
+            return windows[i].asReadOnlyBuffer();
+        }
+
+        /**
+         * Write bytes [offset, offset + length) straight from the mapped windows,
+         * a slice at a time, checking before each that the file still covers it.
+         */
+        private void write(HttpOutput out, long offset, long length) throws IOException {
+            long end = offset + length;
+            while(offset < end) {
+                int i = (int)(offset / WINDOW);
+                ByteBuffer b = window(i);
+                int from = (int)(offset - i * WINDOW);
+                int to = (int)Math.min(Math.min(b.capacity(), end - i * WINDOW), (long)from + SLICE);
+                if(file.length() < i * WINDOW + to)
+                    throw new IOException("File truncated while being served: "+file);
+                b.limit(to).position(from);
+                try {
+                    out.write(b);
+                } catch (InternalError e) {
+                    // Truncated between the check and the copy: the JDK reports the fault this way
+                    throw new IOException("File truncated while being served: "+file, e);
+                }
+                offset += to - from;
+            }
+        }
+    }
+}
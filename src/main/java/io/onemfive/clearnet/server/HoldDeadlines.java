@@ -0,0 +1,116 @@
+package io.onemfive.clearnet.server;
+
+import io.onemfive.data.Envelope;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+/**
+ * Resolves how long a request may be held waiting on the bus.
+ *
+ * Most specific wins: command path prefix, then server name, then
+ * the handler's built-in default. The resulting absolute deadline is
+ * stamped on the Envelope ({@link ClearnetServerSensor#DEADLINE}) so
+ * expired work can be skipped downstream.
+ *
+ * @author objectorange
+ */
+public class HoldDeadlines {
+
+    private static Logger LOG = Logger.getLogger(HoldDeadlines.class.getName());
+
+    /**
+     * Hold timeout in ms per command path prefix, e.g.
+     * 1m5.sensors.clearnet.server.deadline.route.identity/authn=60000
+     */
+    public static final String DEADLINE_ROUTE_PREFIX = "1m5.sensors.clearnet.server.deadline.route.";
+    /**
+     * Hold timeout in ms per server name, e.g.
+     * 1m5.sensors.clearnet.server.deadline.server.1M5=30000
+     */
+    public static final String DEADLINE_SERVER_PREFIX = "1m5.sensors.clearnet.server.deadline.server.";
+
+    private final long serverTimeout;
+    private final List<String> routes = new ArrayList<>();
+    private final List<Long> routeTimeouts = new ArrayList<>();
+
+    public HoldDeadlines(long serverTimeout) {
+        this.serverTimeout = serverTimeout;
+    }
+
+    /**
+     * @param defaultTimeout handler's timeout when nothing is configured
+     */
+    public static HoldDeadlines fromProperties(Properties p, String serverName, long defaultTimeout) {
+        if(p == null)
+            return new HoldDeadlines(defaultTimeout);
+        HoldDeadlines d = new HoldDeadlines(parse(p.getProperty(DEADLINE_SERVER_PREFIX + serverName), defaultTimeout));
+        List<String> names = new ArrayList<>();
+        for(String name : p.stringPropertyNames()) {
+            if(name.startsWith(DEADLINE_ROUTE_PREFIX))
+                names.add(name);
+        }
+        // Longest prefix first
+        Collections.sort(names, new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                return b.length() - a.length();
+            }
+        });
+        for(String name : names) {
+            String route = name.substring(DEADLINE_ROUTE_PREFIX.length());
+            d.routes.add(route.startsWith("/") ? route.substring(1) : route);
+            d.routeTimeouts.add(parse(p.getProperty(name), d.serverTimeout));
+        }
+        return d;
+    }
+
+    /**
+     * @return hold timeout in ms for the command path
+     */
+    public long timeoutFor(String commandPath) {
+        if(commandPath != null) {
+            for(int i = 0; i < routes.size(); i++) {
+                if(commandPath.startsWith(routes.get(i)))
+                    return routeTimeouts.get(i);
+            }
+        }
+        return serverTimeout;
+    }
+
+    /**
+     * @return hold timeout in ms configured for the server, for handlers
+     * whose requests carry no command path
+     */
+    public long getServerTimeout() {
+        return serverTimeout;
+    }
+
+    /**
+     * @return absolute deadline stamped on the Envelope; stamps one timeoutMs
+     * from now first when missing, as when an overridden parse did not
+     */
+    public static long stamp(Envelope e, long timeoutMs) {
+        Object deadline = e.getHeader(ClearnetServerSensor.DEADLINE);
+        if(deadline instanceof Number)
+            return ((Number)deadline).longValue();
+        long at = System.currentTimeMillis() + timeoutMs;
+        e.setHeader(ClearnetServerSensor.DEADLINE, at);
+        return at;
+    }
+
+    private static long parse(String value, long defaultValue) {
+        if(value == null)
+            return defaultValue;
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            LOG.warning("Invalid deadline setting: "+value);
+            return defaultValue;
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package io.onemfive.clearnet.server;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ThreadPool;
+
+import java.util.List;
+import java.util.Properties;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.logging.Logger;
+
+/**
+ * Periodically samples live server health and tells the sensor when its
+ * load level changes so it can report status upward.
+ *
+ * Signals: Jetty thread pool saturation, requests held on the bus
+ * against the concurrency limit, rate of holds timing out, and backlog
+ * of replies and pushes (WebSocket, SSE) waiting to be written. The
+ * worst signal sets the level. Levels rise on the first bad sample and
+ * fall only after several consecutive better ones to avoid flapping.
+ *
+ * @author objectorange
+ */
+public class LoadMonitor extends TimerTask {
+
+    private static Logger LOG = Logger.getLogger(LoadMonitor.class.getName());
+
+    public enum Load {HEALTHY, DEGRADED, OVERLOADED}
+
+    /**
+     * Milliseconds between health samples; 0 disables monitoring.
+     */
+    public static final String LOAD_INTERVAL = "1m5.sensors.clearnet.server.load.interval";
+
+    private static final double DEGRADED_UTILIZATION = 0.75;
+    private static final double OVERLOADED_UTILIZATION = 0.95;
+    private static final double DEGRADED_TIMEOUT_RATE = 0.01;
+    private static final double OVERLOADED_TIMEOUT_RATE = 0.10;
+    private static final int MIN_TIMEOUT_SAMPLES = 10;
+    private static final int DEGRADED_BACKLOG = 256;
+    private static final int OVERLOADED_BACKLOG = 2048;
+    private static final int RECOVERY_SAMPLES = 3;
+
+    private final ClearnetServerSensor sensor;
+    private Timer timer;
+
+    private Load load = Load.HEALTHY;
+    private int betterSamples = 0;
+    private long lastCompleted = 0;
+    private long lastDropped = 0;
+    private long lastRejected = 0;
+
+    public LoadMonitor(ClearnetServerSensor sensor) {
+        this.sensor = sensor;
+    }
+
+    /**
+     * @return started monitor or null when disabled
+     */
+    public static LoadMonitor fromProperties(ClearnetServerSensor sensor, Properties p) {
+        long interval = 5 * 1000;
+        if(p != null) {
+            try {
+                interval = Long.parseLong(p.getProperty(LOAD_INTERVAL, String.valueOf(interval)));
+            } catch (NumberFormatException e) {
+                LOG.warning("Invalid "+LOAD_INTERVAL+"; using "+interval+"ms");
+            }
+        }
+        if(interval <= 0)
+            return null;
+        LoadMonitor monitor = new LoadMonitor(sensor);
+        monitor.timer = new Timer("ClearnetLoadMonitor", true);
+        monitor.timer.schedule(monitor, interval, interval);
+        return monitor;
+    }
+
+    @Override
+    public void run() {
+        try {
+            Load sampled = sample();
+            if(sampled.ordinal() > load.ordinal()) {
+                betterSamples = 0;
+                change(sampled);
+            } else if(sampled.ordinal() < load.ordinal()) {
+                if(++betterSamples >= RECOVERY_SAMPLES) {
+                    betterSamples = 0;
+                    change(sampled);
+                }
+            } else {
+                betterSamples = 0;
+            }
+        } catch (Exception e) {
+            LOG.warning("Load sample failed: "+e.getLocalizedMessage());
+        }
+    }
+
+    private void change(Load newLoad) {
+        LOG.info("Load changed from "+load+" to "+newLoad);
+        load = newLoad;
+        sensor.loadChanged(newLoad);
+    }
+
+    Load sample() {
+        Load worst = Load.HEALTHY;
+
+        // Jetty worker saturation
+        List<Server> servers = sensor.getServers();
+        for(Server server : servers) {
+            ThreadPool pool = server.getThreadPool();
+            if(pool instanceof QueuedThreadPool) {
+                QueuedThreadPool qtp = (QueuedThreadPool)pool;
+                double busy = (double)qtp.getBusyThreads() / Math.max(1, qtp.getMaxThreads());
+                Load l = level(busy, DEGRADED_UTILIZATION, OVERLOADED_UTILIZATION);
+                // Saturated but not queuing is only degraded
+                if(l == Load.OVERLOADED && qtp.getQueueSize() == 0)
+                    l = Load.DEGRADED;
+                worst = max(worst, l);
+            }
+        }
+
+        // Requests held on the bus and holds timing out
+        ConcurrencyLimiter limiter = sensor.getConcurrencyLimiter();
+        double held = (double)limiter.getInFlight() / Math.max(1, limiter.getLimit());
+        worst = max(worst, level(held, DEGRADED_UTILIZATION, OVERLOADED_UTILIZATION));
+        long completed = limiter.getCompleted();
+        long dropped = limiter.getDropped();
+        long rejected = limiter.getRejected();
+        long completedDelta = completed - lastCompleted;
+        if(completedDelta >= MIN_TIMEOUT_SAMPLES) {
+            double timeoutRate = (double)(dropped - lastDropped) / completedDelta;
+            worst = max(worst, level(timeoutRate, DEGRADED_TIMEOUT_RATE, OVERLOADED_TIMEOUT_RATE));
+        }
+        if(rejected > lastRejected)
+            worst = max(worst, Load.DEGRADED);
+        lastCompleted = completed;
+        lastDropped = dropped;
+        lastRejected = rejected;
+
+        // Writes backing up towards clients
+        int backlog = 0;
+        ReplyDispatcher replyDispatcher = sensor.getReplyDispatcher();
+        if(replyDispatcher != null)
+            backlog += replyDispatcher.getQueueDepth();
+        EnvelopeWebSocket webSocket = sensor.getWebSocket();
+        if(webSocket != null)
+            backlog += webSocket.getPendingWrites();
+        EnvelopeEventStreamHandler eventStream = sensor.getEventStream();
+        if(eventStream != null)
+            backlog += eventStream.getQueuedEvents();
+        worst = max(worst, level(backlog, DEGRADED_BACKLOG, OVERLOADED_BACKLOG));
+
+        return worst;
+    }
+
+    private static Load level(double value, double degraded, double overloaded) {
+        if(value >= overloaded)
+            return Load.OVERLOADED;
+        if(value >= degraded)
+            return Load.DEGRADED;
+        return Load.HEALTHY;
+    }
+
+    private static Load max(Load a, Load b) {
+        return a.ordinal() >= b.ordinal() ? a : b;
+    }
+
+    public void shutdown() {
+        cancel();
+        if(timer != null)
+            timer.cancel();
+    }
+}
@@ -0,0 +1,510 @@
+package io.onemfive.clearnet.server;
+
+import io.onemfive.data.Envelope;
+import org.eclipse.jetty.http.DateParser;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+/**
+ * Shared HTTP cache (RFC 7234) for GET responses proxied over the bus.
+ *
+ * Bodies are appended to a ring of memory-mapped segment files; an
+ * in-memory index maps URL to segment, offset and freshness metadata.
+ * When the head segment fills the oldest one is reclaimed whole, so the
+ * cache is bounded by segment count times segment size. Entries hit
+ * while in the segment next to be reclaimed are copied forward, making
+ * eviction approximate LRU at segment granularity.
+ *
+ * A reclaimed segment is replaced by a fresh file and mapping rather
+ * than overwritten: readers still writing a body from the old mapping
+ * are unaffected and need no locks.
+ *
+ * Origin response status and headers (Cache-Control, Expires, Date, Age,
+ * ETag, Last-Modified, Content-Type, Vary) are read only from the reply
+ * Envelope's {@link #RESPONSE_STATUS} and {@link #RESPONSE_HEADER_PREFIX}
+ * headers, never from request headers copied onto the Envelope. Being a
+ * shared cache, responses marked private and requests carrying credentials
+ * are neither stored nor served.
+ *
+ * @author objectorange
+ */
+public class ProxyResponseCache {
+
+    private static Logger LOG = Logger.getLogger(ProxyResponseCache.class.getName());
+
+    /**
+     * Base directory for segment files, one subdirectory per server; unset disables caching.
+     */
+    public static final String CACHE_DIR = "1m5.sensors.clearnet.server.proxy.cache.dir";
+    /**
+     * Upper bound on bytes of cached bodies.
+     */
+    public static final String CACHE_MAX_BYTES = "1m5.sensors.clearnet.server.proxy.cache.maxBytes";
+    public static final String CACHE_SEGMENT_BYTES = "1m5.sensors.clearnet.server.proxy.cache.segmentBytes";
+    /**
+     * Reply Envelope header carrying the origin's HTTP status code.
+     */
+    public static final String RESPONSE_STATUS = "1m5.sensors.clearnet.server.proxy.status";
+    /**
+     * Prefix of reply Envelope headers carrying origin response headers, suffixed
+     * with the lower-cased header name, e.g. 1m5.sensors.clearnet.server.proxy.response.cache-control
+     */
+    public static final String RESPONSE_HEADER_PREFIX = "1m5.sensors.clearnet.server.proxy.response.";
+
+    /**
+     * Statuses cacheable by default (RFC 7231 6.1) that are served as stored;
+     * 206 is left out as ranges are not stored.
+     */
+    private static final int[] CACHEABLE_STATUSES = {200, 203, 204, 300, 301, 404, 405, 410, 414, 501};
+
+    private static final double HEURISTIC_FRACTION = 0.1;
+    private static final long MAX_HEURISTIC_MS = 24 * 60 * 60 * 1000L;
+
+    private final File dir;
+    private final int segmentBytes;
+    private final Segment[] segments;
+    private final Map<String,Entry> index = new HashMap<>();
+    private int head = 0;
+
+    public ProxyResponseCache(File dir, long maxBytes, int segmentBytes) throws IOException {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        if(!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Unable to create cache directory "+dir);
+        // Index is in memory only; segments from a previous run are unreachable
+        File[] old = dir.listFiles();
+        if(old != null) {
+            for(File f : old) {
+                if(f.getName().startsWith("segment-"))
+                    f.delete();
+            }
+        }
+        int count = (int)Math.max(2, maxBytes / segmentBytes);
+        segments = new Segment[count];
+        for(int i = 0; i < count; i++) {
+            segments[i] = new Segment(i, 0);
+        }
+    }
+
+    /**
+     * @return cache or null when not configured
+     */
+    public static ProxyResponseCache fromProperties(Properties p, String serverName) {
+        if(p == null || p.getProperty(CACHE_DIR) == null)
+            return null;
+        try {
+            long maxBytes = Long.parseLong(p.getProperty(CACHE_MAX_BYTES, String.valueOf(256L * 1024 * 1024)));
+            int segmentBytes = Integer.parseInt(p.getProperty(CACHE_SEGMENT_BYTES, String.valueOf(32 * 1024 * 1024)));
+            ProxyResponseCache cache = new ProxyResponseCache(new File(p.getProperty(CACHE_DIR), serverName), maxBytes, segmentBytes);
+            LOG.info("Proxy cache for "+serverName+": "+cache.segments.length+" segments of "+segmentBytes+" bytes");
+            return cache;
+        } catch (NumberFormatException | IOException e) {
+            LOG.warning("Proxy cache disabled: "+e.getLocalizedMessage());
+            return null;
+        }
+    }
+
+    /**
+     * @return cached response for the URL matching the request's Vary headers, fresh or stale, or null
+     */
+    public synchronized Hit get(String key, HttpServletRequest request) {
+        Entry e = index.get(key);
+        if(e == null)
+            return null;
+        Segment s = segments[e.segment];
+        if(s.generation != e.generation) {
+            index.remove(key);
+            return null;
+        }
+        if(!e.varies(request))
+            return null;
+        ByteBuffer body = s.slice(e.offset, e.length);
+        if(e.segment != head && e.segment == (head + 1) % segments.length) {
+            // Next to be reclaimed but still in use: copy forward
+            byte[] copy = new byte[e.length];
+            body.duplicate().get(copy);
+            Entry moved = append(key, copy, e);
+            if(moved != null) {
+                e = moved;
+                body = segments[moved.segment].slice(moved.offset, moved.length);
+            }
+        }
+        return new Hit(e, body);
+    }
+
+    /**
+     * @return false for requests whose responses a shared cache must neither store nor serve
+     */
+    public static boolean isCacheable(HttpServletRequest request) {
+        return "GET".equals(request.getMethod())
+                && request.getHeader("Authorization") == null
+                && request.getHeader("Cookie") == null
+                && !hasDirective(request.getHeader("Cache-Control"), "no-store");
+    }
+
+    /**
+     * Store a reply if its status and headers allow it.
+     */
+    public synchronized void put(String key, byte[] body, Envelope reply, HttpServletRequest request) {
+        if(body == null || body.length > segmentBytes || !isCacheable(request))
+            return;
+        int status = status(reply);
+        if(!isCacheableStatus(status))
+            return;
+        String cacheControl = header(reply, "Cache-Control");
+        String vary = header(reply, "Vary");
+        if(hasDirective(cacheControl, "no-store") || hasDirective(cacheControl, "private")
+                || (vary != null && vary.trim().equals("*")))
+            return;
+        long now = System.currentTimeMillis();
+        long lifetime = freshnessLifetime(reply, now);
+        String etag = header(reply, "ETag");
+        String lastModified = header(reply, "Last-Modified");
+        if(lifetime <= 0 && etag == null && lastModified == null)
+            return; // never fresh and cannot be revalidated
+        Entry template = new Entry(key, -1, 0, 0, 0, status,
+                header(reply, "Content-Type"), etag, lastModified, varyNames(vary), null);
+        template.varyValues = template.requestValues(request);
+        template.storedAt = now;
+        template.freshUntil = hasDirective(cacheControl, "no-cache") ? now : now + lifetime;
+        append(key, body, template);
+    }
+
+    /**
+     * A conditional request for a stale entry was answered 304 Not Modified.
+     * @return true if validators match and entry was refreshed; caller serves it
+     */
+    public synchronized boolean revalidated(Hit stale, Envelope reply) {
+        if(status(reply) != 304)
+            return false;
+        Entry e = stale.entry;
+        String etag = header(reply, "ETag");
+        if(etag != null && e.etag != null && !etag.equals(e.etag))
+            return false;
+        long now = System.currentTimeMillis();
+        String cacheControl = header(reply, "Cache-Control");
+        e.storedAt = now;
+        e.freshUntil = hasDirective(cacheControl, "no-cache") ? now : now + Math.max(0, freshnessLifetime(reply, now));
+        return true;
+    }
+
+    private Entry append(String key, byte[] body, Entry meta) {
+        Segment s = segments[head];
+        if(s.position + body.length > segmentBytes) {
+            try {
+                s = roll();
+            } catch (IOException ex) {
+                LOG.warning("Unable to reclaim proxy cache segment: "+ex.getLocalizedMessage());
+                return null;
+            }
+        }
+        int offset = s.write(body);
+        Entry e = new Entry(key, s.index, s.generation, offset, body.length, meta.status,
+                meta.contentType, meta.etag, meta.lastModified, meta.varyNames, meta.varyValues);
+        e.storedAt = meta.storedAt;
+        e.freshUntil = meta.freshUntil;
+        s.keys.add(key);
+        index.put(key, e);
+        return e;
+    }
+
+    private Segment roll() throws IOException {
+        head = (head + 1) % segments.length;
+        Segment old = segments[head];
+        for(String key : old.keys) {
+            Entry e = index.get(key);
+            if(e != null && e.segment == old.index && e.generation == old.generation)
+                index.remove(key);
+        }
+        old.delete();
+        segments[head] = new Segment(old.index, old.generation + 1);
+        return segments[head];
+    }
+
+    public synchronized int size() {
+        return index.size();
+    }
+
+    /**
+     * Freshness lifetime in ms from max-age, Expires or, failing both, 10% of
+     * time since Last-Modified; 0 when none apply.
+     */
+    static long freshnessLifetime(Envelope reply, long now) {
+        String cacheControl = header(reply, "Cache-Control");
+        long date = parseDate(header(reply, "Date"), now);
+        long age = 0;
+        String ageHeader = header(reply, "Age");
+        if(ageHeader != null) {
+            try {
+                age = Long.parseLong(ageHeader.trim()) * 1000;
+            } catch (NumberFormatException e) {
+                age = 0;
+            }
+        }
+        // s-maxage applies to shared caches in place of max-age
+        long maxAge = directiveSeconds(cacheControl, "s-maxage");
+        if(maxAge < 0)
+            maxAge = directiveSeconds(cacheControl, "max-age");
+        if(maxAge >= 0)
+            return maxAge * 1000 - age;
+        String expires = header(reply, "Expires");
+        if(expires != null) {
+            long at = parseDate(expires, -1);
+            return at < 0 ? 0 : at - date - age;
+        }
+        long lastModified = parseDate(header(reply, "Last-Modified"), -1);
+        if(lastModified > 0 && lastModified < date)
+            return Math.min(MAX_HEURISTIC_MS, (long)((date - lastModified) * HEURISTIC_FRACTION)) - age;
+        return 0;
+    }
+
+    /**
+     * @return true if the client requires the origin be consulted before using a stored response
+     */
+    static boolean requiresRevalidation(HttpServletRequest request) {
+        String cacheControl = request.getHeader("Cache-Control");
+        if(hasDirective(cacheControl, "no-cache") || directiveSeconds(cacheControl, "max-age") == 0)
+            return true;
+        String pragma = request.getHeader("Pragma");
+        return cacheControl == null && pragma != null && pragma.toLowerCase(Locale.ENGLISH).contains("no-cache");
+    }
+
+    static boolean hasDirective(String cacheControl, String directive) {
+        if(cacheControl == null)
+            return false;
+        for(String d : cacheControl.split(",")) {
+            String t = d.trim().toLowerCase(Locale.ENGLISH);
+            if(t.equals(directive) || t.startsWith(directive + "="))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return seconds of a directive like max-age=60 or -1 if absent
+     */
+    static long directiveSeconds(String cacheControl, String directive) {
+        if(cacheControl == null)
+            return -1;
+        for(String d : cacheControl.split(",")) {
+            String t = d.trim().toLowerCase(Locale.ENGLISH);
+            if(t.startsWith(directive + "=")) {
+                try {
+                    return Long.parseLong(t.substring(directive.length() + 1).replace("\"", "").trim());
+                } catch (NumberFormatException e) {
+                    return 0; // invalid treated as stale
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return origin response header of a reply, or null
+     */
+    static String header(Envelope e, String name) {
+        Object v = e.getHeader(RESPONSE_HEADER_PREFIX + name.toLowerCase(Locale.ENGLISH));
+        return v == null ? null : v.toString();
+    }
+
+    /**
+     * @return origin status of a reply, or -1 when not given
+     */
+    public static int status(Envelope e) {
+        Object v = e.getHeader(RESPONSE_STATUS);
+        if(v instanceof Number)
+            return ((Number)v).intValue();
+        if(v != null) {
+            try {
+                return Integer.parseInt(v.toString().trim());
+            } catch (NumberFormatException ex) {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    static boolean isCacheableStatus(int status) {
+        for(int s : CACHEABLE_STATUSES) {
+            if(s == status)
+                return true;
+        }
+        return false;
+    }
+
+    private static long parseDate(String value, long defaultValue) {
+        if(value == null)
+            return defaultValue;
+        long t = DateParser.parseDate(value);
+        return t < 0 ? defaultValue : t;
+    }
+
+    private static String[] varyNames(String vary) {
+        if(vary == null || vary.trim().isEmpty())
+            return new String[0];
+        String[] names = vary.split(",");
+        for(int i = 0; i < names.length; i++) {
+            names[i] = names[i].trim();
+        }
+        return names;
+    }
+
+    private class Segment {
+        private final int index;
+        private final long generation;
+        private final File file;
+        private final MappedByteBuffer buffer;
+        private final List<String> keys = new ArrayList<>();
+        private int position = 0;
+
+        private Segment(int index, long generation) throws IOException {
+            this.index = index;
+            this.generation = generation;
+            this.file = new File(dir, "segment-"+index+"-"+generation+".dat");
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(segmentBytes);
+                buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+            } finally {
+                raf.close();
+            }
+        }
+
+        private int write(byte[] body) {
+            ByteBuffer b = buffer.duplicate();
+            b.position(position);
+            b.put(body);
+            int offset = position;
+            position += body.length;
+            return offset;
+        }
+
+        private ByteBuffer slice(int offset, int length) {
+            ByteBuffer b = buffer.duplicate();
+            b.position(offset);
+            b.limit(offset + length);
+            return b.slice().asReadOnlyBuffer();
+        }
+
+        /**
+         * Unlink; pages stay valid for readers until the mapping is collected.
+         */
+        private void delete() {
+            if(!file.delete())
+                file.deleteOnExit();
+        }
+    }
+
+    public static class Entry {
+        private final String key;
+        private final int segment;
+        private final long generation;
+        private final int offset;
+        private final int length;
+        private final int status;
+        private final String contentType;
+        private final String etag;
+        private final String lastModified;
+        private final String[] varyNames;
+        private String[] varyValues;
+        private volatile long storedAt;
+        private volatile long freshUntil;
+
+        private Entry(String key, int segment, long generation, int offset, int length, int status, String contentType,
+                      String etag, String lastModified, String[] varyNames, String[] varyValues) {
+            this.key = key;
+            this.segment = segment;
+            this.generation = generation;
+            this.offset = offset;
+            this.length = length;
+            this.status = status;
+            this.contentType = contentType;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.varyNames = varyNames;
+            this.varyValues = varyValues;
+        }
+
+        private String[] requestValues(HttpServletRequest request) {
+            String[] values = new String[varyNames.length];
+            for(int i = 0; i < varyNames.length; i++) {
+                values[i] = request.getHeader(varyNames[i]);
+            }
+            return values;
+        }
+
+        private boolean varies(HttpServletRequest request) {
+            String[] values = requestValues(request);
+            for(int i = 0; i < values.length; i++) {
+                if(values[i] == null ? varyValues[i] != null : !values[i].equals(varyValues[i]))
+                    return false;
+            }
+            return true;
+        }
+
+        public boolean isFresh(long now) {
+            return now < freshUntil;
+        }
+
+        /**
+         * @return seconds since stored or last revalidated
+         */
+        public long getAgeSeconds(long now) {
+            return Math.max(0, (now - storedAt) / 1000);
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+
+        public String getETag() {
+            return etag;
+        }
+
+        public String getLastModified() {
+            return lastModified;
+        }
+    }
+
+    public static class Hit {
+        private final Entry entry;
+        private final ByteBuffer body;
+
+        private Hit(Entry entry, ByteBuffer body) {
+            this.entry = entry;
+            this.body = body;
+        }
+
+        public Entry getEntry() {
+            return entry;
+        }
+
+        /**
+         * @return read-only view of the body in its mapped segment
+         */
+        public ByteBuffer getBody() {
+            return body.duplicate();
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package io.onemfive.clearnet.server;
+
+import io.onemfive.data.Envelope;
+
+import java.util.Collections;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Takes replies off the bus thread so serializing and writing to slow
+ * HTTP clients never stalls the service bus.
+ *
+ * Striped single-threaded executors keyed by Envelope id keep replies
+ * to the same request in order. Each stripe's queue is bounded; when
+ * full the bus thread waits up to the offer timeout for room and the
+ * reply is then dropped with a warning, leaving its request to be
+ * answered at its deadline. A reply never runs on the bus thread.
+ * Once a partial reply is dropped, the rest of that Envelope's replies
+ * are dropped too, so a stream ends on its idle timeout rather than
+ * completing with a record missing.
+ *
+ * @author objectorange
+ */
+public class ReplyDispatcher {
+
+    private static Logger LOG = Logger.getLogger(ReplyDispatcher.class.getName());
+
+    /**
+     * Number of reply threads; 0 replies synchronously on the bus thread.
+     */
+    public static final String REPLY_THREADS = "1m5.sensors.clearnet.server.reply.threads";
+    /**
+     * Maximum replies queued per reply thread.
+     */
+    public static final String REPLY_QUEUE = "1m5.sensors.clearnet.server.reply.queue";
+    /**
+     * Maximum time in milliseconds the bus thread waits for room in a full reply queue.
+     */
+    public static final String REPLY_OFFER_TIMEOUT = "1m5.sensors.clearnet.server.reply.offerTimeout";
+
+    private static final int MAX_BROKEN = 1024;
+
+    private final ThreadPoolExecutor[] stripes;
+    private final long offerTimeoutMs;
+    // Envelope ids with a dropped partial reply; cleared by their final reply
+    private final Set<Long> broken = Collections.newSetFromMap(new ConcurrentHashMap<Long,Boolean>());
+
+    public ReplyDispatcher(int threads, int queueSize, long offerTimeoutMs) {
+        this.offerTimeoutMs = offerTimeoutMs;
+        stripes = new ThreadPoolExecutor[threads];
+        for(int i = 0; i < threads; i++) {
+            final String name = "ClearnetReply-" + i;
+            stripes[i] = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<Runnable>(queueSize),
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, name);
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+        }
+    }
+
+    public static ReplyDispatcher fromProperties(Properties p) {
+        int threads = Runtime.getRuntime().availableProcessors();
+        int queueSize = 1024;
+        long offerTimeoutMs = 1000;
+        if(p != null) {
+            try {
+                threads = Integer.parseInt(p.getProperty(REPLY_THREADS, String.valueOf(threads)));
+                queueSize = Integer.parseInt(p.getProperty(REPLY_QUEUE, String.valueOf(queueSize)));
+                offerTimeoutMs = Long.parseLong(p.getProperty(REPLY_OFFER_TIMEOUT, String.valueOf(offerTimeoutMs)));
+            } catch (NumberFormatException e) {
+                LOG.warning("Invalid reply dispatch configuration; using defaults: "+e.getLocalizedMessage());
+            }
+        }
+        LOG.info("Reply dispatch: threads="+threads+", queue="+queueSize+", offerTimeout="+offerTimeoutMs+"ms");
+        return new ReplyDispatcher(Math.max(0, threads), Math.max(1, queueSize), Math.max(0, offerTimeoutMs));
+    }
+
+    public void dispatch(final Envelope e, final AsynchronousEnvelopeHandler handler) {
+        Runnable reply = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    handler.reply(e);
+                } catch (Exception ex) {
+                    LOG.warning("Reply to handler failed: "+ex.getLocalizedMessage());
+                }
+            }
+        };
+        if(stripes.length == 0) {
+            reply.run();
+            return;
+        }
+        Long id = e.getId();
+        boolean partial = EnvelopeJSONDataHandler.isPartial(e);
+        if(id != null && broken.contains(id)) {
+            if(!partial)
+                broken.remove(id);
+            LOG.warning("Dropping reply to Envelope "+id+" following a dropped partial reply.");
+            return;
+        }
+        ThreadPoolExecutor stripe = stripes[id == null ? 0 : (int)((id & Long.MAX_VALUE) % stripes.length)];
+        try {
+            stripe.execute(reply);
+            return;
+        } catch (RejectedExecutionException ex) {
+            // Full: wait for room behind the replies already queued rather than overtake them
+        }
+        boolean queued = false;
+        try {
+            // The stripe's thread is running once its queue has filled, so it takes what is offered
+            queued = !stripe.isShutdown() && stripe.getQueue().offer(reply, offerTimeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        if(!queued) {
+            LOG.warning("Reply queue full or shut down; dropping reply to Envelope "+id+".");
+            if(partial && id != null && broken.size() < MAX_BROKEN)
+                broken.add(id);
+        }
+    }
+
+    /**
+     * @return replies waiting across all stripes
+     */
+    public int getQueueDepth() {
+        int depth = 0;
+        for(ThreadPoolExecutor stripe : stripes) {
+            depth += stripe.getQueue().size();
+        }
+        return depth;
+    }
+
+    public void shutdown() {
+        for(ThreadPoolExecutor stripe : stripes) {
+            stripe.shutdown();
+        }
+    }
+}
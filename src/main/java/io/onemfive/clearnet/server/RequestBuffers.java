@@ -0,0 +1,222 @@
+package io.onemfive.clearnet.server;
+
+import javax.servlet.MultipartConfigElement;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.Part;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * Per-thread reusable buffers and shared templates for turning requests
+ * into Envelopes without steady-state garbage: body text is read into
+ * a thread's reused char buffer and builder, multipart parts of known
+ * size are read straight into their final array, and routing URLs are
+ * built once per target.
+ *
+ * @author objectorange
+ */
+final class RequestBuffers {
+
+    private static Logger LOG = Logger.getLogger(RequestBuffers.class.getName());
+
+    static final MultipartConfigElement MULTIPART_CONFIG = new MultipartConfigElement("");
+
+    /**
+     * Largest JSON or CBOR request body read into memory; larger ones are answered 413.
+     */
+    static final int MAX_BODY_BYTES = 4 * 1024 * 1024;
+
+    private static final int MAX_CACHED_URLS = 1024;
+    private static final int MAX_RETAINED_BODY = 64 * 1024;
+
+    private static final Map<String,URL> urls = new ConcurrentHashMap<>();
+
+    private static final ThreadLocal<RequestBuffers> buffers = new ThreadLocal<RequestBuffers>() {
+        @Override
+        protected RequestBuffers initialValue() {
+            return new RequestBuffers();
+        }
+    };
+
+    private final char[] chars = new char[4096];
+    private final byte[] bucket = new byte[16384];
+    private StringBuilder text = new StringBuilder(1024);
+
+    private RequestBuffers() {}
+
+    /**
+     * Read request body as text reusing this thread's buffers.
+     * @return body or empty string when none
+     * @throws BodyTooLargeException when longer than {@link #MAX_BODY_BYTES}
+     */
+    static String readBody(HttpServletRequest request) {
+        long length = request.getContentLengthLong();
+        if(length == 0)
+            return "";
+        if(length > MAX_BODY_BYTES)
+            throw new BodyTooLargeException(length);
+        RequestBuffers b = buffers.get();
+        StringBuilder sb = b.text;
+        sb.setLength(0);
+        Reader reader = null;
+        try {
+            InputStream inputStream = request.getInputStream();
+            if (inputStream != null) {
+                reader = new InputStreamReader(inputStream);
+                int read;
+                while ((read = reader.read(b.chars)) > 0) {
+                    sb.append(b.chars, 0, read);
+                    // Characters never outnumber the bytes they were decoded from
+                    if(sb.length() > MAX_BODY_BYTES) {
+                        b.text = new StringBuilder(1024);
+                        throw new BodyTooLargeException(-1);
+                    }
+                }
+            }
+        } catch (IOException ex) {
+            LOG.warning(ex.getLocalizedMessage());
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException ex) {
+                    LOG.warning(ex.getLocalizedMessage());
+                }
+            }
+        }
+        String body = sb.length() == 0 ? "" : sb.toString();
+        // Do not pin one large body's capacity to the thread
+        if(sb.capacity() > MAX_RETAINED_BODY)
+            b.text = new StringBuilder(1024);
+        return body;
+    }
+
+    /**
+     * Read binary request body; a declared length goes straight into an exactly sized array.
+     * @return body or empty array when none
+     * @throws BodyTooLargeException when longer than {@link #MAX_BODY_BYTES}
+     */
+    static byte[] readBytes(HttpServletRequest request) throws IOException {
+        long declared = request.getContentLengthLong();
+        if(declared == 0)
+            return new byte[0];
+        if(declared > MAX_BODY_BYTES)
+            throw new BodyTooLargeException(declared);
+        int length = (int)declared;
+        InputStream is = request.getInputStream();
+        if(is == null)
+            return new byte[0];
+        if(length > 0) {
+            byte[] data = new byte[length];
+            int off = 0;
+            int n;
+            while(off < length && (n = is.read(data, off, length - off)) != -1) {
+                off += n;
+            }
+            return off == length ? data : Arrays.copyOf(data, off);
+        }
+        byte[] bucket = buffers.get().bucket;
+        ByteArrayOutputStream b = new ByteArrayOutputStream();
+        int nRead;
+        while((nRead = is.read(bucket, 0, bucket.length)) != -1) {
+            b.write(bucket, 0, nRead);
+            if(b.size() > MAX_BODY_BYTES)
+                throw new BodyTooLargeException(-1);
+        }
+        return b.toByteArray();
+    }
+
+    /**
+     * Read part fully; known sizes go straight into an exactly sized array.
+     */
+    static byte[] readPart(Part part) throws IOException {
+        InputStream is = part.getInputStream();
+        if(is == null)
+            return null;
+        try {
+            long size = part.getSize();
+            if(size >= 0 && size <= Integer.MAX_VALUE) {
+                byte[] data = new byte[(int)size];
+                int off = 0;
+                int n;
+                while(off < data.length && (n = is.read(data, off, data.length - off)) != -1) {
+                    off += n;
+                }
+                if(off == data.length)
+                    return data;
+                // Shorter than advertised
+                byte[] shorter = new byte[off];
+                System.arraycopy(data, 0, shorter, 0, off);
+                return shorter;
+            }
+            byte[] bucket = buffers.get().bucket;
+            ByteArrayOutputStream b = new ByteArrayOutputStream();
+            int nRead;
+            while ((nRead = is.read(bucket, 0, bucket.length)) != -1) {
+                b.write(bucket, 0, nRead);
+            }
+            return b.toByteArray();
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * URL the SensorManager uses to route a data reply back to this sensor (ends with .json),
+     * built once per target and shared thereafter.
+     */
+    static URL dataRouteURL(String target) throws MalformedURLException {
+        URL url = urls.get(target);
+        if(url == null) {
+            url = new URL("http://127.0.0.1"+target+".json");
+            if(urls.size() >= MAX_CACHED_URLS)
+                urls.clear();
+            urls.put(target, url);
+        }
+        return url;
+    }
+
+    /**
+     * Parse query string name=value pairs without intermediate arrays.
+     */
+    static Map<String,String> parseQuery(String query) {
+        Map<String,String> queryMap = new HashMap<>();
+        int start = 0;
+        int len = query.length();
+        while(start < len) {
+            int amp = query.indexOf('&', start);
+            if(amp < 0)
+                amp = len;
+            int eq = query.indexOf('=', start);
+            if(eq > start && eq < amp) {
+                queryMap.put(query.substring(start, eq), query.substring(eq + 1, amp));
+            } else if(amp > start) {
+                queryMap.put(query.substring(start, amp), "");
+            }
+            start = amp + 1;
+        }
+        return queryMap;
+    }
+
+    /**
+     * Request body over {@link #MAX_BODY_BYTES}; answer 413.
+     */
+    static final class BodyTooLargeException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        BodyTooLargeException(long length) {
+            super(length < 0 ? "Request body exceeds "+MAX_BODY_BYTES+" bytes"
+                    : "Request body of "+length+" bytes exceeds "+MAX_BODY_BYTES);
+        }
+    }
+}
@@ -0,0 +1,484 @@
+package io.onemfive.clearnet.server;
+
+import io.onemfive.data.Envelope;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Samples requests and records how long each spends at every stage
+ * between arriving and being written back: parsing, the bus round trip,
+ * waiting on reply dispatch, serializing and writing.
+ *
+ * Every Envelope gets a trace id, taken from an incoming W3C traceparent
+ * header when present so traces join up with the caller's. Sampled
+ * traces are exported on a background thread, one OTLP/JSON
+ * ExportTraceServiceRequest per line, to a local file rolled by size;
+ * such files can be read by the OpenTelemetry Collector's otlpjsonfile
+ * receiver. When the writer falls behind traces are dropped, never the
+ * requests waiting on them.
+ *
+ * @author objectorange
+ */
+public class RequestTracer {
+
+    private static Logger LOG = Logger.getLogger(RequestTracer.class.getName());
+
+    /**
+     * File sampled traces are appended to; unset disables tracing.
+     */
+    public static final String TRACE_FILE = "1m5.sensors.clearnet.server.trace.file";
+    /**
+     * Fraction of requests traced, 0.0 to 1.0; requests whose traceparent is flagged sampled are always traced.
+     */
+    public static final String TRACE_SAMPLE_RATE = "1m5.sensors.clearnet.server.trace.sampleRate";
+    /**
+     * Size in bytes at which the trace file is rolled.
+     */
+    public static final String TRACE_MAX_BYTES = "1m5.sensors.clearnet.server.trace.maxBytes";
+    /**
+     * Rolled trace files kept besides the current one.
+     */
+    public static final String TRACE_MAX_FILES = "1m5.sensors.clearnet.server.trace.maxFiles";
+
+    /**
+     * Envelope header: 32 hex digit trace id of the request the Envelope was built from.
+     */
+    public static final String TRACE_ID = "1m5.sensors.clearnet.server.trace.id";
+    /**
+     * Envelope header: System.nanoTime() when the reply reached the sensor, before dispatch.
+     */
+    public static final String REPLY_AT = "1m5.sensors.clearnet.server.trace.replyAt";
+
+    private static final String TRACE_ATTRIBUTE = RequestTracer.class.getName();
+    private static final int SPAN_KIND_INTERNAL = 1;
+    private static final int SPAN_KIND_SERVER = 2;
+    private static final int STATUS_ERROR = 2;
+    private static final int QUEUE_SIZE = 4096;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final File file;
+    private final double sampleRate;
+    private final long maxBytes;
+    private final int maxFiles;
+    private final BlockingQueue<String> exported = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private final AtomicLong dropped = new AtomicLong();
+    private final Thread writer;
+    private volatile boolean running = true;
+
+    public RequestTracer(File file, double sampleRate, long maxBytes, int maxFiles) {
+        this.file = file;
+        this.sampleRate = sampleRate;
+        this.maxBytes = maxBytes;
+        this.maxFiles = maxFiles;
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                write();
+            }
+        }, "ClearnetTraceWriter");
+        writer.setDaemon(true);
+    }
+
+    /**
+     * @return started tracer or null when not configured
+     */
+    public static RequestTracer fromProperties(Properties p) {
+        if(p == null || p.getProperty(TRACE_FILE) == null)
+            return null;
+        try {
+            double rate = Double.parseDouble(p.getProperty(TRACE_SAMPLE_RATE, "0.01"));
+            long maxBytes = Long.parseLong(p.getProperty(TRACE_MAX_BYTES, String.valueOf(16 * 1024 * 1024)));
+            int maxFiles = Integer.parseInt(p.getProperty(TRACE_MAX_FILES, "4"));
+            RequestTracer tracer = new RequestTracer(new File(p.getProperty(TRACE_FILE)), Math.max(0, Math.min(1, rate)), maxBytes, Math.max(0, maxFiles));
+            tracer.writer.start();
+            LOG.info("Tracing "+(rate * 100)+"% of requests to "+tracer.file);
+            return tracer;
+        } catch (NumberFormatException e) {
+            LOG.warning("Tracing disabled: "+e.getLocalizedMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Begin a trace for the request if sampled and make it available to {@link #stamp(HttpServletRequest, Envelope)}.
+     * @return trace or null when not sampled
+     */
+    public Trace start(HttpServletRequest request, String name) {
+        String[] parent = parseTraceParent(request.getHeader("traceparent"));
+        boolean sampled = (parent != null && parent[2] != null) || ThreadLocalRandom.current().nextDouble() < sampleRate;
+        if(!sampled)
+            return null;
+        Trace trace = new Trace(this, parent == null ? newTraceId() : parent[0], parent == null ? null : parent[1], name);
+        trace.attribute("http.method", request.getMethod());
+        trace.attribute("http.target", request.getRequestURI());
+        request.setAttribute(TRACE_ATTRIBUTE, trace);
+        return trace;
+    }
+
+    /**
+     * Begin a trace for work not tied to an HTTP request, e.g. a WebSocket message.
+     * @param traceId id to continue or null for a new trace
+     * @return trace or null when not sampled
+     */
+    public Trace start(String name, String traceId) {
+        if(ThreadLocalRandom.current().nextDouble() >= sampleRate)
+            return null;
+        return new Trace(this, traceId == null ? newTraceId() : traceId, null, name);
+    }
+
+    /**
+     * @return the request's sampled trace or null
+     */
+    public static Trace traceOf(HttpServletRequest request) {
+        Object trace = request.getAttribute(TRACE_ATTRIBUTE);
+        return trace instanceof Trace ? (Trace)trace : null;
+    }
+
+    /**
+     * Set the request's trace id on its Envelope, whether sampled or not.
+     * Set after client headers are copied so a client cannot supply it.
+     */
+    public static void stamp(HttpServletRequest request, Envelope e) {
+        Trace trace = traceOf(request);
+        String traceId;
+        if(trace != null) {
+            traceId = trace.traceId;
+        } else {
+            String[] parent = parseTraceParent(request.getHeader("traceparent"));
+            traceId = parent == null ? newTraceId() : parent[0];
+        }
+        e.setHeader(TRACE_ID, traceId);
+    }
+
+    public static String newTraceId() {
+        ThreadLocalRandom r = ThreadLocalRandom.current();
+        long hi = r.nextLong();
+        long lo = r.nextLong();
+        if(hi == 0 && lo == 0)
+            lo = 1; // all zero is invalid
+        char[] id = new char[32];
+        hex(hi, id, 0);
+        hex(lo, id, 16);
+        return new String(id);
+    }
+
+    static String newSpanId() {
+        long v = ThreadLocalRandom.current().nextLong();
+        char[] id = new char[16];
+        hex(v == 0 ? 1 : v, id, 0);
+        return new String(id);
+    }
+
+    private static void hex(long v, char[] out, int offset) {
+        for(int i = 15; i >= 0; i--) {
+            out[offset + i] = HEX[(int)(v & 0xF)];
+            v >>>= 4;
+        }
+    }
+
+    /**
+     * @return trace id, parent span id and non-null third element when sampled; null if absent or malformed
+     */
+    static String[] parseTraceParent(String traceParent) {
+        // version-traceid-parentid-flags, e.g. 00-4bf92f3577b34da6a3ce929d0e0e4736-00f067aa0ba902b7-01
+        if(traceParent == null || traceParent.length() < 55)
+            return null;
+        String[] parts = traceParent.trim().split("-");
+        if(parts.length < 4 || parts[1].length() != 32 || parts[2].length() != 16 || parts[3].length() != 2
+                || !isHex(parts[1]) || !isHex(parts[2]) || !isHex(parts[3])
+                || parts[1].equals("00000000000000000000000000000000") || parts[2].equals("0000000000000000"))
+            return null;
+        boolean sampled = (Integer.parseInt(parts[3], 16) & 1) == 1;
+        return new String[]{parts[1].toLowerCase(), parts[2].toLowerCase(), sampled ? "" : null};
+    }
+
+    private static boolean isHex(String s) {
+        for(int i = 0; i < s.length(); i++) {
+            if(Character.digit(s.charAt(i), 16) < 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return sampled traces dropped because the writer fell behind
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    private void export(Trace trace) {
+        if(!running || !exported.offer(toOTLP(trace)))
+            dropped.incrementAndGet();
+    }
+
+    private void write() {
+        OutputStream out = null;
+        long written = file.length();
+        try {
+            out = new FileOutputStream(file, true);
+            while(running || !exported.isEmpty()) {
+                String line = exported.poll(1, TimeUnit.SECONDS);
+                if(line == null) {
+                    out.flush();
+                    continue;
+                }
+                if(written >= maxBytes) {
+                    out.close();
+                    roll();
+                    out = new FileOutputStream(file, true);
+                    written = 0;
+                }
+                byte[] bytes = line.getBytes(UTF8);
+                out.write(bytes);
+                written += bytes.length;
+            }
+        } catch (IOException e) {
+            LOG.warning("Trace export stopped: "+e.getLocalizedMessage());
+        } catch (InterruptedException e) {
+            LOG.info("Trace writer interrupted.");
+        } finally {
+            running = false;
+            exported.clear();
+            if(out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    LOG.warning(e.getLocalizedMessage());
+                }
+            }
+        }
+    }
+
+    private void roll() {
+        if(maxFiles == 0) {
+            if(!file.delete())
+                LOG.warning("Unable to remove full trace file "+file);
+            return;
+        }
+        new File(file.getPath() + "." + maxFiles).delete();
+        for(int i = maxFiles - 1; i >= 1; i--) {
+            File f = new File(file.getPath() + "." + i);
+            if(f.exists() && !f.renameTo(new File(file.getPath() + "." + (i + 1))))
+                LOG.warning("Unable to roll trace file "+f);
+        }
+        if(!file.renameTo(new File(file.getPath() + ".1")))
+            LOG.warning("Unable to roll trace file "+file);
+    }
+
+    /**
+     * Stop accepting traces and let the writer flush those queued.
+     */
+    public void close() {
+        running = false;
+        try {
+            writer.join(2000);
+        } catch (InterruptedException e) {
+            LOG.warning("Interrupted waiting on trace writer.");
+        }
+    }
+
+    /**
+     * One OTLP/JSON ExportTraceServiceRequest: the root span plus a child span per stage.
+     */
+    private static String toOTLP(Trace t) {
+        StringBuilder sb = new StringBuilder(512 + t.stages.size() * 160);
+        sb.append("{\"resourceSpans\":[{\"resource\":{\"attributes\":[");
+        attribute(sb, "service.name", "1m5-clearnet-server");
+        sb.append("]},\"scopeSpans\":[{\"scope\":{\"name\":\"").append(RequestTracer.class.getPackage().getName()).append("\"},\"spans\":[");
+        span(sb, t.traceId, t.spanId, t.parentSpanId, t.name, SPAN_KIND_SERVER, t.epochNanos(t.startNanos), t.epochNanos(t.endNanos), t.attributes, t.error);
+        long from = t.startNanos;
+        for(Stage s : t.stages) {
+            sb.append(',');
+            span(sb, t.traceId, newSpanId(), t.spanId, s.name, SPAN_KIND_INTERNAL, t.epochNanos(from), t.epochNanos(s.endNanos), null, false);
+            from = s.endNanos;
+        }
+        sb.append("]}]}]}\n");
+        return sb.toString();
+    }
+
+    private static void span(StringBuilder sb, String traceId, String spanId, String parentSpanId, String name, int kind,
+                             long start, long end, List<Object[]> attributes, boolean error) {
+        sb.append("{\"traceId\":\"").append(traceId).append("\",\"spanId\":\"").append(spanId).append('"');
+        if(parentSpanId != null)
+            sb.append(",\"parentSpanId\":\"").append(parentSpanId).append('"');
+        sb.append(",\"name\":");
+        quote(sb, name);
+        sb.append(",\"kind\":").append(kind)
+                .append(",\"startTimeUnixNano\":\"").append(start)
+                .append("\",\"endTimeUnixNano\":\"").append(end).append('"');
+        if(attributes != null && !attributes.isEmpty()) {
+            sb.append(",\"attributes\":[");
+            for(int i = 0; i < attributes.size(); i++) {
+                if(i > 0)
+                    sb.append(',');
+                attribute(sb, (String)attributes.get(i)[0], attributes.get(i)[1]);
+            }
+            sb.append(']');
+        }
+        if(error)
+            sb.append(",\"status\":{\"code\":").append(STATUS_ERROR).append('}');
+        sb.append('}');
+    }
+
+    private static void attribute(StringBuilder sb, String key, Object value) {
+        sb.append("{\"key\":");
+        quote(sb, key);
+        if(value instanceof Long) {
+            sb.append(",\"value\":{\"intValue\":").append(value);
+        } else {
+            sb.append(",\"value\":{\"stringValue\":");
+            quote(sb, (String)value);
+        }
+        sb.append("}}");
+    }
+
+    private static void quote(StringBuilder sb, String s) {
+        sb.append('"');
+        if(s != null) {
+            for(int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                switch (c) {
+                    case '"': sb.append("\\\"");break;
+                    case '\\': sb.append("\\\\");break;
+                    case '\n': sb.append("\\n");break;
+                    case '\r': sb.append("\\r");break;
+                    case '\t': sb.append("\\t");break;
+                    default:
+                        if(c < 0x20)
+                            sb.append("\\u00").append(HEX[c >> 4]).append(HEX[c & 0xF]);
+                        else
+                            sb.append(c);
+                }
+            }
+        }
+        sb.append('"');
+    }
+
+    private static class Stage {
+        private final String name;
+        private final long endNanos;
+
+        private Stage(String name, long endNanos) {
+            this.name = name;
+            this.endNanos = endNanos;
+        }
+    }
+
+    /**
+     * A sampled request's stages, each running from the end of the previous
+     * one. Marked from the request thread and the reply thread in turn.
+     */
+    public static final class Trace {
+        private final RequestTracer tracer;
+        private final String traceId;
+        private final String spanId = newSpanId();
+        private final String parentSpanId;
+        private final String name;
+        private final long startMillis = System.currentTimeMillis();
+        private final long startNanos = System.nanoTime();
+        private final List<Stage> stages = new ArrayList<>(6);
+        private final List<Object[]> attributes = new ArrayList<>(4);
+        private long lastNanos = startNanos;
+        private long endNanos;
+        private boolean error;
+        private boolean ended;
+
+        private Trace(RequestTracer tracer, String traceId, String parentSpanId, String name) {
+            this.tracer = tracer;
+            this.traceId = traceId;
+            this.parentSpanId = parentSpanId;
+            this.name = name;
+        }
+
+        public String getTraceId() {
+            return traceId;
+        }
+
+        /**
+         * End the current stage now.
+         */
+        public void mark(String stage) {
+            markAt(stage, System.nanoTime());
+        }
+
+        /**
+         * End the current stage at a System.nanoTime() captured earlier,
+         * e.g. the reply's arrival read from {@link #REPLY_AT}.
+         */
+        public synchronized void markAt(String stage, long nanos) {
+            if(ended)
+                return;
+            lastNanos = Math.max(lastNanos, nanos);
+            stages.add(new Stage(stage, lastNanos));
+        }
+
+        /**
+         * End the stage waiting on the bus at the time the reply reached the sensor, when known.
+         */
+        public void markReply(Envelope e) {
+            Object replyAt = e.getHeader(REPLY_AT);
+            if(replyAt instanceof Long)
+                markAt("bus", (Long)replyAt);
+        }
+
+        public synchronized void attribute(String key, String value) {
+            if(value != null && !ended)
+                attributes.add(new Object[]{key, value});
+        }
+
+        public synchronized void attribute(String key, long value) {
+            if(!ended)
+                attributes.add(new Object[]{key, value});
+        }
+
+        /**
+         * Flag the trace as failed, e.g. on a write error where there is no status code.
+         */
+        public synchronized void error(String message) {
+            if(ended)
+                return;
+            attribute("exception.message", message);
+            error = true;
+        }
+
+        /**
+         * Close the trace with the final stage and response status and hand it to the writer once.
+         * @param stage name of the stage ending now or null when the last mark ended it
+         * @param statusCode HTTP status or 0 when not an HTTP response
+         */
+        public void end(String stage, int statusCode) {
+            synchronized (this) {
+                if(ended)
+                    return;
+                if(stage != null)
+                    mark(stage);
+                if(statusCode > 0)
+                    attribute("http.status_code", (long)statusCode);
+                ended = true;
+                endNanos = Math.max(lastNanos, System.nanoTime());
+                error = error || statusCode >= 500;
+            }
+            tracer.export(this);
+        }
+
+        private long epochNanos(long nanos) {
+            return startMillis * 1000000L + (nanos - startNanos);
+        }
+    }
+}
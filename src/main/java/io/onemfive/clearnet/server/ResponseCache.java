@@ -0,0 +1,232 @@
+package io.onemfive.clearnet.server;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+/**
+ * TTL response cache for idempotent (VIEW) data requests.
+ *
+ * Keyed on command path, sorted query and scope (session id, or shared
+ * for routes configured as such). Bodies are stored serialized, as JSON
+ * text or CBOR bytes. Size-bounded with LRU eviction.
+ * Mutations (ADD/UPDATE/REMOVE) invalidate every entry under the same
+ * root path segment and bump its generation so in-flight reads started
+ * before the mutation are not cached.
+ *
+ * @author objectorange
+ */
+public class ResponseCache {
+
+    private static Logger LOG = Logger.getLogger(ResponseCache.class.getName());
+
+    /**
+     * Default TTL in milliseconds for cacheable routes; 0 (default) disables caching
+     * for routes without their own TTL.
+     */
+    public static final String CACHE_TTL = "1m5.sensors.clearnet.server.cache.ttl";
+    /**
+     * Per-route TTL in milliseconds, suffixed by command path prefix, e.g.
+     * 1m5.sensors.clearnet.server.cache.ttl.identity/list=5000
+     */
+    public static final String CACHE_TTL_ROUTE_PREFIX = CACHE_TTL + ".";
+    /**
+     * Maximum number of cached responses.
+     */
+    public static final String CACHE_MAX_ENTRIES = "1m5.sensors.clearnet.server.cache.maxEntries";
+    /**
+     * Comma separated command path prefixes whose responses do not depend on session
+     * and may be shared across sessions.
+     */
+    public static final String CACHE_SHARED = "1m5.sensors.clearnet.server.cache.shared";
+
+    public static final String SHARED_SCOPE = "*";
+
+    private static final int DEFAULT_MAX_ENTRIES = 1024;
+
+    private final long defaultTtl;
+    private final String[] routePrefixes;
+    private final long[] routeTtls;
+    private final String[] sharedPrefixes;
+    private final Map<String,Entry> entries;
+    private final Map<String,Integer> generations = new HashMap<>();
+
+    public ResponseCache(long defaultTtl, Map<String,Long> routeTtls, String[] sharedPrefixes, final int maxEntries) {
+        this.defaultTtl = defaultTtl;
+        // Longest prefix first
+        this.routePrefixes = routeTtls.keySet().toArray(new String[routeTtls.size()]);
+        Arrays.sort(this.routePrefixes, new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                return b.length() - a.length();
+            }
+        });
+        this.routeTtls = new long[routePrefixes.length];
+        for(int i = 0; i < routePrefixes.length; i++) {
+            this.routeTtls[i] = routeTtls.get(routePrefixes[i]);
+        }
+        this.sharedPrefixes = sharedPrefixes;
+        this.entries = new LinkedHashMap<String,ResponseCache.Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String,ResponseCache.Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * @return cache configured from properties or null when no route is cacheable
+     */
+    public static ResponseCache fromProperties(Properties p) {
+        if(p == null)
+            return null;
+        long defaultTtl = parseLong(p.getProperty(CACHE_TTL), 0);
+        Map<String,Long> routeTtls = new HashMap<>();
+        for(String name : p.stringPropertyNames()) {
+            if(name.startsWith(CACHE_TTL_ROUTE_PREFIX)) {
+                String route = stripSlash(name.substring(CACHE_TTL_ROUTE_PREFIX.length()));
+                routeTtls.put(route, parseLong(p.getProperty(name), 0));
+            }
+        }
+        if(defaultTtl <= 0 && routeTtls.isEmpty())
+            return null;
+        String[] shared = new String[0];
+        String sharedStr = p.getProperty(CACHE_SHARED);
+        if(sharedStr != null && !sharedStr.trim().isEmpty()) {
+            shared = sharedStr.split(",");
+            for(int i = 0; i < shared.length; i++) {
+                shared[i] = stripSlash(shared[i].trim());
+            }
+        }
+        int maxEntries = (int)parseLong(p.getProperty(CACHE_MAX_ENTRIES), DEFAULT_MAX_ENTRIES);
+        LOG.info("Response cache enabled: defaultTtl="+defaultTtl+"ms, routes="+routeTtls.size()+", maxEntries="+maxEntries);
+        return new ResponseCache(defaultTtl, routeTtls, shared, maxEntries);
+    }
+
+    /**
+     * @return TTL in ms for command path; 0 means not cacheable
+     */
+    public long ttlFor(String commandPath) {
+        for(int i = 0; i < routePrefixes.length; i++) {
+            if(commandPath.startsWith(routePrefixes[i]))
+                return routeTtls[i];
+        }
+        return defaultTtl;
+    }
+
+    /**
+     * Key for a view of command path with the query parameters placed on its
+     * Envelope, parsed from a GET's query string or given by a batch item,
+     * so both forms of the same view share one entry.
+     */
+    public String key(String commandPath, Map<String,?> query, String sessionId) {
+        String scope = sessionId;
+        for(String shared : sharedPrefixes) {
+            if(commandPath.startsWith(shared)) {
+                scope = SHARED_SCOPE;
+                break;
+            }
+        }
+        StringBuilder sb = new StringBuilder(commandPath.length() + 64);
+        sb.append(root(commandPath)).append('|').append(commandPath).append('?');
+        if(query != null && !query.isEmpty()) {
+            String[] names = query.keySet().toArray(new String[query.size()]);
+            Arrays.sort(names);
+            for(int i = 0; i < names.length; i++) {
+                if(i > 0) sb.append('&');
+                sb.append(escape(names[i])).append('=').append(escape(String.valueOf(query.get(names[i]))));
+            }
+        }
+        sb.append('#').append(scope);
+        return sb.toString();
+    }
+
+    /**
+     * @return JSON String or CBOR byte[] body, or null when absent or expired
+     */
+    public synchronized Object get(String key) {
+        Entry entry = entries.get(key);
+        if(entry == null)
+            return null;
+        if(entry.expiresAt < System.currentTimeMillis()) {
+            entries.remove(key);
+            return null;
+        }
+        return entry.body;
+    }
+
+    /**
+     * Generation of the key's root path; pass it back to put() so responses
+     * to reads started before a mutation are dropped.
+     */
+    public synchronized int generation(String key) {
+        Integer gen = generations.get(key.substring(0, key.indexOf('|')));
+        return gen == null ? 0 : gen;
+    }
+
+    public synchronized void put(String key, Object body, long ttl, int generation) {
+        if(ttl <= 0 || generation != generation(key))
+            return;
+        entries.put(key, new Entry(body, System.currentTimeMillis() + ttl));
+    }
+
+    /**
+     * Invalidate all cached responses under the command path's root segment.
+     */
+    public synchronized void invalidate(String commandPath) {
+        String root = root(commandPath);
+        Integer gen = generations.get(root);
+        generations.put(root, gen == null ? 1 : gen + 1);
+        String prefix = root + "|";
+        Iterator<String> i = entries.keySet().iterator();
+        while(i.hasNext()) {
+            if(i.next().startsWith(prefix))
+                i.remove();
+        }
+    }
+
+    private static String root(String commandPath) {
+        int i = commandPath.indexOf('/');
+        return i < 0 ? commandPath : commandPath.substring(0, i);
+    }
+
+    private static String escape(String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            return value;
+        }
+    }
+
+    private static String stripSlash(String path) {
+        return path.startsWith("/") ? path.substring(1) : path;
+    }
+
+    private static long parseLong(String value, long defaultValue) {
+        if(value == null)
+            return defaultValue;
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            LOG.warning("Invalid numeric cache setting: "+value);
+            return defaultValue;
+        }
+    }
+
+    private static class Entry {
+        private final Object body;
+        private final long expiresAt;
+
+        private Entry(Object body, long expiresAt) {
+            this.body = body;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
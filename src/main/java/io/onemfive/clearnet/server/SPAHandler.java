@@ -1,92 +1,203 @@
 package io.onemfive.clearnet.server;
 
-import org.eclipse.jetty.server.handler.AbstractHandler;
-import org.eclipse.jetty.server.handler.ErrorHandler;
-
+import org.eclipse.jetty.http.DateGenerator;
+import org.eclipse.jetty.http.HttpMethod;
+import org.eclipse.jetty.http.QuotedQualityCSV;
 import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.eclipse.jetty.util.IO;
+import org.eclipse.jetty.util.resource.Resource;
 
-import javax.servlet.RequestDispatcher;
-import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Enumeration;
 import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * Single-Page Application Handler
  *
+ * Answers client-side routes (paths outside /data, /events and /sse whose
+ * last segment has no file extension, including /) with index.html so
+ * deep links load in one round trip and the JS router takes over.
+ * index.html, as rewritten by the {@link AssetHandler} when there is one,
+ * is read and gzipped once on start, and again on each restart of the
+ * handler tree, then served from memory with ETag and
+ * Last-Modified validators. Cache-Control no-cache has browsers
+ * revalidate it each visit, usually for a 304.
+ *
  * @author objectorange
  */
 public class SPAHandler extends AbstractHandler {
 
     private static Logger LOG = Logger.getLogger(SPAHandler.class.getName());
-    private boolean firstRequest = true;
+
+    private static final String[] EXCLUDED_PREFIXES = {"/data", "/events", "/sse"};
+
+    private final String resourceBase;
+    private final AssetHandler assets;
+    private volatile Index index;
+
+    /**
+     * @param resourceBase directory holding index.html
+     * @param assets handler holding the prepared index.html or null to read it from resourceBase
+     */
+    public SPAHandler(String resourceBase, AssetHandler assets) {
+        this.resourceBase = resourceBase;
+        this.assets = assets;
+    }
 
     @Override
-    public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException
-    {
-        //If request not coming for DataServiceHandler, redirect all requests to the "/". Bc UI is already handling routes.
-        String requestUri = request.getRequestURI();
-    //    if(!requestUri.startsWith("/data")){
-        if(requestUri.equals("/login") ||  requestUri.equals("/logout") ){
-            requestUri = "/" ;
-            String uri = request.getScheme() + "://" +
-                    request.getServerName() +
-                    ":" + request.getLocalPort() +
-                    requestUri +
-                    (request.getQueryString() != null ? "?" + request.getQueryString() : "");
-            response.sendRedirect(uri);
+    protected void doStart() throws Exception {
+        index = load();
+        super.doStart();
+    }
+
+    private Index load() {
+        if(resourceBase == null) {
+            LOG.warning("No resource directory; SPA fallback disabled.");
+            return null;
+        }
+        try {
+            ByteBuffer prepared = assets == null ? null : assets.content("index.html");
+            if(prepared != null) {
+                byte[] html = new byte[prepared.remaining()];
+                prepared.get(html);
+                return new Index(html, System.currentTimeMillis());
+            }
+            Resource resource = Resource.newResource(resourceBase).addPath("index.html");
+            if(!resource.exists()) {
+                LOG.warning("No index.html in "+resourceBase+"; SPA fallback disabled.");
+                return null;
+            }
+            byte[] html;
+            InputStream in = resource.getInputStream();
+            try {
+                html = IO.readBytes(in);
+            } finally {
+                in.close();
+            }
+            return new Index(html, resource.lastModified());
+        } catch (IOException e) {
+            LOG.warning("Unable to load index.html; SPA fallback disabled: "+e.getLocalizedMessage());
+            return null;
         }
     }
 
-    /*
     @Override
     public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException
     {
-        // On 404 page we need to show index.html and let JS router do the work, otherwise show error page
-        String redirectRoute = "/index.html";
-        LOG.info("HTTP Status: "+response.getStatus());
-        if ((response.getStatus() == HttpServletResponse.SC_NOT_FOUND)) {
-            LOG.info("404 caught; forwarding to /index.html...");
-            RequestDispatcher dispatcher = request.getRequestDispatcher(redirectRoute);
-            if (dispatcher != null) {
-                try {
-                    // reset response
-                    response.reset();
-                    // On second 404 request we need to show original 404 page, otherwise will be redirect loop
-                    firstRequest = false;
-                    LOG.info("Initiate forward...");
-                    dispatcher.forward(request, response);
-                } catch (ServletException e) {
-                    LOG.warning("ServletException caught while forwarding...");
-                    super.handle(target, baseRequest, request, response);
-                }
-            } else {
-                LOG.info("Unable to find redirect route.");
-            }
-//        } else if ((response.getStatus() == HttpServletResponse.SC_NOT_FOUND)) {
-//            LOG.severe("Can not find internal redirect route " + redirectRoute + " on 404 error. Will show system 404 page");
-        } else {
-            LOG.info("Letting ErrorHandler handle this.");
-            super.handle(target, baseRequest, request, response);
+        Index idx = index;
+        if(idx == null || baseRequest.isHandled() || !isClientRoute(request.getRequestURI()))
+            return;
+        boolean head = HttpMethod.HEAD.is(request.getMethod());
+        if(!head && !HttpMethod.GET.is(request.getMethod()))
+            return;
+
+        boolean gzip = accepts(request, "gzip");
+        String etag = gzip ? idx.gzipETag : idx.etag;
+        response.setHeader("Vary", "Accept-Encoding");
+        response.setHeader("Cache-Control", "no-cache");
+        response.setHeader("ETag", etag);
+        if(idx.lastModified != null)
+            response.setHeader("Last-Modified", idx.lastModified);
+        if(notModified(request, idx, etag)) {
+            response.setStatus(304);
+            baseRequest.setHandled(true);
+            return;
+        }
+        ByteBuffer body = gzip ? idx.gzipped : idx.html;
+        response.setStatus(200);
+        response.setContentType("text/html;charset=utf-8");
+        if(gzip)
+            response.setHeader("Content-Encoding", "gzip");
+        response.setContentLength(body.remaining());
+        if(!head)
+            baseRequest.getResponse().getHttpOutput().sendContent(body.slice());
+        baseRequest.setHandled(true);
+    }
+
+    /**
+     * @return true for paths the JS router owns rather than files or server endpoints
+     */
+    static boolean isClientRoute(String uri) {
+        if(uri == null)
+            return false;
+        for(String prefix : EXCLUDED_PREFIXES) {
+            if(uri.startsWith(prefix) && (uri.length() == prefix.length() || uri.charAt(prefix.length()) == '/'))
+                return false;
+        }
+        if(uri.equals("/index.html"))
+            return true;
+        // Assets have an extension in their last segment
+        return uri.indexOf('.', uri.lastIndexOf('/') + 1) < 0;
+    }
+
+    /**
+     * @return true if Accept-Encoding allows the content coding
+     */
+    static boolean accepts(HttpServletRequest request, String coding) {
+        Enumeration<String> headers = request.getHeaders("Accept-Encoding");
+        if(headers == null || !headers.hasMoreElements())
+            return false;
+        QuotedQualityCSV encodings = new QuotedQualityCSV();
+        while(headers.hasMoreElements()) {
+            encodings.addValue(headers.nextElement());
         }
+        // Values with q=0 are excluded
+        for(String encoding : encodings.getValues()) {
+            if(coding.equalsIgnoreCase(encoding) || "*".equals(encoding))
+                return true;
+        }
+        return false;
+    }
+
+    private static boolean notModified(HttpServletRequest request, Index idx, String etag) {
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if(ifNoneMatch != null)
+            return ifNoneMatch.contains(etag) || ifNoneMatch.trim().equals("*");
+        long ifModifiedSince = request.getDateHeader("If-Modified-Since");
+        return ifModifiedSince > 0 && idx.lastModifiedMillis > 0 && idx.lastModifiedMillis / 1000 <= ifModifiedSince / 1000;
     }
 
-    */
-
-//    @Override
-//    protected void writeErrorPageBody(HttpServletRequest request, Writer writer, int code, String message, boolean showStacks) throws IOException
-//    {
-//        writeErrorPageMessage(request, writer, code, message, request.getRequestURI());
-//    }
-//
-//    @Override
-//    protected void writeErrorPageMessage(HttpServletRequest request, Writer writer, int code, String message, String uri)
-//            throws IOException
-//    {
-//        String statusMessage = Integer.toString(code) + " " + message;
-//        LOG.severe("Problem accessing " + uri + ". " + statusMessage);
-//        writer.write(statusMessage);
-//    }
+    private static final class Index {
+        private final ByteBuffer html;
+        private final ByteBuffer gzipped;
+        private final String etag;
+        private final String gzipETag;
+        private final long lastModifiedMillis;
+        private final String lastModified;
+
+        private Index(byte[] bytes, long lastModifiedMillis) throws IOException {
+            html = readOnly(bytes);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 3 + 64);
+            GZIPOutputStream gz = new GZIPOutputStream(out) {
+                {
+                    def.setLevel(Deflater.BEST_COMPRESSION);
+                }
+            };
+            gz.write(bytes);
+            gz.close();
+            gzipped = readOnly(out.toByteArray());
+            CRC32 crc = new CRC32();
+            crc.update(bytes);
+            String tag = Long.toHexString(crc.getValue()) + "-" + Integer.toHexString(bytes.length);
+            etag = "\"" + tag + "\"";
+            gzipETag = "\"" + tag + "--gzip\"";
+            this.lastModifiedMillis = lastModifiedMillis;
+            lastModified = lastModifiedMillis > 0 ? DateGenerator.formatDate(lastModifiedMillis) : null;
+        }
 
+        private static ByteBuffer readOnly(byte[] bytes) {
+            ByteBuffer b = ByteBuffer.allocateDirect(bytes.length);
+            b.put(bytes).flip();
+            return b.asReadOnlyBuffer();
+        }
+    }
 }
@@ -0,0 +1,307 @@
+package io.onemfive.clearnet.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.logging.Logger;
+
+/**
+ * Persists {@link ClearnetSession}s of a handler so a restart does not
+ * log everybody out.
+ *
+ * Session creation, authentication and removal are appended to a binary
+ * journal through an in-memory buffer flushed once a second; request
+ * timestamps are not journaled, only captured by snapshots. A snapshot
+ * of all sessions replaces the journal periodically or once it grows
+ * past its limit, bounding both write amplification and replay. On
+ * startup snapshot then journal are memory-mapped and replayed in one
+ * sequential pass; a torn record at the journal's tail is ignored.
+ *
+ * Both files start with magic (4 bytes), version (4) and generation (8).
+ * Each snapshot bumps the generation and the journal restarts under it,
+ * so a journal left behind by a crash after its snapshot was replaced is
+ * recognized as older and skipped rather than replayed over the snapshot.
+ *
+ * Record: type (1 byte), id length (2), id (UTF-8), and for upserts
+ * last request time (8) and authenticated flag (1).
+ *
+ * @author objectorange
+ */
+public class SessionJournal {
+
+    private static Logger LOG = Logger.getLogger(SessionJournal.class.getName());
+
+    /**
+     * Directory for session snapshots and journals, one subdirectory per server; unset disables.
+     */
+    public static final String SESSIONS_DIR = "1m5.sensors.clearnet.server.sessions.dir";
+    /**
+     * Milliseconds between snapshots.
+     */
+    public static final String SNAPSHOT_INTERVAL = "1m5.sensors.clearnet.server.sessions.snapshotInterval";
+    /**
+     * Journal size in bytes forcing an early snapshot.
+     */
+    public static final String JOURNAL_MAX_BYTES = "1m5.sensors.clearnet.server.sessions.journalMaxBytes";
+
+    private static final int MAGIC = 0x314D3553; // 1M5S
+    private static final int VERSION = 2;
+    private static final int HEADER_BYTES = 4 + 4 + 8;
+    private static final byte UPSERT = 1;
+    private static final byte REMOVE = 2;
+    private static final long FLUSH_INTERVAL_MS = 1000;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final File snapshotFile;
+    private final File journalFile;
+    private final Map<String,ClearnetSession> sessions;
+    private final long snapshotIntervalMs;
+    private final long journalMaxBytes;
+    private final ByteBuffer pending = ByteBuffer.allocate(64 * 1024);
+    private FileChannel journal;
+    private long journalBytes = 0;
+    private long generation = 0;
+    private long replayedEnd = 0;
+    private long lastSnapshot = System.currentTimeMillis();
+    private Timer timer;
+
+    public SessionJournal(File dir, Map<String,ClearnetSession> sessions, long snapshotIntervalMs, long journalMaxBytes) throws IOException {
+        if(!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Unable to create sessions directory "+dir);
+        this.snapshotFile = new File(dir, "sessions.snapshot");
+        this.journalFile = new File(dir, "sessions.journal");
+        this.sessions = sessions;
+        this.snapshotIntervalMs = snapshotIntervalMs;
+        this.journalMaxBytes = journalMaxBytes;
+    }
+
+    /**
+     * Restore sessions into the map and start journaling its changes.
+     * @return journal or null when not configured
+     */
+    public static SessionJournal fromProperties(Properties p, String serverName, Map<String,ClearnetSession> sessions) {
+        if(p == null || p.getProperty(SESSIONS_DIR) == null)
+            return null;
+        try {
+            long interval = Long.parseLong(p.getProperty(SNAPSHOT_INTERVAL, "60000"));
+            long maxBytes = Long.parseLong(p.getProperty(JOURNAL_MAX_BYTES, String.valueOf(4 * 1024 * 1024)));
+            SessionJournal journal = new SessionJournal(new File(p.getProperty(SESSIONS_DIR), serverName), sessions, interval, maxBytes);
+            journal.open();
+            return journal;
+        } catch (NumberFormatException | IOException e) {
+            LOG.warning("Session persistence disabled: "+e.getLocalizedMessage());
+            return null;
+        }
+    }
+
+    synchronized void open() throws IOException {
+        long begin = System.currentTimeMillis();
+        int records = replay(snapshotFile, true);
+        int journaled = replay(journalFile, false);
+        records += Math.max(0, journaled);
+        // Drop sessions that went inactive while down
+        long expiredBefore = begin - ClearnetSession.SESSION_INACTIVITY_INTERVAL * 1000L;
+        List<String> expired = new ArrayList<>();
+        for(ClearnetSession s : sessions.values()) {
+            if(s.getLastRequestTime() < expiredBefore)
+                expired.add(s.getId());
+        }
+        for(String id : expired) {
+            sessions.remove(id);
+        }
+        LOG.info("Restored "+sessions.size()+" sessions from "+records+" records in "+(System.currentTimeMillis() - begin)+"ms");
+        journal = new RandomAccessFile(journalFile, "rw").getChannel();
+        if(journaled < 0) {
+            // Missing or of another generation: restart it under the snapshot's
+            restartJournal();
+        } else {
+            // Append after the last whole record, dropping any torn one
+            journal.truncate(replayedEnd);
+            journalBytes = replayedEnd;
+            journal.position(journalBytes);
+        }
+        timer = new Timer("ClearnetSessionJournal", true);
+        timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                tick();
+            }
+        }, FLUSH_INTERVAL_MS, FLUSH_INTERVAL_MS);
+    }
+
+    /**
+     * Replay a snapshot, taking on its generation, or a journal of the same generation.
+     * @return records replayed, or -1 for a journal that is missing, unrecognized or stale
+     */
+    private int replay(File f, boolean snapshot) throws IOException {
+        if(!f.exists() || f.length() < HEADER_BYTES)
+            return snapshot ? 0 : -1;
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        int records = 0;
+        try {
+            MappedByteBuffer b = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            if(b.getInt() != MAGIC || b.getInt() != VERSION) {
+                LOG.warning("Ignoring unrecognized session "+(snapshot ? "snapshot " : "journal ")+f);
+                return snapshot ? 0 : -1;
+            }
+            long fileGeneration = b.getLong();
+            replayedEnd = b.position();
+            if(snapshot) {
+                generation = fileGeneration;
+            } else if(fileGeneration != generation) {
+                LOG.info("Skipping session journal of generation "+fileGeneration+"; snapshot is "+generation);
+                return -1;
+            }
+            while(b.hasRemaining()) {
+                try {
+                    byte type = b.get();
+                    byte[] id = new byte[b.getShort() & 0xFFFF];
+                    b.get(id);
+                    String sessionId = new String(id, UTF8);
+                    if(type == UPSERT) {
+                        long lastRequestTime = b.getLong();
+                        boolean authenticated = b.get() == 1;
+                        ClearnetSession s = sessions.get(sessionId);
+                        if(s == null) {
+                            s = new ClearnetSession(sessionId);
+                            sessions.put(sessionId, s);
+                        }
+                        s.setLastRequestTime(lastRequestTime);
+                        s.setAuthenticated(authenticated);
+                        s.getDid().setAuthenticated(authenticated);
+                    } else if(type == REMOVE) {
+                        sessions.remove(sessionId);
+                    } else {
+                        LOG.warning("Unknown session record type "+type+" in "+f+"; stopping replay");
+                        break;
+                    }
+                    records++;
+                    replayedEnd = b.position();
+                } catch (BufferUnderflowException e) {
+                    LOG.info("Torn record at end of "+f+"; ignored");
+                    break;
+                }
+            }
+        } finally {
+            raf.close();
+        }
+        return records;
+    }
+
+    public synchronized void upsert(ClearnetSession s) {
+        byte[] id = s.getId().getBytes(UTF8);
+        ensure(1 + 2 + id.length + 8 + 1);
+        pending.put(UPSERT).putShort((short)id.length).put(id)
+                .putLong(s.getLastRequestTime()).put((byte)(s.getAuthenticated() ? 1 : 0));
+    }
+
+    public synchronized void remove(String sessionId) {
+        byte[] id = sessionId.getBytes(UTF8);
+        ensure(1 + 2 + id.length);
+        pending.put(REMOVE).putShort((short)id.length).put(id);
+    }
+
+    private void ensure(int bytes) {
+        if(pending.remaining() < bytes)
+            flush();
+    }
+
+    public synchronized void flush() {
+        if(journal == null || pending.position() == 0)
+            return;
+        pending.flip();
+        try {
+            while(pending.hasRemaining()) {
+                journalBytes += journal.write(pending);
+            }
+        } catch (IOException e) {
+            LOG.warning("Unable to append to session journal: "+e.getLocalizedMessage());
+        } finally {
+            pending.clear();
+        }
+    }
+
+    /**
+     * Write all sessions to a new snapshot, atomically replace the old one and empty the journal.
+     */
+    public synchronized void snapshot() {
+        if(journal == null)
+            return;
+        flush();
+        File tmp = new File(snapshotFile.getPath() + ".tmp");
+        try {
+            RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+            try {
+                raf.setLength(0);
+                FileChannel ch = raf.getChannel();
+                ByteBuffer b = ByteBuffer.allocate(64 * 1024);
+                b.putInt(MAGIC).putInt(VERSION).putLong(generation + 1);
+                for(ClearnetSession s : sessions.values()) {
+                    byte[] id = s.getId().getBytes(UTF8);
+                    if(b.remaining() < 12 + id.length) {
+                        b.flip();
+                        while(b.hasRemaining()) ch.write(b);
+                        b.clear();
+                    }
+                    b.put(UPSERT).putShort((short)id.length).put(id)
+                            .putLong(s.getLastRequestTime()).put((byte)(s.getAuthenticated() ? 1 : 0));
+                }
+                b.flip();
+                while(b.hasRemaining()) ch.write(b);
+                ch.force(false);
+            } finally {
+                raf.close();
+            }
+            Files.move(tmp.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            // From here on the old journal's generation no longer matches and is skipped on replay
+            generation++;
+            restartJournal();
+        } catch (IOException e) {
+            LOG.warning("Unable to snapshot sessions: "+e.getLocalizedMessage());
+        }
+        lastSnapshot = System.currentTimeMillis();
+    }
+
+    private void restartJournal() throws IOException {
+        journal.truncate(0);
+        journal.position(0);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        header.putInt(MAGIC).putInt(VERSION).putLong(generation);
+        header.flip();
+        while(header.hasRemaining()) journal.write(header);
+        journalBytes = HEADER_BYTES;
+    }
+
+    private synchronized void tick() {
+        if(journalBytes > journalMaxBytes || System.currentTimeMillis() - lastSnapshot >= snapshotIntervalMs)
+            snapshot();
+        else
+            flush();
+    }
+
+    public synchronized void close() {
+        snapshot();
+        if(timer != null)
+            timer.cancel();
+        try {
+            if(journal != null)
+                journal.close();
+        } catch (IOException e) {
+            LOG.warning(e.getLocalizedMessage());
+        }
+        journal = null;
+    }
+}
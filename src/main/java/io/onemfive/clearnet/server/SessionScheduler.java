@@ -0,0 +1,183 @@
+package io.onemfive.clearnet.server;
+
+import java.util.ArrayDeque;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+/**
+ * Admits data requests fairly across {@link ClearnetSession}s.
+ *
+ * Each session is rate limited by a token bucket and may only hold
+ * a bounded number of requests in flight. When the handler's slots
+ * are all taken or a session is at its own limit, requests queue per
+ * session and freed slots are granted round-robin across sessions with
+ * waiters, so one chatty session cannot starve the others.
+ *
+ * @author objectorange
+ */
+public class SessionScheduler {
+
+    private static Logger LOG = Logger.getLogger(SessionScheduler.class.getName());
+
+    /**
+     * Sustained requests per second per session.
+     */
+    public static final String SESSION_RATE = "1m5.sensors.clearnet.server.session.rate";
+    /**
+     * Token bucket size per session.
+     */
+    public static final String SESSION_BURST = "1m5.sensors.clearnet.server.session.burst";
+    /**
+     * Maximum requests held in flight per session.
+     */
+    public static final String SESSION_MAX_IN_FLIGHT = "1m5.sensors.clearnet.server.session.maxInFlight";
+    /**
+     * Maximum requests held in flight by the handler across all sessions.
+     */
+    public static final String SESSION_MAX_CONCURRENT = "1m5.sensors.clearnet.server.session.maxConcurrent";
+    /**
+     * Maximum time in milliseconds a request waits in its session's queue.
+     */
+    public static final String SESSION_QUEUE_TIMEOUT = "1m5.sensors.clearnet.server.session.queueTimeout";
+
+    public static final int ADMITTED = 200;
+    public static final int TOO_MANY_REQUESTS = 429;
+    public static final int UNAVAILABLE = 503;
+
+    private final double rate;
+    private final int burst;
+    private final int maxInFlightPerSession;
+    private final int maxConcurrent;
+    private final long queueTimeoutMs;
+
+    private int running = 0;
+    // Sessions with waiters in round-robin order
+    private final ArrayDeque<ClearnetSession> ring = new ArrayDeque<>();
+    private final Map<ClearnetSession,ArrayDeque<Waiter>> queues = new IdentityHashMap<>();
+
+    public SessionScheduler(double rate, int burst, int maxInFlightPerSession, int maxConcurrent, long queueTimeoutMs) {
+        this.rate = rate;
+        this.burst = burst;
+        this.maxInFlightPerSession = maxInFlightPerSession;
+        this.maxConcurrent = maxConcurrent;
+        this.queueTimeoutMs = queueTimeoutMs;
+    }
+
+    public static SessionScheduler fromProperties(Properties p) {
+        if(p == null)
+            p = new Properties();
+        try {
+            return new SessionScheduler(
+                    Double.parseDouble(p.getProperty(SESSION_RATE, "50")),
+                    Integer.parseInt(p.getProperty(SESSION_BURST, "100")),
+                    Integer.parseInt(p.getProperty(SESSION_MAX_IN_FLIGHT, "6")),
+                    Integer.parseInt(p.getProperty(SESSION_MAX_CONCURRENT, "64")),
+                    Long.parseLong(p.getProperty(SESSION_QUEUE_TIMEOUT, "5000")));
+        } catch (NumberFormatException e) {
+            LOG.warning("Invalid session scheduling configuration; using defaults: "+e.getLocalizedMessage());
+            return new SessionScheduler(50, 100, 6, 64, 5000);
+        }
+    }
+
+    /**
+     * Blocks until the session's request may proceed or its queue wait expires.
+     * @return ADMITTED, or status code to reject with; release() only when ADMITTED
+     */
+    public int admit(ClearnetSession session) {
+        if(!session.tryConsumeToken(rate, burst, System.nanoTime()))
+            return TOO_MANY_REQUESTS;
+        Waiter waiter;
+        synchronized (this) {
+            if(ring.isEmpty() && running < maxConcurrent && session.getInFlight() < maxInFlightPerSession) {
+                grant(session);
+                return ADMITTED;
+            }
+            ArrayDeque<Waiter> queue = queues.get(session);
+            if(queue == null) {
+                queue = new ArrayDeque<>();
+                queues.put(session, queue);
+                ring.addLast(session);
+            } else if(queue.size() >= maxInFlightPerSession * 2) {
+                return TOO_MANY_REQUESTS;
+            }
+            waiter = new Waiter();
+            queue.addLast(waiter);
+            // Sessions queued only for their own limit must not hold back others
+            dispatch();
+        }
+        synchronized (waiter) {
+            long deadline = System.currentTimeMillis() + queueTimeoutMs;
+            long remaining = queueTimeoutMs;
+            while(!waiter.granted && remaining > 0) {
+                try {
+                    waiter.wait(remaining);
+                } catch (InterruptedException e) {
+                    break;
+                }
+                remaining = deadline - System.currentTimeMillis();
+            }
+        }
+        synchronized (this) {
+            if(waiter.granted)
+                return ADMITTED;
+            ArrayDeque<Waiter> queue = queues.get(session);
+            if(queue != null) {
+                queue.remove(waiter);
+                if(queue.isEmpty()) {
+                    queues.remove(session);
+                    ring.remove(session);
+                }
+            }
+        }
+        return session.getInFlight() >= maxInFlightPerSession ? TOO_MANY_REQUESTS : UNAVAILABLE;
+    }
+
+    public synchronized void release(ClearnetSession session) {
+        running--;
+        session.setInFlight(session.getInFlight() - 1);
+        dispatch();
+    }
+
+    public synchronized int getQueuedSessions() {
+        return ring.size();
+    }
+
+    /**
+     * Grant free slots round-robin to sessions with waiters.
+     */
+    private void dispatch() {
+        int skipped = 0;
+        while(running < maxConcurrent && !ring.isEmpty() && skipped < ring.size()) {
+            ClearnetSession session = ring.pollFirst();
+            ArrayDeque<Waiter> queue = queues.get(session);
+            if(session.getInFlight() >= maxInFlightPerSession) {
+                // At its own limit; keep its place for the next release
+                ring.addLast(session);
+                skipped++;
+                continue;
+            }
+            skipped = 0;
+            Waiter waiter = queue.pollFirst();
+            grant(session);
+            if(queue.isEmpty())
+                queues.remove(session);
+            else
+                ring.addLast(session);
+            synchronized (waiter) {
+                waiter.granted = true;
+                waiter.notify();
+            }
+        }
+    }
+
+    private void grant(ClearnetSession session) {
+        running++;
+        session.setInFlight(session.getInFlight() + 1);
+    }
+
+    private static class Waiter {
+        private boolean granted = false;
+    }
+}
@@ -0,0 +1,105 @@
+package io.onemfive.clearnet.server;
+
+import org.eclipse.jetty.alpn.server.ALPNServerConnectionFactory;
+import org.eclipse.jetty.http2.HTTP2Cipher;
+import org.eclipse.jetty.http2.server.HTTP2ServerConnectionFactory;
+import org.eclipse.jetty.server.HttpConfiguration;
+import org.eclipse.jetty.server.HttpConnectionFactory;
+import org.eclipse.jetty.server.SecureRequestCustomizer;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.SslConnectionFactory;
+import org.eclipse.jetty.util.ssl.SslContextFactory;
+
+import java.util.Properties;
+import java.util.logging.Logger;
+
+/**
+ * Builds TLS connectors for servers configured with a keystore.
+ *
+ * Sessions are cached server-side for abbreviated handshakes on
+ * reconnect. Stateless session tickets are a JVM-wide setting left to the
+ * operator: on JDK 13+ start the JVM with
+ * -Djdk.tls.server.enableSessionTicketExtension=true.
+ * HTTP/2 is negotiated over ALPN, falling back to HTTP/1.1 for
+ * clients not offering it or when the JDK has no ALPN support.
+ *
+ * All properties are suffixed with the server's name.
+ *
+ * @author objectorange
+ */
+public final class TlsConnectors {
+
+    private static Logger LOG = Logger.getLogger(TlsConnectors.class.getName());
+
+    /**
+     * Keystore path (JKS or PKCS12); setting it serves TLS instead of plaintext TCP.
+     */
+    public static final String KEYSTORE_PREFIX = "1m5.sensors.clearnet.server.tls.keystore.";
+    public static final String KEYSTORE_PASSWORD_PREFIX = "1m5.sensors.clearnet.server.tls.keystorePassword.";
+    public static final String KEYSTORE_TYPE_PREFIX = "1m5.sensors.clearnet.server.tls.keystoreType.";
+    /**
+     * Interface to bind; default 127.0.0.1.
+     */
+    public static final String HOST_PREFIX = "1m5.sensors.clearnet.server.tls.host.";
+    public static final String SESSION_CACHE_SIZE_PREFIX = "1m5.sensors.clearnet.server.tls.sessionCacheSize.";
+    public static final String SESSION_TIMEOUT_PREFIX = "1m5.sensors.clearnet.server.tls.sessionTimeout.";
+    /**
+     * Negotiate HTTP/2 over ALPN: true (default) or false for HTTP/1.1 only.
+     */
+    public static final String HTTP2_PREFIX = "1m5.sensors.clearnet.server.tls.http2.";
+
+    private TlsConnectors() {}
+
+    public static boolean isConfigured(Properties p, String serverName) {
+        String keystore = p.getProperty(KEYSTORE_PREFIX + serverName);
+        return keystore != null && !keystore.isEmpty();
+    }
+
+    public static ServerConnector create(Server server, Properties p, String serverName, int port) {
+        SslContextFactory.Server ssl = new SslContextFactory.Server();
+        ssl.setKeyStorePath(p.getProperty(KEYSTORE_PREFIX + serverName));
+        String password = p.getProperty(KEYSTORE_PASSWORD_PREFIX + serverName);
+        if(password != null)
+            ssl.setKeyStorePassword(password);
+        String type = p.getProperty(KEYSTORE_TYPE_PREFIX + serverName);
+        if(type != null)
+            ssl.setKeyStoreType(type);
+        ssl.setSslSessionCacheSize(intProperty(p, SESSION_CACHE_SIZE_PREFIX + serverName, 10000));
+        ssl.setSslSessionTimeout(intProperty(p, SESSION_TIMEOUT_PREFIX + serverName, 24 * 60 * 60));
+
+        HttpConfiguration config = new HttpConfiguration();
+        config.setSecureScheme("https");
+        config.setSecurePort(port);
+        config.addCustomizer(new SecureRequestCustomizer());
+        HttpConnectionFactory http1 = new HttpConnectionFactory(config);
+
+        ServerConnector connector = null;
+        if(!"false".equals(p.getProperty(HTTP2_PREFIX + serverName))) {
+            try {
+                ALPNServerConnectionFactory alpn = new ALPNServerConnectionFactory();
+                alpn.setDefaultProtocol(http1.getProtocol());
+                HTTP2ServerConnectionFactory http2 = new HTTP2ServerConnectionFactory(config);
+                ssl.setCipherComparator(HTTP2Cipher.COMPARATOR);
+                ssl.setUseCipherSuitesOrder(true);
+                connector = new ServerConnector(server, new SslConnectionFactory(ssl, alpn.getProtocol()), alpn, http2, http1);
+            } catch (IllegalStateException e) {
+                LOG.warning("ALPN not available on this JDK; serving HTTP/1.1 only over TLS for "+serverName);
+            }
+        }
+        if(connector == null)
+            connector = new ServerConnector(server, new SslConnectionFactory(ssl, http1.getProtocol()), http1);
+        connector.setHost(p.getProperty(HOST_PREFIX + serverName, "127.0.0.1"));
+        connector.setPort(port);
+        return connector;
+    }
+
+    private static int intProperty(Properties p, String key, int defaultValue) {
+        try {
+            return Integer.parseInt(p.getProperty(key, String.valueOf(defaultValue)));
+        } catch (NumberFormatException e) {
+            LOG.warning("Invalid "+key+"; using "+defaultValue);
+            return defaultValue;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package io.onemfive.clearnet.server;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class CborCodecTest {
+
+    @Test
+    public void roundTripsJsonValuesAndBytes() {
+        Map<String,Object> m = new LinkedHashMap<>();
+        m.put("s", "héllo");
+        m.put("n", 1000000L);
+        m.put("neg", -25L);
+        m.put("d", 1.5);
+        m.put("t", true);
+        m.put("f", false);
+        m.put("null", null);
+        m.put("list", Arrays.<Object>asList(1L, "two", Arrays.<Object>asList()));
+        m.put("bytes", new byte[]{0, 1, (byte)0xff});
+
+        @SuppressWarnings("unchecked")
+        Map<String,Object> decoded = (Map<String,Object>)CborCodec.decode(CborCodec.encode(m));
+        assertEquals("héllo", decoded.get("s"));
+        assertEquals(1000000L, decoded.get("n"));
+        assertEquals(-25L, decoded.get("neg"));
+        assertEquals(1.5, (Double)decoded.get("d"), 0);
+        assertEquals(Boolean.TRUE, decoded.get("t"));
+        assertEquals(Boolean.FALSE, decoded.get("f"));
+        assertTrue(decoded.containsKey("null"));
+        assertNull(decoded.get("null"));
+        assertEquals(Arrays.<Object>asList(1L, "two", Arrays.<Object>asList()), decoded.get("list"));
+        assertArrayEquals(new byte[]{0, 1, (byte)0xff}, (byte[])decoded.get("bytes"));
+    }
+
+    @Test
+    public void encodesSmallestHeads() {
+        assertArrayEquals(bytes(0x17), CborCodec.encode(23));
+        assertArrayEquals(bytes(0x18, 0x18), CborCodec.encode(24));
+        assertArrayEquals(bytes(0x19, 0x01, 0x00), CborCodec.encode(256));
+        assertArrayEquals(bytes(0x20), CborCodec.encode(-1));
+        assertArrayEquals(bytes(0x63, 'a', 'b', 'c'), CborCodec.encode("abc"));
+    }
+
+    @Test
+    public void decodesIndefiniteLengthsAndHalfFloats() {
+        // [_ "a", {_ "b": 1}] with "a" as an indefinite text string of one chunk
+        List<?> list = (List<?>)CborCodec.decode(bytes(0x9f, 0x7f, 0x61, 'a', 0xff, 0xbf, 0x61, 'b', 0x01, 0xff, 0xff));
+        assertEquals("a", list.get(0));
+        assertEquals(1L, ((Map<?,?>)list.get(1)).get("b"));
+        assertEquals(1.5, (Double)CborCodec.decode(bytes(0xf9, 0x3e, 0x00)), 0);
+        // Tags are skipped
+        assertEquals(1L, CborCodec.decode(bytes(0xc1, 0x01)));
+    }
+
+    @Test
+    public void rejectsMalformedInput() {
+        assertRejected(bytes(0x62, 'a'));                    // truncated string
+        assertRejected(bytes(0x01, 0x02));                   // trailing bytes
+        assertRejected(bytes(0xff));                         // stray break
+        assertRejected(bytes(0x1b, 0xff, 0, 0, 0, 0, 0, 0, 0)); // beyond signed 64-bit
+        // A forged length cannot force a large allocation
+        assertRejected(bytes(0x5a, 0x7f, 0xff, 0xff, 0xff));
+        byte[] deep = new byte[100];
+        Arrays.fill(deep, (byte)0x81);
+        assertRejected(deep);
+    }
+
+    @Test
+    public void negotiatesOnlyWhenPreferred() {
+        assertTrue(CborCodec.isCbor("application/cbor; charset=binary"));
+        assertFalse(CborCodec.isCbor("application/json"));
+        assertTrue(CborCodec.accepted("application/cbor"));
+        assertTrue(CborCodec.accepted("application/cbor, application/json"));
+        assertFalse(CborCodec.accepted("application/json, application/cbor"));
+        assertFalse(CborCodec.accepted("application/cbor;q=0.5, */*"));
+        assertFalse(CborCodec.accepted(null));
+    }
+
+    private static void assertRejected(byte[] data) {
+        try {
+            CborCodec.decode(data);
+            fail("Accepted "+Arrays.toString(data));
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    private static byte[] bytes(int... values) {
+        byte[] b = new byte[values.length];
+        for(int i = 0; i < values.length; i++)
+            b[i] = (byte)values[i];
+        return b;
+    }
+}
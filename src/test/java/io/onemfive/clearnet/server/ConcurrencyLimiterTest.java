@@ -0,0 +1,93 @@
+package io.onemfive.clearnet.server;
+
+import org.junit.Test;
+
+import java.util.Properties;
+
+import static org.junit.Assert.*;
+
+public class ConcurrencyLimiterTest {
+
+    @Test
+    public void rejectsBeyondLimit() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(2, 1, 10, 2.0);
+        assertTrue(limiter.tryAcquire());
+        assertTrue(limiter.tryAcquire());
+        assertFalse(limiter.tryAcquire());
+        assertEquals(2, limiter.getInFlight());
+        assertEquals(1, limiter.getRejected());
+    }
+
+    @Test
+    public void cancelFreesSlotWithoutSample() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, 1, 10, 2.0);
+        assertTrue(limiter.tryAcquire());
+        limiter.cancel();
+        assertEquals(0, limiter.getInFlight());
+        assertEquals(0, limiter.getCompleted());
+        assertTrue(limiter.tryAcquire());
+        // Never below zero
+        limiter.cancel();
+        limiter.cancel();
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    public void droppedBacksOffToMinimum() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(10, 8, 100, 2.0);
+        limiter.tryAcquire();
+        limiter.release(100, true);
+        assertEquals(9, limiter.getLimit());
+        for(int i = 0; i < 10; i++) {
+            limiter.tryAcquire();
+            limiter.release(100, true);
+        }
+        assertEquals(8, limiter.getLimit());
+        assertEquals(11, limiter.getDropped());
+        assertEquals(11, limiter.getCompleted());
+    }
+
+    @Test
+    public void growsWhileLatencyHoldsAndShrinksAsItRises() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(10, 4, 100, 2.0);
+        for(int round = 0; round < 5; round++)
+            saturate(limiter, 50);
+        int grown = limiter.getLimit();
+        assertTrue("limit "+grown, grown > 10);
+
+        // Long-term latency adapts slowly, so a sudden rise cuts the limit at once
+        saturate(limiter, 5000);
+        assertTrue("limit "+limiter.getLimit(), limiter.getLimit() < grown);
+    }
+
+    @Test
+    public void doesNotGrowWhileApplicationLimited() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(20, 4, 100, 2.0);
+        for(int i = 0; i < 50; i++) {
+            limiter.tryAcquire();
+            limiter.release(50, false);
+        }
+        assertEquals(20, limiter.getLimit());
+    }
+
+    @Test
+    public void invalidPropertiesFallBackToDefaults() {
+        Properties p = new Properties();
+        p.setProperty(ConcurrencyLimiter.LIMIT_INITIAL, "many");
+        assertEquals(new ConcurrencyLimiter().getLimit(), ConcurrencyLimiter.fromProperties(p).getLimit());
+        p.setProperty(ConcurrencyLimiter.LIMIT_INITIAL, "3");
+        assertEquals(3, ConcurrencyLimiter.fromProperties(p).getLimit());
+        assertEquals(new ConcurrencyLimiter().getLimit(), ConcurrencyLimiter.fromProperties(null).getLimit());
+    }
+
+    /**
+     * Fill every slot, then release all with the same round-trip time.
+     */
+    private static void saturate(ConcurrencyLimiter limiter, long rttMs) {
+        int acquired = 0;
+        while(limiter.tryAcquire())
+            acquired++;
+        for(int i = 0; i < acquired; i++)
+            limiter.release(rttMs, false);
+    }
+}
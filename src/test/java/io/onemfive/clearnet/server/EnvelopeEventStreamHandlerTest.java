@@ -0,0 +1,71 @@
+package io.onemfive.clearnet.server;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class EnvelopeEventStreamHandlerTest {
+
+    private static final long IDLE_TIMEOUT_MS = 500;
+
+    private Server server;
+    private int port;
+
+    @Before
+    public void startServer() throws Exception {
+        server = new Server();
+        ServerConnector connector = new ServerConnector(server);
+        connector.setHost("127.0.0.1");
+        connector.setPort(0);
+        connector.setIdleTimeout(IDLE_TIMEOUT_MS);
+        server.addConnector(connector);
+        server.setHandler(new EnvelopeEventStreamHandler(8, 8, 100));
+        server.start();
+        port = connector.getLocalPort();
+    }
+
+    @After
+    public void stopServer() throws Exception {
+        server.stop();
+    }
+
+    @Test
+    public void keepAliveOutlastsIdleTimeout() throws Exception {
+        Socket socket = new Socket("127.0.0.1", port);
+        try {
+            socket.setSoTimeout((int)IDLE_TIMEOUT_MS);
+            socket.getOutputStream().write("GET / HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            socket.getOutputStream().flush();
+            InputStream in = socket.getInputStream();
+            StringBuilder sb = new StringBuilder();
+            byte[] buf = new byte[1024];
+            long until = System.currentTimeMillis() + IDLE_TIMEOUT_MS * 3;
+            while(System.currentTimeMillis() < until) {
+                int n;
+                try {
+                    n = in.read(buf);
+                } catch (SocketTimeoutException e) {
+                    fail("Nothing written within the idle timeout: "+sb);
+                    return;
+                }
+                assertTrue("Stream closed: "+sb, n >= 0);
+                sb.append(new String(buf, 0, n, StandardCharsets.UTF_8));
+            }
+            String stream = sb.toString();
+            assertTrue(stream, stream.startsWith("HTTP/1.1 200"));
+            assertTrue(stream, stream.contains("retry: "));
+            assertTrue(stream, stream.contains("\n:\n\n"));
+        } finally {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package io.onemfive.clearnet.server;
+
+import io.onemfive.data.Envelope;
+import io.onemfive.data.util.DLC;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+/**
+ * CONNECT through {@link EnvelopeProxyDataHandler} with the bus replaced by
+ * a far end echoing every chunk back upper-cased.
+ */
+public class EnvelopeTunnelTest {
+
+    private Server server;
+    private EchoingProxyHandler handler;
+    private int port;
+
+    @Before
+    public void startServer() throws Exception {
+        handler = new EchoingProxyHandler();
+        handler.setSensor(new ClearnetServerSensor());
+        server = new Server();
+        ServerConnector connector = new ServerConnector(server);
+        connector.setHost("127.0.0.1");
+        connector.setPort(0);
+        server.addConnector(connector);
+        server.setHandler(handler);
+        server.start();
+        port = connector.getLocalPort();
+    }
+
+    @After
+    public void stopServer() throws Exception {
+        server.stop();
+        handler.bus.shutdownNow();
+    }
+
+    @Test
+    public void bytesFlowBothWays() throws Exception {
+        try (Socket socket = new Socket("127.0.0.1", port)) {
+            socket.setSoTimeout(5000);
+            OutputStream out = socket.getOutputStream();
+            InputStream in = socket.getInputStream();
+
+            // Bytes right behind the request are read by HTTP and must be handed over
+            out.write(("CONNECT example.com:443 HTTP/1.1\r\nHost: example.com:443\r\n\r\nhello").getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+
+            String head = readHead(in);
+            assertTrue(head, head.startsWith("HTTP/1.1 200"));
+            assertEquals("HELLO", read(in, 5));
+
+            out.write("tunnel".getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            assertEquals("TUNNEL", read(in, 6));
+
+            // Every chunk written to the client is acknowledged to the far end
+            long deadline = System.currentTimeMillis() + 5000;
+            while(handler.acknowledged.size() < handler.sent.size() && System.currentTimeMillis() < deadline)
+                Thread.sleep(10);
+            assertEquals(handler.sent.size(), handler.acknowledged.size());
+        }
+
+        assertEquals(1, handler.opened.size());
+        assertEquals("https://example.com:443", handler.opened.get(0));
+        assertEquals("hellotunnel", join(handler.sent));
+        // Client closing is passed on to the far end
+        long deadline = System.currentTimeMillis() + 5000;
+        while(handler.closed.isEmpty() && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertEquals(1, handler.closed.size());
+    }
+
+    @Test
+    public void refusedOpenAnswers502() throws Exception {
+        handler.refuse = true;
+        try (Socket socket = new Socket("127.0.0.1", port)) {
+            socket.setSoTimeout(5000);
+            socket.getOutputStream().write(("CONNECT example.com:443 HTTP/1.1\r\nHost: example.com:443\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            String head = readHead(socket.getInputStream());
+            assertTrue(head, head.startsWith("HTTP/1.1 502"));
+        }
+        assertEquals(0, handler.getConcurrencyInFlight());
+    }
+
+    private static String readHead(InputStream in) throws IOException {
+        ByteArrayOutputStream head = new ByteArrayOutputStream();
+        int matched = 0;
+        while(matched < 4) {
+            int b = in.read();
+            if(b < 0)
+                throw new IOException("Connection closed in response head: "+head);
+            head.write(b);
+            matched = (b == (matched % 2 == 0 ? '\r' : '\n')) ? matched + 1 : (b == '\r' ? 1 : 0);
+        }
+        return head.toString("US-ASCII");
+    }
+
+    private static String read(InputStream in, int length) throws IOException {
+        byte[] data = new byte[length];
+        int read = 0;
+        while(read < length) {
+            int n = in.read(data, read, length - read);
+            if(n < 0)
+                throw new IOException("Tunnel closed after "+read+" bytes");
+            read += n;
+        }
+        return new String(data, StandardCharsets.US_ASCII);
+    }
+
+    private static String join(List<String> chunks) {
+        StringBuilder sb = new StringBuilder();
+        for(String chunk : chunks)
+            sb.append(chunk);
+        return sb.toString();
+    }
+
+    /**
+     * Stands in for the bus and the far end of the tunnel.
+     */
+    private static class EchoingProxyHandler extends EnvelopeProxyDataHandler {
+
+        private final ExecutorService bus = Executors.newSingleThreadExecutor();
+        private final List<String> opened = new CopyOnWriteArrayList<>();
+        private final List<String> sent = new CopyOnWriteArrayList<>();
+        private final List<Long> acknowledged = new CopyOnWriteArrayList<>();
+        private final List<Long> closed = new CopyOnWriteArrayList<>();
+        private volatile boolean refuse;
+
+        @Override
+        protected void route(final Envelope e) {
+            bus.execute(new Runnable() {
+                @Override
+                public void run() {
+                    far(e);
+                }
+            });
+        }
+
+        private void far(Envelope e) {
+            Object op = e.getHeader(TUNNEL_OP);
+            if(TUNNEL_OPEN.equals(op)) {
+                opened.add(e.getURL().toString());
+                if(refuse)
+                    DLC.addErrorMessage("refused", e);
+                reply(e);
+            } else if(TUNNEL_SEND.equals(op)) {
+                byte[] data = (byte[])DLC.getContent(e);
+                sent.add(new String(data, StandardCharsets.US_ASCII));
+                reply(e);
+                Envelope back = Envelope.documentFactory();
+                back.setHeader(TUNNEL_OP, TUNNEL_RECEIVE);
+                back.setHeader(TUNNEL_ID, e.getHeader(TUNNEL_ID));
+                back.setHeader(TUNNEL_SEQ, e.getHeader(TUNNEL_SEQ));
+                DLC.addContent(new String(data, StandardCharsets.US_ASCII).toUpperCase().getBytes(StandardCharsets.US_ASCII), back);
+                reply(back);
+            } else if(TUNNEL_ACK.equals(op)) {
+                acknowledged.add((Long)e.getHeader(TUNNEL_SEQ));
+            } else if(TUNNEL_CLOSE.equals(op)) {
+                closed.add((Long)e.getHeader(TUNNEL_ID));
+            }
+        }
+
+        private int getConcurrencyInFlight() {
+            return sensor.getConcurrencyLimiter().getInFlight();
+        }
+    }
+}
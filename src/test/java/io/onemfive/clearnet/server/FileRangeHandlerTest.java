@@ -0,0 +1,169 @@
+package io.onemfive.clearnet.server;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+/**
+ * Requests against a {@link FileRangeHandler} serving a temporary directory.
+ */
+public class FileRangeHandlerTest {
+
+    private static final String TEXT = "0123456789abcdefghij";
+
+    private File root;
+    private Server server;
+    private int port;
+
+    @Before
+    public void startServer() throws Exception {
+        root = Files.createTempDirectory("files").toFile();
+        write(new File(root, "a.txt"), TEXT);
+        File hiddenDir = new File(root, ".git");
+        hiddenDir.mkdir();
+        write(new File(hiddenDir, "config"), "secret");
+        write(new File(root, ".env"), "secret");
+        server = new Server();
+        ServerConnector connector = new ServerConnector(server);
+        connector.setHost("127.0.0.1");
+        connector.setPort(0);
+        server.addConnector(connector);
+        server.setHandler(new FileRangeHandler(root));
+        server.start();
+        port = connector.getLocalPort();
+    }
+
+    @After
+    public void stopServer() throws Exception {
+        server.stop();
+        new File(root, ".git/config").delete();
+        new File(root, ".git").delete();
+        new File(root, ".env").delete();
+        new File(root, "a.txt").delete();
+        root.delete();
+    }
+
+    @Test
+    public void servesWholeFile() throws Exception {
+        HttpURLConnection c = get("/a.txt", null);
+        assertEquals(200, c.getResponseCode());
+        assertEquals("bytes", c.getHeaderField("Accept-Ranges"));
+        assertEquals(TEXT, body(c));
+    }
+
+    @Test
+    public void servesSingleRange() throws Exception {
+        HttpURLConnection c = get("/a.txt", "bytes=2-5");
+        assertEquals(206, c.getResponseCode());
+        assertEquals("bytes 2-5/20", c.getHeaderField("Content-Range"));
+        assertEquals("2345", body(c));
+
+        c = get("/a.txt", "bytes=-3");
+        assertEquals(206, c.getResponseCode());
+        assertEquals("hij", body(c));
+    }
+
+    @Test
+    public void servesMultipleRanges() throws Exception {
+        HttpURLConnection c = get("/a.txt", "bytes=0-1,10-11");
+        assertEquals(206, c.getResponseCode());
+        assertTrue(c.getContentType().startsWith("multipart/byteranges; boundary="));
+        String body = body(c);
+        assertTrue(body, body.contains("Content-Range: bytes 0-1/20\r\n\r\n01\r\n"));
+        assertTrue(body, body.contains("Content-Range: bytes 10-11/20\r\n\r\nab\r\n"));
+        assertEquals(body.length(), c.getContentLength());
+    }
+
+    @Test
+    public void unsatisfiableRangeIs416() throws Exception {
+        HttpURLConnection c = get("/a.txt", "bytes=50-60");
+        assertEquals(416, c.getResponseCode());
+        assertEquals("bytes */20", c.getHeaderField("Content-Range"));
+    }
+
+    @Test
+    public void staleIfRangeGetsWholeFile() throws Exception {
+        HttpURLConnection c = get("/a.txt", "bytes=2-5");
+        c.getResponseCode();
+        String etag = c.getHeaderField("ETag");
+        c = open("/a.txt");
+        c.setRequestProperty("Range", "bytes=2-5");
+        c.setRequestProperty("If-Range", "\"other\"");
+        assertEquals(200, c.getResponseCode());
+        assertEquals(TEXT, body(c));
+
+        c = open("/a.txt");
+        c.setRequestProperty("If-None-Match", etag);
+        assertEquals(304, c.getResponseCode());
+    }
+
+    @Test
+    public void changedFileIsRemapped() throws Exception {
+        assertEquals(TEXT, body(get("/a.txt", null)));
+        File a = new File(root, "a.txt");
+        write(a, "short");
+        // Size alone changes the mapping even within the same second
+        assertEquals("short", body(get("/a.txt", null)));
+        assertEquals("ort", body(get("/a.txt", "bytes=2-")));
+    }
+
+    @Test
+    public void refusesDotSegmentsAndTraversal() throws Exception {
+        assertEquals(404, get("/.env", null).getResponseCode());
+        assertEquals(404, get("/.git/config", null).getResponseCode());
+        // Jetty itself refuses encoded traversal
+        assertEquals(400, get("/%2e%2e/etc/passwd", null).getResponseCode());
+        assertEquals(404, get("/missing.txt", null).getResponseCode());
+    }
+
+    private HttpURLConnection open(String path) throws IOException {
+        HttpURLConnection c = (HttpURLConnection)new URL("http://127.0.0.1:" + port + path).openConnection();
+        c.setConnectTimeout(5000);
+        c.setReadTimeout(5000);
+        return c;
+    }
+
+    private HttpURLConnection get(String path, String range) throws IOException {
+        HttpURLConnection c = open(path);
+        if(range != null)
+            c.setRequestProperty("Range", range);
+        return c;
+    }
+
+    private static String body(HttpURLConnection c) throws IOException {
+        InputStream in = c.getInputStream();
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            int n;
+            while((n = in.read(buf)) != -1)
+                out.write(buf, 0, n);
+            return new String(out.toByteArray(), StandardCharsets.US_ASCII);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void write(File f, String text) throws IOException {
+        FileOutputStream out = new FileOutputStream(f);
+        try {
+            out.write(text.getBytes(StandardCharsets.US_ASCII));
+        } finally {
+            out.close();
+        }
+    }
+}
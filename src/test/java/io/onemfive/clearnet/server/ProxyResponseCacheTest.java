@@ -0,0 +1,148 @@
+package io.onemfive.clearnet.server;
+
+import io.onemfive.data.Envelope;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class ProxyResponseCacheTest {
+
+    private static final String URL = "http://example.com/a";
+
+    private File dir;
+    private ProxyResponseCache cache;
+
+    @Before
+    public void createCache() throws Exception {
+        dir = Files.createTempDirectory("proxy-cache").toFile();
+        cache = new ProxyResponseCache(dir, 4096, 1024);
+    }
+
+    @After
+    public void deleteCache() {
+        File[] files = dir.listFiles();
+        if(files != null) {
+            for(File f : files)
+                f.delete();
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void storesFreshOriginResponse() {
+        HttpServletRequest request = get();
+        cache.put(URL, body("a"), reply(200, "Cache-Control", "max-age=60"), request);
+        ProxyResponseCache.Hit hit = cache.get(URL, request);
+        assertNotNull(hit);
+        assertTrue(hit.getEntry().isFresh(System.currentTimeMillis()));
+        assertEquals(200, hit.getEntry().getStatus());
+        assertEquals("a", text(hit.getBody()));
+    }
+
+    @Test
+    public void ignoresRequestHeadersCopiedOntoReply() {
+        // A client's own Cache-Control rides along on the Envelope
+        Envelope reply = reply(200);
+        reply.setHeader("Cache-Control", "max-age=600");
+        cache.put(URL, body("a"), reply, get());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void storesOnlyCacheableStatuses() {
+        cache.put(URL, body("a"), reply(500, "Cache-Control", "max-age=60"), get());
+        cache.put(URL, body("a"), reply(206, "Cache-Control", "max-age=60"), get());
+        cache.put(URL, body("a"), reply(-1, "Cache-Control", "max-age=60"), get());
+        assertEquals(0, cache.size());
+        cache.put(URL, body("gone"), reply(404, "Cache-Control", "max-age=60"), get());
+        assertEquals(404, cache.get(URL, get()).getEntry().getStatus());
+    }
+
+    @Test
+    public void skipsPrivateAndNoStore() {
+        cache.put(URL, body("a"), reply(200, "Cache-Control", "private, max-age=60"), get());
+        cache.put(URL, body("a"), reply(200, "Cache-Control", "no-store"), get());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void skipsRequestsWithCredentials() {
+        HttpServletRequest authorized = get("Authorization", "Bearer x");
+        HttpServletRequest withCookie = get("Cookie", "id=1");
+        assertFalse(ProxyResponseCache.isCacheable(authorized));
+        assertFalse(ProxyResponseCache.isCacheable(withCookie));
+        assertFalse(ProxyResponseCache.isCacheable(get("Cache-Control", "no-store")));
+        assertTrue(ProxyResponseCache.isCacheable(get()));
+        cache.put(URL, body("a"), reply(200, "Cache-Control", "max-age=60"), authorized);
+        cache.put(URL, body("a"), reply(200, "Cache-Control", "max-age=60"), withCookie);
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void sharedMaxAgeOverridesMaxAge() {
+        long now = System.currentTimeMillis();
+        assertEquals(10000, ProxyResponseCache.freshnessLifetime(reply(200, "Cache-Control", "max-age=600, s-maxage=10"), now));
+        assertEquals(600000, ProxyResponseCache.freshnessLifetime(reply(200, "Cache-Control", "max-age=600"), now));
+    }
+
+    @Test
+    public void revalidatesOnlyOnNotModified() {
+        cache.put(URL, body("a"), reply(200, "Cache-Control", "no-cache", "ETag", "\"v1\""), get());
+        ProxyResponseCache.Hit stale = cache.get(URL, get());
+        assertFalse(stale.getEntry().isFresh(System.currentTimeMillis() + 1));
+        // An empty 200 is a new, empty representation, not a confirmation
+        assertFalse(cache.revalidated(stale, reply(200, "ETag", "\"v1\"")));
+        assertFalse(cache.revalidated(stale, reply(304, "ETag", "\"v2\"")));
+        assertTrue(cache.revalidated(stale, reply(304, "ETag", "\"v1\"", "Cache-Control", "max-age=60")));
+        assertTrue(stale.getEntry().isFresh(System.currentTimeMillis()));
+    }
+
+    private static Envelope reply(int status, String... headers) {
+        Envelope e = Envelope.documentFactory();
+        if(status > 0)
+            e.setHeader(ProxyResponseCache.RESPONSE_STATUS, status);
+        for(int i = 0; i < headers.length; i += 2)
+            e.setHeader(ProxyResponseCache.RESPONSE_HEADER_PREFIX + headers[i].toLowerCase(), headers[i + 1]);
+        return e;
+    }
+
+    private static HttpServletRequest get(String... headers) {
+        final Map<String,String> values = new HashMap<>();
+        for(int i = 0; i < headers.length; i += 2)
+            values.put(headers[i], headers[i + 1]);
+        return (HttpServletRequest)Proxy.newProxyInstance(ProxyResponseCacheTest.class.getClassLoader(),
+                new Class<?>[]{HttpServletRequest.class}, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if(method.getName().equals("getMethod"))
+                            return "GET";
+                        if(method.getName().equals("getHeader"))
+                            return values.get((String)args[0]);
+                        return null;
+                    }
+                });
+    }
+
+    private static byte[] body(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String text(ByteBuffer body) {
+        byte[] b = new byte[body.remaining()];
+        body.get(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+}
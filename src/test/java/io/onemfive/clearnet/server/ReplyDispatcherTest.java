@@ -0,0 +1,141 @@
+package io.onemfive.clearnet.server;
+
+import io.onemfive.data.Envelope;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.junit.After;
+import org.junit.Test;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ReplyDispatcherTest {
+
+    private static final String SEQ = "seq";
+
+    private final List<Integer> replied = new CopyOnWriteArrayList<>();
+    private final List<String> threads = new CopyOnWriteArrayList<>();
+    private final CountDownLatch unblock = new CountDownLatch(1);
+    private final CountDownLatch blocked = new CountDownLatch(1);
+    private final AsynchronousEnvelopeHandler handler = new RecordingHandler();
+    private ReplyDispatcher dispatcher;
+
+    @After
+    public void shutdown() {
+        unblock.countDown();
+        if(dispatcher != null)
+            dispatcher.shutdown();
+    }
+
+    @Test
+    public void fullQueueKeepsOrderOffTheBusThread() throws Exception {
+        dispatcher = new ReplyDispatcher(1, 1, 5000);
+        final long id = 42;
+        dispatcher.dispatch(reply(id, 0, true), handler);
+        assertTrue(blocked.await(5, TimeUnit.SECONDS));
+        dispatcher.dispatch(reply(id, 1, true), handler);
+        // The queue is full from here: the bus thread has to wait its turn
+        Thread bus = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for(int seq = 2; seq < 6; seq++)
+                    dispatcher.dispatch(reply(id, seq, seq < 5), handler);
+            }
+        }, "bus");
+        bus.start();
+        Thread.sleep(100);
+        unblock.countDown();
+        bus.join(5000);
+        awaitReplies(6);
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5), replied);
+        assertFalse(threads.contains("bus"));
+    }
+
+    @Test
+    public void droppedPartialDropsTheRestOfItsStream() throws Exception {
+        dispatcher = new ReplyDispatcher(1, 1, 50);
+        long id = 7;
+        dispatcher.dispatch(reply(id, 0, true), handler);
+        assertTrue(blocked.await(5, TimeUnit.SECONDS));
+        dispatcher.dispatch(reply(id, 1, true), handler);
+        // No room within the offer timeout
+        dispatcher.dispatch(reply(id, 2, true), handler);
+        unblock.countDown();
+        awaitReplies(2);
+        dispatcher.dispatch(reply(id, 3, true), handler);
+        dispatcher.dispatch(reply(id, 4, false), handler);
+        // Other requests are unaffected, and so is a later use of the id
+        dispatcher.dispatch(reply(8, 10, false), handler);
+        dispatcher.dispatch(reply(id, 11, false), handler);
+        awaitReplies(4);
+        Thread.sleep(50);
+        assertEquals(Arrays.asList(0, 1, 10, 11), replied);
+    }
+
+    private class RecordingHandler extends AbstractHandler implements AsynchronousEnvelopeHandler {
+        @Override
+        public void reply(Envelope envelope) {
+            int seq = (Integer)envelope.getHeader(SEQ);
+            if(seq == 0) {
+                blocked.countDown();
+                try {
+                    unblock.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            threads.add(Thread.currentThread().getName());
+            replied.add(seq);
+        }
+
+        @Override
+        public void setSensor(ClearnetServerSensor sensor) {
+        }
+
+        @Override
+        public void setServiceName(String serviceName) {
+        }
+
+        @Override
+        public void setParameters(String[] parameters) {
+        }
+
+        @Override
+        public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) {
+        }
+    }
+
+    /**
+     * Reply to the request with the given Envelope id, as the bus delivers each partial.
+     */
+    private static Envelope reply(long id, int seq, boolean partial) {
+        Envelope e = Envelope.documentFactory();
+        try {
+            Field f = Envelope.class.getDeclaredField("id");
+            f.setAccessible(true);
+            f.set(e, id);
+        } catch (ReflectiveOperationException ex) {
+            throw new AssertionError(ex);
+        }
+        e.setHeader(SEQ, seq);
+        if(partial)
+            e.setHeader(EnvelopeJSONDataHandler.PARTIAL, Boolean.TRUE);
+        return e;
+    }
+
+    private void awaitReplies(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while(replied.size() < count && System.currentTimeMillis() < deadline)
+            Thread.sleep(5);
+        assertEquals(new ArrayList<>(replied).toString(), count, replied.size());
+    }
+}
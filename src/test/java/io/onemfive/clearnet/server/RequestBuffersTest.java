@@ -0,0 +1,94 @@
+package io.onemfive.clearnet.server;
+
+import org.junit.Test;
+
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class RequestBuffersTest {
+
+    @Test
+    public void readsBodiesUpToCap() throws Exception {
+        assertArrayEquals(new byte[]{'x', 'x'}, RequestBuffers.readBytes(request(2, 2)));
+        assertArrayEquals(new byte[]{'x', 'x', 'x'}, RequestBuffers.readBytes(request(-1, 3)));
+        assertEquals("xx", RequestBuffers.readBody(request(2, 2)));
+        assertEquals(0, RequestBuffers.readBytes(request(0, 0)).length);
+    }
+
+    @Test(expected = RequestBuffers.BodyTooLargeException.class)
+    public void declaredLengthOverCapIsRefusedBeforeReading() throws Exception {
+        // Nothing behind the header: must not be allocated or read
+        RequestBuffers.readBytes(request(Integer.MAX_VALUE, 0));
+    }
+
+    @Test(expected = RequestBuffers.BodyTooLargeException.class)
+    public void undeclaredBinaryBodyOverCapIsRefused() throws Exception {
+        RequestBuffers.readBytes(request(-1, RequestBuffers.MAX_BODY_BYTES + 1));
+    }
+
+    @Test(expected = RequestBuffers.BodyTooLargeException.class)
+    public void undeclaredTextBodyOverCapIsRefused() {
+        RequestBuffers.readBody(request(-1, RequestBuffers.MAX_BODY_BYTES + 1));
+    }
+
+    @Test
+    public void parsesQuery() {
+        Map<String,String> q = RequestBuffers.parseQuery("a=1&b=&c&=d");
+        assertEquals("1", q.get("a"));
+        assertEquals("", q.get("b"));
+        assertEquals("", q.get("c"));
+        assertFalse(q.containsKey(""));
+    }
+
+    /**
+     * Request declaring a Content-Length (-1 for none) with a body of 'x' repeated.
+     */
+    private static HttpServletRequest request(final long declared, final long actual) {
+        final ServletInputStream in = new ServletInputStream() {
+            private long left = actual;
+
+            @Override
+            public int read() throws IOException {
+                if(left == 0)
+                    return -1;
+                left--;
+                return 'x';
+            }
+
+            @Override
+            public boolean isFinished() {
+                return left == 0;
+            }
+
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setReadListener(ReadListener readListener) {
+            }
+        };
+        return (HttpServletRequest)Proxy.newProxyInstance(RequestBuffersTest.class.getClassLoader(),
+                new Class<?>[]{HttpServletRequest.class}, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if(method.getName().equals("getContentLengthLong"))
+                            return declared;
+                        if(method.getName().equals("getContentLength"))
+                            return (int)Math.min(declared, Integer.MAX_VALUE);
+                        if(method.getName().equals("getInputStream"))
+                            return in;
+                        return null;
+                    }
+                });
+    }
+}
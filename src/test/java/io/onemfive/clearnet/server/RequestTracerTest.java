@@ -0,0 +1,62 @@
+package io.onemfive.clearnet.server;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Properties;
+
+import static org.junit.Assert.*;
+
+public class RequestTracerTest {
+
+    private File file;
+
+    @Before
+    public void createFile() throws Exception {
+        file = File.createTempFile("traces", ".jsonl");
+    }
+
+    @After
+    public void deleteFile() {
+        file.delete();
+    }
+
+    @Test
+    public void exportsStatusCodeAsInt() throws Exception {
+        Properties p = new Properties();
+        p.setProperty(RequestTracer.TRACE_FILE, file.getPath());
+        p.setProperty(RequestTracer.TRACE_SAMPLE_RATE, "1");
+        RequestTracer tracer = RequestTracer.fromProperties(p);
+        RequestTracer.Trace trace = tracer.start("test", null);
+        trace.attribute("http.method", "GET");
+        trace.mark("parse");
+        trace.end("write", 200);
+        // Only exported once
+        trace.end("write", 500);
+        tracer.close();
+
+        List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+        assertEquals(1, lines.size());
+        String line = lines.get(0);
+        assertTrue(line, line.contains("{\"key\":\"http.status_code\",\"value\":{\"intValue\":200}}"));
+        assertTrue(line, line.contains("{\"key\":\"http.method\",\"value\":{\"stringValue\":\"GET\"}}"));
+        assertTrue(line, line.contains("\"traceId\":\""+trace.getTraceId()+"\""));
+        assertFalse(line, line.contains("\"status\""));
+    }
+
+    @Test
+    public void parsesTraceParent() {
+        String[] parent = RequestTracer.parseTraceParent("00-4bf92f3577b34da6a3ce929d0e0e4736-00f067aa0ba902b7-01");
+        assertEquals("4bf92f3577b34da6a3ce929d0e0e4736", parent[0]);
+        assertEquals("00f067aa0ba902b7", parent[1]);
+        assertNotNull(parent[2]);
+        assertNull(RequestTracer.parseTraceParent("00-4bf92f3577b34da6a3ce929d0e0e4736-00f067aa0ba902b7-00")[2]);
+        assertNull(RequestTracer.parseTraceParent("00-00000000000000000000000000000000-00f067aa0ba902b7-01"));
+        assertNull(RequestTracer.parseTraceParent("garbage"));
+    }
+}
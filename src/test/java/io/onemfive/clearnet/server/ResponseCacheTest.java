@@ -0,0 +1,117 @@
+package io.onemfive.clearnet.server;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import static org.junit.Assert.*;
+
+public class ResponseCacheTest {
+
+    private static ResponseCache cache(int maxEntries) {
+        Map<String,Long> routes = new HashMap<>();
+        routes.put("identity", 1000L);
+        routes.put("identity/list", 5000L);
+        return new ResponseCache(0, routes, new String[]{"public"}, maxEntries);
+    }
+
+    @Test
+    public void longestRoutePrefixSetsTtl() {
+        ResponseCache cache = cache(10);
+        assertEquals(5000, cache.ttlFor("identity/list"));
+        assertEquals(1000, cache.ttlFor("identity/get"));
+        assertEquals(0, cache.ttlFor("other"));
+    }
+
+    @Test
+    public void keyIgnoresQueryOrderAndScopesBySession() {
+        ResponseCache cache = cache(10);
+        assertEquals(cache.key("identity/list", RequestBuffers.parseQuery("b=2&a=1"), "s1"),
+                cache.key("identity/list", RequestBuffers.parseQuery("a=1&b=2"), "s1"));
+        assertNotEquals(cache.key("identity/list", query("a", "1"), "s1"), cache.key("identity/list", query("a", "1"), "s2"));
+        // Shared routes ignore the session
+        assertEquals(cache.key("public/news", null, "s1"), cache.key("public/news", null, "s2"));
+    }
+
+    @Test
+    public void getAndBatchItemShareKey() {
+        ResponseCache cache = cache(10);
+        Map<String,Object> item = new HashMap<>();
+        item.put("limit", 10L);
+        item.put("name", "a b");
+        assertEquals(cache.key("identity/list", RequestBuffers.parseQuery("name=a b&limit=10"), "s1"),
+                cache.key("identity/list", item, "s1"));
+        // Separators inside values cannot forge another query
+        assertNotEquals(cache.key("identity/list", query("a", "1&b=2"), "s1"),
+                cache.key("identity/list", RequestBuffers.parseQuery("a=1&b=2"), "s1"));
+    }
+
+    @Test
+    public void storesUntilTtlPasses() throws Exception {
+        ResponseCache cache = cache(10);
+        String key = cache.key("identity/list", null, "s1");
+        cache.put(key, "[1]", 50, cache.generation(key));
+        assertEquals("[1]", cache.get(key));
+        Thread.sleep(80);
+        assertNull(cache.get(key));
+        cache.put(key, "[1]", 0, cache.generation(key));
+        assertNull(cache.get(key));
+    }
+
+    @Test
+    public void mutationInvalidatesRootAndDropsReadsStartedBefore() {
+        ResponseCache cache = cache(10);
+        String list = cache.key("identity/list", null, "s1");
+        String other = cache.key("public/news", null, "s1");
+        cache.put(list, "[1]", 5000, cache.generation(list));
+        cache.put(other, "[2]", 5000, cache.generation(other));
+
+        // A read misses and goes to the bus...
+        String read = cache.key("identity/get", query("id", "1"), "s1");
+        int started = cache.generation(read);
+        // ...while a mutation under the same root lands
+        cache.invalidate("identity/update");
+        assertNull(cache.get(list));
+        assertEquals("[2]", cache.get(other));
+
+        // The stale read's response must not be stored
+        cache.put(read, "{}", 5000, started);
+        assertNull(cache.get(read));
+        cache.put(read, "{}", 5000, cache.generation(read));
+        assertEquals("{}", cache.get(read));
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() {
+        ResponseCache cache = cache(2);
+        String a = cache.key("identity/a", null, "s");
+        String b = cache.key("identity/b", null, "s");
+        String c = cache.key("identity/c", null, "s");
+        cache.put(a, "a", 5000, 0);
+        cache.put(b, "b", 5000, 0);
+        cache.get(a);
+        cache.put(c, "c", 5000, 0);
+        assertEquals("a", cache.get(a));
+        assertNull(cache.get(b));
+        assertEquals("c", cache.get(c));
+    }
+
+    private static Map<String,Object> query(String name, Object value) {
+        Map<String,Object> query = new HashMap<>();
+        query.put(name, value);
+        return query;
+    }
+
+    @Test
+    public void disabledWithoutTtls() {
+        assertNull(ResponseCache.fromProperties(null));
+        assertNull(ResponseCache.fromProperties(new Properties()));
+        Properties p = new Properties();
+        p.setProperty(ResponseCache.CACHE_TTL_ROUTE_PREFIX + "/identity", "1000");
+        ResponseCache cache = ResponseCache.fromProperties(p);
+        assertNotNull(cache);
+        assertEquals(1000, cache.ttlFor("identity/list"));
+    }
+}
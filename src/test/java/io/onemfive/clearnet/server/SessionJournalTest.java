@@ -0,0 +1,136 @@
+package io.onemfive.clearnet.server;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.*;
+
+/**
+ * Restarts are simulated by opening a second journal on the same directory
+ * while the first is left as a crash would leave it.
+ */
+public class SessionJournalTest {
+
+    private static final long NEVER = Long.MAX_VALUE / 2;
+
+    private File dir;
+    private final List<SessionJournal> opened = new ArrayList<>();
+
+    @Before
+    public void createDir() throws Exception {
+        dir = Files.createTempDirectory("sessions").toFile();
+    }
+
+    @After
+    public void deleteDir() {
+        for(SessionJournal journal : opened)
+            journal.close();
+        File[] files = dir.listFiles();
+        if(files != null) {
+            for(File f : files)
+                f.delete();
+        }
+        dir.delete();
+    }
+
+    private SessionJournal open(Map<String,ClearnetSession> sessions) throws Exception {
+        SessionJournal journal = new SessionJournal(dir, sessions, NEVER, NEVER);
+        journal.open();
+        opened.add(journal);
+        return journal;
+    }
+
+    @Test
+    public void journalReplaysOverSnapshot() throws Exception {
+        Map<String,ClearnetSession> sessions = new ConcurrentHashMap<>();
+        SessionJournal journal = open(sessions);
+        ClearnetSession a = session(sessions, journal, "a");
+        session(sessions, journal, "b");
+        journal.snapshot();
+        // Since the snapshot: a authenticates, b leaves, c arrives
+        a.setAuthenticated(true);
+        journal.upsert(a);
+        sessions.remove("b");
+        journal.remove("b");
+        session(sessions, journal, "c");
+        journal.flush();
+
+        Map<String,ClearnetSession> restored = new ConcurrentHashMap<>();
+        open(restored);
+        assertEquals(2, restored.size());
+        assertTrue(restored.get("a").getAuthenticated());
+        assertNull(restored.get("b"));
+        assertNotNull(restored.get("c"));
+    }
+
+    @Test
+    public void journalOlderThanSnapshotIsSkipped() throws Exception {
+        Map<String,ClearnetSession> sessions = new ConcurrentHashMap<>();
+        SessionJournal journal = open(sessions);
+        ClearnetSession a = session(sessions, journal, "a");
+        long journaled = a.getLastRequestTime();
+        journal.flush();
+        byte[] oldJournal = Files.readAllBytes(new File(dir, "sessions.journal").toPath());
+        // Request times reach only the snapshot
+        a.setLastRequestTime(journaled + 5000);
+        journal.snapshot();
+        // Crash after the snapshot was replaced but before the journal was emptied
+        write(new File(dir, "sessions.journal"), oldJournal);
+
+        Map<String,ClearnetSession> restored = new ConcurrentHashMap<>();
+        open(restored);
+        assertEquals(journaled + 5000, restored.get("a").getLastRequestTime());
+    }
+
+    @Test
+    public void tornTailIsDroppedBeforeAppending() throws Exception {
+        Map<String,ClearnetSession> sessions = new ConcurrentHashMap<>();
+        SessionJournal journal = open(sessions);
+        session(sessions, journal, "a");
+        journal.flush();
+        File journalFile = new File(dir, "sessions.journal");
+        FileOutputStream out = new FileOutputStream(journalFile, true);
+        try {
+            // Type and half an id length
+            out.write(new byte[]{1, 0});
+        } finally {
+            out.close();
+        }
+
+        Map<String,ClearnetSession> restored = new ConcurrentHashMap<>();
+        SessionJournal reopened = open(restored);
+        assertEquals(1, restored.size());
+        session(restored, reopened, "b");
+        reopened.flush();
+
+        Map<String,ClearnetSession> again = new ConcurrentHashMap<>();
+        open(again);
+        assertNotNull(again.get("a"));
+        assertNotNull(again.get("b"));
+    }
+
+    private static ClearnetSession session(Map<String,ClearnetSession> sessions, SessionJournal journal, String id) {
+        ClearnetSession s = new ClearnetSession(id);
+        sessions.put(id, s);
+        journal.upsert(s);
+        return s;
+    }
+
+    private static void write(File f, byte[] data) throws Exception {
+        FileOutputStream out = new FileOutputStream(f);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+}
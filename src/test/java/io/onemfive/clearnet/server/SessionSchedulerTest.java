@@ -0,0 +1,156 @@
+package io.onemfive.clearnet.server;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class SessionSchedulerTest {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void tokenBucketAllowsBurstThenRefillsAtRate() {
+        ClearnetSession session = new ClearnetSession("s");
+        long now = 0;
+        for(int i = 0; i < 5; i++)
+            assertTrue(session.tryConsumeToken(2, 5, now));
+        assertFalse(session.tryConsumeToken(2, 5, now));
+        // Half a second at 2/s buys one token
+        now += SECOND / 2;
+        assertTrue(session.tryConsumeToken(2, 5, now));
+        assertFalse(session.tryConsumeToken(2, 5, now));
+        // Refill never exceeds the burst
+        now += 60 * SECOND;
+        for(int i = 0; i < 5; i++)
+            assertTrue(session.tryConsumeToken(2, 5, now));
+        assertFalse(session.tryConsumeToken(2, 5, now));
+    }
+
+    @Test
+    public void rateLimitedSessionGets429() {
+        SessionScheduler scheduler = new SessionScheduler(0.001, 1, 10, 10, 100);
+        ClearnetSession session = new ClearnetSession("s");
+        assertEquals(SessionScheduler.ADMITTED, scheduler.admit(session));
+        scheduler.release(session);
+        assertEquals(SessionScheduler.TOO_MANY_REQUESTS, scheduler.admit(session));
+    }
+
+    @Test
+    public void queuedRequestWaitsForRelease() throws Exception {
+        final SessionScheduler scheduler = new SessionScheduler(1000, 1000, 1, 10, 5000);
+        final ClearnetSession session = new ClearnetSession("s");
+        assertEquals(SessionScheduler.ADMITTED, scheduler.admit(session));
+        final int[] status = new int[1];
+        Thread second = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                status[0] = scheduler.admit(session);
+            }
+        });
+        second.start();
+        awaitQueued(scheduler, 1);
+        scheduler.release(session);
+        second.join(5000);
+        assertEquals(SessionScheduler.ADMITTED, status[0]);
+        assertEquals(1, session.getInFlight());
+    }
+
+    @Test
+    public void queueTimeoutAnswersBySessionLimit() {
+        SessionScheduler scheduler = new SessionScheduler(1000, 1000, 1, 1, 50);
+        ClearnetSession busy = new ClearnetSession("busy");
+        ClearnetSession other = new ClearnetSession("other");
+        assertEquals(SessionScheduler.ADMITTED, scheduler.admit(busy));
+        // Over its own limit
+        assertEquals(SessionScheduler.TOO_MANY_REQUESTS, scheduler.admit(busy));
+        // Starved by the handler-wide limit
+        assertEquals(SessionScheduler.UNAVAILABLE, scheduler.admit(other));
+        assertEquals(0, scheduler.getQueuedSessions());
+    }
+
+    @Test
+    public void sessionAtItsLimitDoesNotBlockOthers() throws Exception {
+        final SessionScheduler scheduler = new SessionScheduler(1000, 1000, 1, 10, 5000);
+        final ClearnetSession capped = new ClearnetSession("capped");
+        assertEquals(SessionScheduler.ADMITTED, scheduler.admit(capped));
+        Thread waiter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                scheduler.admit(capped);
+            }
+        });
+        waiter.start();
+        awaitQueued(scheduler, 1);
+        // Global slots are free so a fresh session is admitted without waiting
+        long start = System.currentTimeMillis();
+        ClearnetSession fresh = new ClearnetSession("fresh");
+        assertEquals(SessionScheduler.ADMITTED, scheduler.admit(fresh));
+        assertTrue(System.currentTimeMillis() - start < 1000);
+        assertEquals(1, scheduler.getQueuedSessions());
+        scheduler.release(capped);
+        waiter.join(5000);
+        assertEquals(0, scheduler.getQueuedSessions());
+    }
+
+    @Test
+    public void freedSlotsGoRoundRobinAcrossSessions() throws Exception {
+        final SessionScheduler scheduler = new SessionScheduler(1000, 1000, 10, 1, 5000);
+        ClearnetSession holder = new ClearnetSession("holder");
+        final ClearnetSession chatty = new ClearnetSession("chatty");
+        final ClearnetSession quiet = new ClearnetSession("quiet");
+        assertEquals(SessionScheduler.ADMITTED, scheduler.admit(holder));
+
+        final List<String> order = new CopyOnWriteArrayList<>();
+        Thread[] waiters = new Thread[3];
+        waiters[0] = admitLater(scheduler, chatty, order);
+        waiters[0].start();
+        awaitQueued(scheduler, 1);
+        waiters[1] = admitLater(scheduler, chatty, order);
+        waiters[1].start();
+        waiters[2] = admitLater(scheduler, quiet, order);
+        waiters[2].start();
+        awaitQueued(scheduler, 2);
+        Thread.sleep(50);
+
+        scheduler.release(holder);
+        awaitSize(order, 1);
+        scheduler.release(chatty);
+        awaitSize(order, 2);
+        scheduler.release(order.get(1).equals("quiet") ? quiet : chatty);
+        awaitSize(order, 3);
+        for(Thread t : waiters)
+            t.join(5000);
+        // The quiet session is served before chatty's second request
+        assertEquals("chatty", order.get(0));
+        assertEquals("quiet", order.get(1));
+        assertEquals("chatty", order.get(2));
+    }
+
+    private static Thread admitLater(final SessionScheduler scheduler, final ClearnetSession session, final List<String> order) {
+        return new Thread(new Runnable() {
+            @Override
+            public void run() {
+                if(scheduler.admit(session) == SessionScheduler.ADMITTED)
+                    order.add(session.getId());
+            }
+        });
+    }
+
+    private static void awaitQueued(SessionScheduler scheduler, int sessions) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while(scheduler.getQueuedSessions() < sessions && System.currentTimeMillis() < deadline)
+            Thread.sleep(5);
+        assertEquals(sessions, scheduler.getQueuedSessions());
+    }
+
+    private static void awaitSize(List<String> list, int size) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while(list.size() < size && System.currentTimeMillis() < deadline)
+            Thread.sleep(5);
+        assertEquals(size, list.size());
+    }
+}
@@ -0,0 +1,202 @@
+package io.onemfive.clearnet.server;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Properties;
+
+import static org.junit.Assert.*;
+
+/**
+ * TLS connector against a self-signed keystore generated with the JDK's keytool.
+ */
+public class TlsConnectorsTest {
+
+    private static final String NAME = "test";
+    private static final String PASSWORD = "changeit";
+
+    private static File keystore;
+
+    private Server server;
+    private int port;
+
+    @BeforeClass
+    public static void generateKeystore() throws Exception {
+        File keytool = new File(new File(System.getProperty("java.home"), "bin"), "keytool");
+        Assume.assumeTrue("keytool not found", keytool.exists());
+        keystore = File.createTempFile("clearnet-tls", ".p12");
+        keystore.delete();
+        Process p = new ProcessBuilder(keytool.getPath(), "-genkeypair", "-alias", NAME, "-keyalg", "RSA",
+                "-keysize", "2048", "-dname", "CN=localhost", "-validity", "1", "-storetype", "PKCS12",
+                "-keystore", keystore.getPath(), "-storepass", PASSWORD, "-keypass", PASSWORD)
+                .redirectErrorStream(true).start();
+        assertEquals(0, p.waitFor());
+    }
+
+    @AfterClass
+    public static void deleteKeystore() {
+        if(keystore != null)
+            keystore.delete();
+    }
+
+    @After
+    public void stopServer() throws Exception {
+        if(server != null)
+            server.stop();
+    }
+
+    private void startServer(boolean http2) throws Exception {
+        Properties p = new Properties();
+        p.setProperty(TlsConnectors.KEYSTORE_PREFIX + NAME, keystore.getPath());
+        p.setProperty(TlsConnectors.KEYSTORE_PASSWORD_PREFIX + NAME, PASSWORD);
+        p.setProperty(TlsConnectors.KEYSTORE_TYPE_PREFIX + NAME, "PKCS12");
+        p.setProperty(TlsConnectors.HTTP2_PREFIX + NAME, String.valueOf(http2));
+        assertTrue(TlsConnectors.isConfigured(p, NAME));
+        server = new Server();
+        ServerConnector connector = TlsConnectors.create(server, p, NAME, 0);
+        server.addConnector(connector);
+        server.setHandler(new AbstractHandler() {
+            @Override
+            public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException {
+                response.setStatus(200);
+                response.setContentLength(2);
+                response.getOutputStream().write("ok".getBytes(StandardCharsets.US_ASCII));
+                baseRequest.setHandled(true);
+            }
+        });
+        server.start();
+        port = connector.getLocalPort();
+    }
+
+    @Test
+    public void reconnectResumesSession() throws Exception {
+        startServer(true);
+        SSLContext context = trustAll();
+        // Session ids identify resumed sessions under TLS 1.2
+        byte[] first = sessionId(context);
+        byte[] second = sessionId(context);
+        assertTrue(first.length > 0);
+        assertTrue("abbreviated handshake reuses the cached session", Arrays.equals(first, second));
+    }
+
+    @Test
+    public void alpnNegotiatesHttp2() throws Exception {
+        startServer(true);
+        assertEquals("h2", negotiate(new String[]{"h2", "http/1.1"}));
+    }
+
+    @Test
+    public void alpnFallsBackToHttp1() throws Exception {
+        startServer(true);
+        assertEquals("http/1.1", negotiate(new String[]{"http/1.1"}));
+        // Clients not offering ALPN at all get HTTP/1.1
+        assertTrue(get(handshake(trustAll())).startsWith("HTTP/1.1 200"));
+    }
+
+    @Test
+    public void http2DisabledServesHttp1() throws Exception {
+        startServer(false);
+        assertTrue(get(handshake(trustAll())).startsWith("HTTP/1.1 200"));
+    }
+
+    /**
+     * @return protocol selected by the server; ALPN client API is JDK 9+
+     */
+    private String negotiate(String[] offered) throws Exception {
+        Method setProtocols;
+        Method getProtocol;
+        try {
+            setProtocols = SSLParameters.class.getMethod("setApplicationProtocols", String[].class);
+            getProtocol = SSLSocket.class.getMethod("getApplicationProtocol");
+        } catch (NoSuchMethodException e) {
+            Assume.assumeNoException("No ALPN client support on this JDK", e);
+            return null;
+        }
+        SSLSocket socket = (SSLSocket)trustAll().getSocketFactory().createSocket("127.0.0.1", port);
+        try {
+            socket.setSoTimeout(5000);
+            SSLParameters params = socket.getSSLParameters();
+            setProtocols.invoke(params, (Object)offered);
+            socket.setSSLParameters(params);
+            socket.startHandshake();
+            return (String)getProtocol.invoke(socket);
+        } finally {
+            socket.close();
+        }
+    }
+
+    private byte[] sessionId(SSLContext context) throws IOException {
+        SSLSocket socket = (SSLSocket)context.getSocketFactory().createSocket("127.0.0.1", port);
+        try {
+            socket.setSoTimeout(5000);
+            socket.setEnabledProtocols(new String[]{"TLSv1.2"});
+            socket.startHandshake();
+            return socket.getSession().getId();
+        } finally {
+            socket.close();
+        }
+    }
+
+    private SSLSocket handshake(SSLContext context) throws IOException {
+        SSLSocket socket = (SSLSocket)context.getSocketFactory().createSocket("127.0.0.1", port);
+        socket.setSoTimeout(5000);
+        socket.startHandshake();
+        return socket;
+    }
+
+    private static String get(SSLSocket socket) throws IOException {
+        try {
+            socket.getOutputStream().write("GET / HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            socket.getOutputStream().flush();
+            InputStream in = socket.getInputStream();
+            StringBuilder sb = new StringBuilder();
+            int b;
+            while((b = in.read()) >= 0)
+                sb.append((char)b);
+            return sb.toString();
+        } finally {
+            socket.close();
+        }
+    }
+
+    private static SSLContext trustAll() throws Exception {
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, new TrustManager[]{new X509TrustManager() {
+            @Override
+            public void checkClientTrusted(X509Certificate[] chain, String authType) {
+            }
+
+            @Override
+            public void checkServerTrusted(X509Certificate[] chain, String authType) {
+            }
+
+            @Override
+            public X509Certificate[] getAcceptedIssuers() {
+                return new X509Certificate[0];
+            }
+        }}, new SecureRandom());
+        return context;
+    }
+}